@@ -45,6 +45,11 @@ public class CursorPage<T extends Object> implements Serializable {
      * The total number of items available. Use for progress indication.
      */
     private Integer totalSize;
+
+    /**
+     * True if counting stopped at the requested limit, i.e. there are more than totalSize items.
+     */
+    private Boolean totalSizeCapped;
     
     public String getCursorKey() {
         return cursorKey;
@@ -80,4 +85,12 @@ public class CursorPage<T extends Object> implements Serializable {
         this.totalSize = totalSize;
     }
 
+    public Boolean getTotalSizeCapped() {
+        return totalSizeCapped;
+    }
+
+    public void setTotalSizeCapped(Boolean totalSizeCapped) {
+        this.totalSizeCapped = totalSizeCapped;
+    }
+
 }
@@ -2,6 +2,7 @@ package net.sf.mardao.core;
 
 import net.sf.mardao.dao.Mapper;
 
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -12,12 +13,26 @@ import java.util.concurrent.TimeoutException;
  */
 public class EntityFuture<T> implements Future<T> {
 
+    /** marks an entity deleted in an identity map */
+    public static final Object DELETED = new Object();
+
     private final Mapper<T, ?> mapper;
     private final Future<?> future;
+    private final Map<Object, Object> identityMap;
+    private final Object key;
 
     public EntityFuture(Mapper<T, ?> mapper, Future<?> future) {
+        this(mapper, future, null, null);
+    }
+
+    /**
+     * Resolves to the instance already in the identity map, or adds the mapped entity to it.
+     */
+    public EntityFuture(Mapper<T, ?> mapper, Future<?> future, Map<Object, Object> identityMap, Object key) {
         this.mapper = mapper;
         this.future = future;
+        this.identityMap = identityMap;
+        this.key = key;
     }
 
     @Override
@@ -38,12 +53,28 @@ public class EntityFuture<T> implements Future<T> {
     @Override
     public T get() throws InterruptedException, ExecutionException {
         final Object value = future.get();
-        return mapper.fromReadValue(value);
+        return identify(value);
     }
 
     @Override
     public T get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
         final Object value = future.get(l, timeUnit);
-        return mapper.fromReadValue(value);
+        return identify(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T identify(Object value) {
+        if (null == identityMap || null == value) {
+            return mapper.fromReadValue(value);
+        }
+        synchronized (identityMap) {
+            final Object existing = identityMap.get(key);
+            if (null != existing) {
+                return DELETED != existing ? (T) existing : null;
+            }
+            final T entity = mapper.fromReadValue(value);
+            identityMap.put(key, entity);
+            return entity;
+        }
     }
 }
@@ -37,7 +37,7 @@ public class KeyFuture<T, ID extends Serializable> implements Future<ID> {
 
     @Override
     public boolean isDone() {
-        return false;
+        return future.isDone();
     }
 
     @Override
@@ -26,24 +26,39 @@ package net.sf.mardao.core;
  * #L%
  */
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import net.sf.mardao.dao.Mapper;
+
 /**
+ * Wraps a batch write Future. When constructed with a Mapper, the written keys are
+ * mapped to IDs and the domain objects are updated when the Future is resolved.
  *
  * @author sosandstrom
  */
 public class MardaoListFuture<T> implements Future<List<?>> {
 
+    private final Mapper<T, ?> mapper;
     private final Future<List<?>> datastoreFuture;
     private final Iterable<T> domains;
+    private final List<?> values;
+    private List<?> ids;
 
     public MardaoListFuture(Future<List<?>> datastoreFuture, Iterable<T> domains) {
+        this(null, datastoreFuture, domains, null);
+    }
+
+    public MardaoListFuture(Mapper<T, ?> mapper, Future<List<?>> datastoreFuture, Iterable<T> domains, List<?> values) {
+        this.mapper = mapper;
         this.datastoreFuture = datastoreFuture;
         this.domains = domains;
+        this.values = values;
     }
 
     @Override
@@ -61,14 +76,34 @@ public class MardaoListFuture<T> implements Future<List<?>> {
         return datastoreFuture.isDone();
     }
 
+    /**
+     * @return the written keys, or the written IDs if constructed with a Mapper
+     */
     @Override
     public List<?> get() throws InterruptedException, ExecutionException {
-        return datastoreFuture.get();
+        return updateDomains(datastoreFuture.get());
     }
 
     @Override
     public List<?> get(long l, TimeUnit tu) throws InterruptedException, ExecutionException, TimeoutException {
-        return datastoreFuture.get(l, tu);
+        return updateDomains(datastoreFuture.get(l, tu));
+    }
+
+    private synchronized List<?> updateDomains(List<?> keys) {
+        if (null == mapper) {
+            return keys;
+        }
+        if (null == ids) {
+            final List<Object> mapped = new ArrayList<Object>(keys.size());
+            final Iterator<T> domainIterator = domains.iterator();
+            for (int i = 0; i < keys.size(); i++) {
+                final Object key = keys.get(i);
+                mapped.add(mapper.fromKey(key));
+                mapper.updateEntityPostWrite(domainIterator.next(), key, values.get(i));
+            }
+            ids = mapped;
+        }
+        return ids;
     }
 
     public Iterable<T> getDomains() {
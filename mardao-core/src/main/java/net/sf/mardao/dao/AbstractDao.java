@@ -22,15 +22,22 @@ package net.sf.mardao.dao;
  * #L%
  */
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import net.sf.mardao.MappingIterable;
 import net.sf.mardao.core.CursorPage;
 import net.sf.mardao.core.KeyFuture;
 import net.sf.mardao.core.EntityFuture;
+import net.sf.mardao.core.ImmediateFuture;
+import net.sf.mardao.core.MardaoListFuture;
 import net.sf.mardao.core.filter.Filter;
 
 /**
@@ -40,16 +47,33 @@ import net.sf.mardao.core.filter.Filter;
  */
 public class AbstractDao<T, ID extends Serializable> {
 
+  /** do not count totalSize for the first page */
+  public static final int TOTAL_SIZE_NONE = 0;
+  /** count all items for the first page's totalSize */
+  public static final int TOTAL_SIZE_ALL = -1;
+
+  static final Logger LOGGER = LoggerFactory.getLogger(AbstractDao.class);
+
   /** set this, to have createdBy and updatedBy set */
   private static final ThreadLocal<String> principalName = new ThreadLocal<String>();
-  private static final ThreadLocal<Stack> TRANSACTION_STACKS = new ThreadLocal<Stack>();
+  private static final ThreadLocal<Stack<TransactionHolder>> TRANSACTION_STACKS = new ThreadLocal<Stack<TransactionHolder>>();
+  /** the identity map of the current request scope, if any */
+  private static final ThreadLocal<Map<Object, Object>> REQUEST_ENTITIES = new ThreadLocal<Map<Object, Object>>();
+
+  /** the number of ids leased from the Supplier at a time */
+  protected static final int ID_BLOCK_SIZE = 100;
 
   private final Mapper<T, ID> mapper;
   private final Supplier supplier;
+  private final BlockIdAllocator idAllocator;
 
   protected AbstractDao(Mapper<T, ID> mapper, Supplier supplier) {
     this.mapper = mapper;
     this.supplier = supplier;
+    this.idAllocator = new BlockIdAllocator(supplier, ID_BLOCK_SIZE);
+    for (String column : mapper.getIndexedColumnNames()) {
+      supplier.createIndex(mapper.getKind(), column, true);
+    }
   }
 
   // --- transactional methods ---
@@ -68,8 +92,8 @@ public class AbstractDao<T, ID extends Serializable> {
 
   public static <R> R withTransaction(TransFunc<R> transFunc, boolean commit, Supplier supplier) throws IOException {
     final Object transaction = supplier.beginTransaction();
-    // TransactionHolder holder = new TransactionHolder(transaction, new Date());
-    pushTransaction(transaction);
+    final TransactionHolder holder = new TransactionHolder(transaction);
+    pushTransaction(holder);
     try {
       final R result = transFunc.apply();
       if (commit) {
@@ -78,36 +102,132 @@ public class AbstractDao<T, ID extends Serializable> {
       return result;
     }
     finally {
-      popTransaction(transaction);
+      popTransaction(holder);
       supplier.rollbackActiveTransaction(transaction);
     }
   }
 
-  private static void pushTransaction(final Object transaction) {
-    Stack stack = TRANSACTION_STACKS.get();
+  public <R> R withUnitOfWork(TransFunc<R> work) throws IOException {
+    return withUnitOfWork(work, this.supplier);
+  }
+
+  /**
+   * Runs the work, then flushes the Supplier if it buffers writes, like {@link BufferedSupplier}, also if the work
+   * fails. Buffered writes are kept per thread until flushed, so each unit of work on a pooled thread,
+   * like a request, must end with a flush, or else its writes are lost or inherited by the next one.
+   */
+  public static <R> R withUnitOfWork(TransFunc<R> work, Supplier supplier) throws IOException {
+    if (!(supplier instanceof Flushable)) {
+      return work.apply();
+    }
+    boolean completed = false;
+    try {
+      final R result = work.apply();
+      completed = true;
+      return result;
+    }
+    finally {
+      if (completed) {
+        ((Flushable) supplier).flush();
+      }
+      else {
+        // not to hide the failure of the work
+        try {
+          ((Flushable) supplier).flush();
+        }
+        catch (IOException e) {
+          LOGGER.warn("Flushing after failed unit of work", e);
+        }
+      }
+    }
+  }
+
+  private static void pushTransaction(final TransactionHolder holder) {
+    Stack<TransactionHolder> stack = TRANSACTION_STACKS.get();
     if (null == stack) {
-      stack = new Stack();
+      stack = new Stack<TransactionHolder>();
       TRANSACTION_STACKS.set(stack);
     }
-    stack.push(transaction);
+    stack.push(holder);
   }
 
-  private static void popTransaction(final Object transaction) {
-    final Stack stack = TRANSACTION_STACKS.get();
-    Object popped = stack.pop();
-    if (popped != transaction) {
+  private static void popTransaction(final TransactionHolder holder) {
+    final Stack<TransactionHolder> stack = TRANSACTION_STACKS.get();
+    TransactionHolder popped = stack.pop();
+    if (popped != holder) {
       throw new IllegalStateException("Transaction differs.");
     }
   }
 
-  private static Object getCurrentTransaction() {
-    final Stack stack = TRANSACTION_STACKS.get();
+  private static TransactionHolder getCurrentHolder() {
+    final Stack<TransactionHolder> stack = TRANSACTION_STACKS.get();
     if (null == stack) {
       return null;
     }
     return stack.isEmpty() ? null : stack.peek();
   }
 
+  private static Object getCurrentTransaction() {
+    final TransactionHolder holder = getCurrentHolder();
+    return null != holder ? holder.transaction : null;
+  }
+
+  // --- identity map methods ---
+
+  /**
+   * Starts a request scope on this thread, within which non-transactional get and getAsync calls
+   * return the already mapped instance of an entity. Entities put or deleted through the Daos are kept coherent,
+   * but changes made by others are not seen until {@link #endRequestScope()}.
+   */
+  public static void beginRequestScope() {
+    REQUEST_ENTITIES.set(new HashMap<Object, Object>());
+  }
+
+  public static void endRequestScope() {
+    REQUEST_ENTITIES.remove();
+  }
+
+  /**
+   * @return the identity map of the current transaction, else of the current request scope, else null
+   */
+  private static Map<Object, Object> getIdentityMap() {
+    final TransactionHolder holder = getCurrentHolder();
+    return null != holder ? holder.entities : REQUEST_ENTITIES.get();
+  }
+
+  private static Object fromIdentityMap(Map<Object, Object> identityMap, Object key) {
+    return null != identityMap ? identityMap.get(key) : null;
+  }
+
+  private static void putIdentity(Object key, Object entity) {
+    final Map<Object, Object> identityMap = getIdentityMap();
+    if (null != identityMap && null != key) {
+      identityMap.put(key, entity);
+    }
+    evictRequestScope(key);
+  }
+
+  private static void evictIdentity(Object key) {
+    final Map<Object, Object> identityMap = getIdentityMap();
+    if (null != identityMap && null != key) {
+      identityMap.remove(key);
+    }
+    evictRequestScope(key);
+  }
+
+  /** a transaction may read its own deletes from the store, so these are remembered */
+  private static void deleteIdentity(Object key) {
+    putIdentity(key, EntityFuture.DELETED);
+  }
+
+  /** writes within a transaction make the request scope's instance stale, whether committed or not */
+  private static void evictRequestScope(Object key) {
+    final Map<Object, Object> requestEntities = REQUEST_ENTITIES.get();
+    if (null != requestEntities && null != key && null != getCurrentHolder()) {
+      requestEntities.remove(key);
+    }
+  }
+
   // --- CRUD methods ---
 
   public int count() {
@@ -125,6 +245,7 @@ public class AbstractDao<T, ID extends Serializable> {
   public void delete(Object parentKey, ID id) throws IOException {
     Object key = mapper.toKey(parentKey, id);
     supplier.deleteValue(getCurrentTransaction(), key);
+    deleteIdentity(key);
   }
 
   public void delete(Iterable<ID> ids) throws IOException {
@@ -133,6 +254,9 @@ public class AbstractDao<T, ID extends Serializable> {
       keys.add(mapper.toKey(null, id));
     }
     supplier.deleteValues(getCurrentTransaction(), keys);
+    for (Object key : keys) {
+      deleteIdentity(key);
+    }
   }
 
   public T get(ID id) throws IOException {
@@ -141,16 +265,86 @@ public class AbstractDao<T, ID extends Serializable> {
 
   public T get(Object parentKey, ID id) throws IOException {
     Object key = mapper.toKey(parentKey, id);
+    final Map<Object, Object> identityMap = getIdentityMap();
+    final Object identity = fromIdentityMap(identityMap, key);
+    if (null != identity) {
+      return EntityFuture.DELETED != identity ? (T) identity : null;
+    }
     Object value = supplier.readValue(getCurrentTransaction(), key);
     if (null == value) {
       return null;
     }
     T entity = mapper.fromReadValue(value);
+    if (null != identityMap) {
+      identityMap.put(key, entity);
+    }
     return entity;
   }
 
-  public ID put(T entity) throws IOException {
+  public Map<ID, T> get(Iterable<ID> ids) throws IOException {
+    return get(null, ids);
+  }
+
+  /**
+   * Reads the entities for the specified ids with a single batch call to the Supplier.
+   * @param parentKey the common parent key, or null
+   * @param ids the ids to read
+   * @return the found entities, mapped by id in the order of the specified ids. Missing ids are not mapped.
+   */
+  public Map<ID, T> get(Object parentKey, Iterable<ID> ids) throws IOException {
+    final Map<Object, Object> identityMap = getIdentityMap();
+    final Map<ID, Object> keys = new LinkedHashMap<ID, Object>();
+    final Collection<Object> missing = new ArrayList<Object>();
+    for (ID id : ids) {
+      final Object key = mapper.toKey(parentKey, id);
+      keys.put(id, key);
+      if (null == fromIdentityMap(identityMap, key)) {
+        missing.add(key);
+      }
+    }
+    final Map values = missing.isEmpty() ? Collections.emptyMap() :
+      supplier.readValues(getCurrentTransaction(), missing);
+
+    final Map<ID, T> entities = new LinkedHashMap<ID, T>();
+    for (Map.Entry<ID, Object> entry : keys.entrySet()) {
+      final Object identity = fromIdentityMap(identityMap, entry.getValue());
+      T entity = EntityFuture.DELETED != identity ? (T) identity : null;
+      if (null == identity) {
+        final Object value = values.get(entry.getValue());
+        if (null != value) {
+          entity = mapper.fromReadValue(value);
+          if (null != identityMap) {
+            identityMap.put(entry.getValue(), entity);
+          }
+        }
+      }
+      if (null != entity) {
+        entities.put(entry.getKey(), entity);
+      }
+    }
+    return entities;
+  }
+
+  /**
+   * Assigns an allocated id to an entity with a Long id, unless it has one already.
+   * Its key can then be used as parent key of other entities, written in the same batch.
+   * An id already set is reserved, not to be allocated to another entity later.
+   * @return the id of the entity, null if it has a String id not set
+   */
+  public ID allocateId(T entity) {
     ID id = mapper.getId(entity);
+    if (null == id && Long.class.equals(mapper.getIdClass())) {
+      id = (ID) Long.valueOf(idAllocator.allocateId(mapper.getKind()));
+      mapper.setId(entity, id);
+    }
+    else if (id instanceof Long) {
+      idAllocator.reserveId(mapper.getKind(), (Long) id);
+    }
+    return id;
+  }
+
+  public ID put(T entity) throws IOException {
+    ID id = allocateId(entity);
     Object parentKey = mapper.getParentKey(entity);
     Object key = mapper.toKey(parentKey, id);
     Object value = mapper.toWriteValue(entity);
@@ -158,9 +352,38 @@ public class AbstractDao<T, ID extends Serializable> {
     key = supplier.writeValue(getCurrentTransaction(), key, value);
     id = mapper.fromKey(key);
     mapper.updateEntityPostWrite(entity, key, value);
+    putIdentity(key, entity);
     return id;
   }
 
+  /**
+   * Writes the entities with a single batch call to the Supplier, which may split it into chunks.
+   * @param entities the entities to write
+   * @return the ids of the written entities, in iteration order
+   */
+  public List<ID> put(Iterable<T> entities) throws IOException {
+    final List<T> domains = new ArrayList<T>();
+    final List<Object> values = new ArrayList<Object>();
+    for (T entity : entities) {
+      allocateId(entity);
+      Object value = mapper.toWriteValue(entity);
+      updateAuditInfo(value);
+      domains.add(entity);
+      values.add(value);
+    }
+
+    final List keys = supplier.writeValues(getCurrentTransaction(), values);
+
+    final List<ID> ids = new ArrayList<ID>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      Object key = keys.get(i);
+      ids.add(mapper.fromKey(key));
+      mapper.updateEntityPostWrite(domains.get(i), key, values.get(i));
+      putIdentity(key, domains.get(i));
+    }
+    return ids;
+  }
+
   // --- query methods ---
 
   protected Iterable<T> queryByField(Object ancestorKey, String fieldName, Object fieldValue) {
@@ -190,13 +413,43 @@ public class AbstractDao<T, ID extends Serializable> {
         null, false, null, false, null, cursorString);
   }
 
+  /**
+   * @param totalSizeLimit TOTAL_SIZE_NONE, TOTAL_SIZE_ALL or the max number of items to count for the first page
+   */
+  public CursorPage<T> queryPage(Object ancestorKey, int requestedPageSize, String cursorString, int totalSizeLimit) {
+    return queryPage(false, requestedPageSize, ancestorKey,
+        null, false, null, false, null, cursorString, totalSizeLimit);
+  }
+
   protected CursorPage<T> queryPage(boolean keysOnly, int requestedPageSize, Object ancestorKey,
                           String primaryOrderBy, boolean primaryIsAscending,
                           String secondaryOrderBy, boolean secondaryIsAscending,
                           Collection<String> projections,
                           String cursorString,
                           Filter... filters) {
-    CursorPage page = supplier.queryPage(getCurrentTransaction(), mapper.getKind(), false,
+    return queryPage(keysOnly, requestedPageSize, ancestorKey,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending,
+      projections, cursorString, TOTAL_SIZE_NONE, filters);
+  }
+
+  /**
+   * When totalSizeLimit is not TOTAL_SIZE_NONE, the first page's totalSize is counted concurrently with the page fetch.
+   * If there are more than a positive totalSizeLimit items, totalSize is set to totalSizeLimit and totalSizeCapped to true.
+   * @param totalSizeLimit TOTAL_SIZE_NONE, TOTAL_SIZE_ALL or the max number of items to count
+   */
+  protected CursorPage<T> queryPage(boolean keysOnly, int requestedPageSize, Object ancestorKey,
+                          String primaryOrderBy, boolean primaryIsAscending,
+                          String secondaryOrderBy, boolean secondaryIsAscending,
+                          Collection<String> projections,
+                          String cursorString,
+                          int totalSizeLimit,
+                          Filter... filters) {
+    final Object transaction = getCurrentTransaction();
+    final Future<Integer> countFuture = null == cursorString && TOTAL_SIZE_NONE != totalSizeLimit ?
+      supplier.countFuture(transaction, mapper.getKind(), ancestorKey, null,
+        0 < totalSizeLimit ? totalSizeLimit + 1 : 0, filters) : null;
+
+    CursorPage page = supplier.queryPage(transaction, mapper.getKind(), keysOnly,
       requestedPageSize, ancestorKey,
       primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending,
       projections, cursorString,
@@ -204,19 +457,43 @@ public class AbstractDao<T, ID extends Serializable> {
 
     ArrayList<T> entities = new ArrayList<T>(page.getItems().size());
     for (Object value : page.getItems()) {
-      T entity = mapper.fromReadValue(value);
+      T entity = null != projections ? mapper.fromReadValue(value, projections) : mapper.fromReadValue(value);
       entities.add(entity);
     }
     page.setItems(entities);
+
+    if (null != countFuture) {
+      setTotalSize(page, countFuture, totalSizeLimit);
+    }
     return page;
   }
 
+  /** totalSize is for progress indication only, so a failed count leaves it null */
+  private void setTotalSize(CursorPage page, Future<Integer> countFuture, int totalSizeLimit) {
+    try {
+      final int count = countFuture.get();
+      if (0 < totalSizeLimit && totalSizeLimit < count) {
+        page.setTotalSize(totalSizeLimit);
+        page.setTotalSizeCapped(Boolean.TRUE);
+      }
+      else {
+        page.setTotalSize(count);
+        page.setTotalSizeCapped(Boolean.FALSE);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.warn("Interrupted while counting {}", mapper.getKind());
+    } catch (ExecutionException e) {
+      LOGGER.warn("Counting " + mapper.getKind(), e.getCause());
+    }
+  }
+
   protected Iterable<T> queryIterable(boolean keysOnly, int offset, int limit, Object ancestorKey,
                                       String primaryOrderBy, boolean primaryIsAscending,
                                       String secondaryOrderBy, boolean secondaryIsAscending,
                                       Filter... filters) {
 
-    final Iterable iterable = supplier.queryIterable(getCurrentTransaction(), mapper.getKind(), false,
+    final Iterable iterable = supplier.queryIterable(getCurrentTransaction(), mapper.getKind(), keysOnly,
             offset, limit, ancestorKey, null,
             primaryOrderBy, primaryIsAscending,
             secondaryOrderBy, secondaryIsAscending,
@@ -248,24 +525,164 @@ public class AbstractDao<T, ID extends Serializable> {
 
   }
 
+  public CursorPage<ID> queryIdsPage(int requestedPageSize, String cursorString) {
+    return queryIdsPage(requestedPageSize, null, null, false, null, false, cursorString);
+  }
+
+  public CursorPage<ID> queryIdsPage(Object ancestorKey, int requestedPageSize, String cursorString) {
+    return queryIdsPage(requestedPageSize, ancestorKey, null, false, null, false, cursorString);
+  }
+
+  /**
+   * Keys-only page query, the entities are never read nor mapped.
+   */
+  protected CursorPage<ID> queryIdsPage(int requestedPageSize, Object ancestorKey,
+                                        String primaryOrderBy, boolean primaryIsAscending,
+                                        String secondaryOrderBy, boolean secondaryIsAscending,
+                                        String cursorString,
+                                        Filter... filters) {
+    CursorPage page = supplier.queryPage(getCurrentTransaction(), mapper.getKind(), true,
+      requestedPageSize, ancestorKey,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending,
+      null, cursorString,
+      filters);
+
+    ArrayList<ID> ids = new ArrayList<ID>(page.getItems().size());
+    for (Object value : page.getItems()) {
+      ids.add(mapper.fromKey(supplier.getKey(value, null)));
+    }
+    page.setItems(ids);
+    return page;
+  }
+
+  public Iterable<ID> queryIds(Object ancestorKey) {
+    return queryIds(0, -1, ancestorKey, null, false, null, false);
+  }
+
+  /**
+   * Keys-only query, the entities are never read nor mapped.
+   */
+  protected Iterable<ID> queryIds(int offset, int limit, Object ancestorKey,
+                                  String primaryOrderBy, boolean primaryIsAscending,
+                                  String secondaryOrderBy, boolean secondaryIsAscending,
+                                  Filter... filters) {
+    final Iterable iterable = supplier.queryIterable(getCurrentTransaction(), mapper.getKind(), true,
+            offset, limit, ancestorKey, null,
+            primaryOrderBy, primaryIsAscending,
+            secondaryOrderBy, secondaryIsAscending,
+            filters);
+
+    return new Iterable<ID>() {
+      @Override
+      public Iterator<ID> iterator() {
+
+        final Iterator wrappedIterator = iterable.iterator();
+        return new Iterator<ID>() {
+          @Override
+          public boolean hasNext() {
+            return wrappedIterator.hasNext();
+          }
+
+          @Override
+          public ID next() {
+            return mapper.fromKey(supplier.getKey(wrappedIterator.next(), null));
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  public QueryStream<T> stream(int batchSize) {
+    return stream(batchSize, null, null, false, null, false);
+  }
+
+  public QueryStream<T> stream(int batchSize, Object ancestorKey) {
+    return stream(batchSize, ancestorKey, null, false, null, false);
+  }
+
+  /**
+   * Returns a lazy QueryStream, which fetches values from the Supplier in batches of batchSize.
+   */
+  protected QueryStream<T> stream(int batchSize, Object ancestorKey,
+                                  String primaryOrderBy, boolean primaryIsAscending,
+                                  String secondaryOrderBy, boolean secondaryIsAscending,
+                                  Filter... filters) {
+    return new QueryStream<T>(mapper, supplier, getCurrentTransaction(), batchSize, ancestorKey,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending,
+      filters);
+  }
+
   // --- async methods ---
 
   public Future<T> getAsync(Object parentKey, ID id) throws IOException {
     Object key = mapper.toKey(parentKey, id);
+    final Map<Object, Object> identityMap = getIdentityMap();
+    final Object identity = fromIdentityMap(identityMap, key);
+    if (null != identity) {
+      return new ImmediateFuture<T>(EntityFuture.DELETED != identity ? (T) identity : null);
+    }
     Future<?> future = supplier.readFuture(getCurrentTransaction(), key);
-    return new EntityFuture<T>(mapper, future);
+    return new EntityFuture<T>(mapper, future, identityMap, key);
   }
 
   public Future<ID> putAsync(T entity) throws IOException {
-    ID id = mapper.getId(entity);
+    ID id = allocateId(entity);
     Object parentKey = mapper.getParentKey(entity);
     Object key = mapper.toKey(parentKey, id);
     Object value = mapper.toWriteValue(entity);
     updateAuditInfo(value);
+    evictIdentity(key);
     Future<?> future = supplier.writeFuture(getCurrentTransaction(), key, value);
     return new KeyFuture(mapper, future, entity, value);
   }
 
+  /**
+   * Starts a batch write of the entities. The IDs are set on the entities when the returned Future is resolved.
+   * @param entities the entities to write
+   * @return a Future resolving to the List of written IDs
+   */
+  public MardaoListFuture<T> putAsync(Iterable<T> entities) throws IOException {
+    final List<T> domains = new ArrayList<T>();
+    final List<Object> values = new ArrayList<Object>();
+    for (T entity : entities) {
+      final ID id = allocateId(entity);
+      Object value = mapper.toWriteValue(entity);
+      updateAuditInfo(value);
+      domains.add(entity);
+      values.add(value);
+      if (null != id) {
+        evictIdentity(mapper.toKey(mapper.getParentKey(entity), id));
+      }
+    }
+    Future future = supplier.writeFutures(getCurrentTransaction(), values);
+    return new MardaoListFuture<T>(mapper, future, domains, values);
+  }
+
+  public Future<Void> deleteAsync(ID id) throws IOException {
+    return deleteAsync(null, id);
+  }
+
+  public Future<Void> deleteAsync(Object parentKey, ID id) throws IOException {
+    Object key = mapper.toKey(parentKey, id);
+    deleteIdentity(key);
+    return supplier.deleteFuture(getCurrentTransaction(), key);
+  }
+
+  public Future<Void> deleteAsync(Iterable<ID> ids) throws IOException {
+    Collection<Object> keys = new ArrayList<Object>();
+    for (ID id : ids) {
+      final Object key = mapper.toKey(null, id);
+      keys.add(key);
+      deleteIdentity(key);
+    }
+    return supplier.deleteFutures(getCurrentTransaction(), keys);
+  }
+
   // --- utility methods ---
 
   public ID getId(Object key) {
@@ -322,5 +739,13 @@ public class AbstractDao<T, ID extends Serializable> {
     }
   }
 
+  /** the transaction on the stack, with its identity map */
+  private static final class TransactionHolder {
+    final Object transaction;
+    final Map<Object, Object> entities = new HashMap<Object, Object>();
 
+    TransactionHolder(Object transaction) {
+      this.transaction = transaction;
+    }
+  }
 }
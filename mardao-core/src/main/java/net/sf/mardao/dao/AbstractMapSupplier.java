@@ -0,0 +1,702 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.filter.Filter;
+import net.sf.mardao.core.filter.FilterOperator;
+
+/**
+ * Base class for Suppliers with InMemoryKeys and Map values, implementing the key conversions, the value getters and
+ * setters, id allocation, batch and asynchronous calls, and matching, ordering and cursors of values in memory.
+ */
+public abstract class AbstractMapSupplier implements Supplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object> {
+
+  public static final String NAME_PARENT_KEY = "__parentKey";
+  public static final String NAME_KEY = "__Key";
+
+  /** separates the URL-encoded parts of ordered cursors */
+  protected static final String CURSOR_SEPARATOR = "&";
+
+  /** kind -> last allocated id */
+  private final ConcurrentMap<String, AtomicLong> idSequences = new ConcurrentHashMap<String, AtomicLong>();
+
+  /** runs the futures */
+  private final ExecutorService executor;
+
+  protected AbstractMapSupplier() {
+    this(SupplierExecutors.defaultExecutor());
+  }
+
+  /**
+   * @param executor runs the futures, see {@link SupplierExecutors}
+   */
+  protected AbstractMapSupplier(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public Collection getCollection(Map<String, Object> value, String column) {
+    return (Collection) value.get(column);
+  }
+
+  @Override
+  public Date getDate(Map<String, Object> value, String column) {
+    return (Date) value.get(column);
+  }
+
+  @Override
+  public Long getLong(Map<String, Object> core, String column) {
+    return (Long) core.get(column);
+  }
+
+  @Override
+  public InMemoryKey getKey(Map<String, Object> value, String column) {
+    return (InMemoryKey) value.get(NAME_KEY);
+  }
+
+  @Override
+  public InMemoryKey getParentKey(Map<String, Object> value, String column) {
+    return (InMemoryKey) value.get(NAME_PARENT_KEY);
+  }
+
+  @Override
+  public String getString(Map<String, Object> core, String column) {
+    return (String) core.get(column);
+  }
+
+  @Override
+  public Integer getInteger(Map<String, Object> core, String column) {
+    return (Integer) core.get(column);
+  }
+
+  @Override
+  public Boolean getBoolean(Map<String, Object> core, String column) {
+    return (Boolean) core.get(column);
+  }
+
+  @Override
+  public Float getFloat(Map<String, Object> core, String column) {
+    return (Float) core.get(column);
+  }
+
+  @Override
+  public ByteBuffer getByteBuffer(Map<String, Object> core, String column) {
+    return (ByteBuffer) core.get(column);
+  }
+
+  @Override
+  public void setCollection(Map<String, Object> value, String column, Collection c) {
+    value.put(column, c);
+  }
+
+  @Override
+  public void setDate(Map<String, Object> value, String column, Date d) {
+    value.put(column, d);
+  }
+
+  @Override
+  public void setLong(Map<String, Object> value, String column, Long l) {
+    value.put(column, l);
+  }
+
+  @Override
+  public void setString(Map<String, Object> value, String column, String s) {
+    value.put(column, s);
+  }
+
+  @Override
+  public void setInteger(Map<String, Object> value, String column, Integer i) {
+    value.put(column, i);
+  }
+
+  @Override
+  public void setBoolean(Map<String, Object> value, String column, Boolean b) {
+    value.put(column, b);
+  }
+
+  @Override
+  public void setFloat(Map<String, Object> value, String column, Float f) {
+    value.put(column, f);
+  }
+
+  @Override
+  public void setByteBuffer(Map<String, Object> value, String column, ByteBuffer b) {
+    value.put(column, b);
+  }
+
+  @Override
+  public Map<String, Object> createWriteValue(InMemoryKey parentKey, String kind, Long id) {
+    return createWriteValue(parentKey, toKey(parentKey, kind, id));
+  }
+
+  private Map<String, Object> createWriteValue(InMemoryKey parentKey, InMemoryKey key) {
+    final TreeMap<String, Object> value = new TreeMap<String, Object>();
+    value.put(NAME_KEY, key);
+    value.put(NAME_PARENT_KEY, parentKey);
+    return value;
+  }
+
+  @Override
+  public Map<String, Object> createWriteValue(InMemoryKey parentKey, String kind, String id) {
+    return createWriteValue(parentKey, toKey(parentKey, kind, id));
+  }
+
+  /**
+   * Orders by the primary column, then the secondary column, then by key like the Datastore does.
+   */
+  protected static Comparator<Map.Entry<InMemoryKey, Map<String, Object>>> ordering(
+    final String primaryOrderBy, final boolean primaryIsAscending,
+    final String secondaryOrderBy, final boolean secondaryIsAscending) {
+    return new Comparator<Map.Entry<InMemoryKey, Map<String, Object>>>() {
+      @Override
+      public int compare(Map.Entry<InMemoryKey, Map<String, Object>> e1, Map.Entry<InMemoryKey, Map<String, Object>> e2) {
+        int c = null != primaryOrderBy ? compareValues(e1.getValue().get(primaryOrderBy),
+          e2.getValue().get(primaryOrderBy)) : 0;
+        if (0 == c) {
+          if (null != secondaryOrderBy) {
+            c = compareValues(e1.getValue().get(secondaryOrderBy), e2.getValue().get(secondaryOrderBy));
+            c = secondaryIsAscending ? c : -c;
+          }
+          return 0 != c ? c : e1.getKey().compareTo(e2.getKey());
+        }
+        return primaryIsAscending ? c : -c;
+      }
+    };
+  }
+
+  /** Copies only the key and parent key, like a Datastore keys-only query would */
+  protected static Collection<Map<String, Object>> keysOnly(Collection<Map<String, Object>> values) {
+    final Collection<Map<String, Object>> keys = new ArrayList<Map<String, Object>>(values.size());
+    for (Map<String, Object> value : values) {
+      keys.add(keysOnly(value));
+    }
+    return keys;
+  }
+
+  protected static Map<String, Object> keysOnly(Map<String, Object> value) {
+    return project(value, null);
+  }
+
+  /** Copies the key, parent key and the projected columns only */
+  protected static Map<String, Object> project(Map<String, Object> value, Collection<String> projections) {
+    final Map<String, Object> projected = new TreeMap<String, Object>();
+    projected.put(NAME_KEY, value.get(NAME_KEY));
+    projected.put(NAME_PARENT_KEY, value.get(NAME_PARENT_KEY));
+    if (null != projections) {
+      for (String column : projections) {
+        if (value.containsKey(column)) {
+          projected.put(column, value.get(column));
+        }
+      }
+    }
+    return projected;
+  }
+
+  /**
+   * Encodes the key path from the root as a web-safe string.
+   */
+  protected static String encodeKey(InMemoryKey key) {
+    return key.toWebSafeString();
+  }
+
+  protected static InMemoryKey decodeKey(String encoded) {
+    try {
+      return InMemoryKey.fromWebSafeString(encoded);
+    }
+    catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid cursor " + encoded, e);
+    }
+  }
+
+  protected static String encodeCursorPart(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  protected static String decodeCursorPart(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public long allocateIds(String kind, int size) {
+    return sequence(kind).getAndAdd(size) + 1;
+  }
+
+  /**
+   * Advances the sequence of the kind past the id of the key, if numeric, as when loading stored entities
+   * or writing explicit ids, so that allocated ids never overwrite them.
+   */
+  protected void reserveId(InMemoryKey key) {
+    final String name = key.getName();
+    if (null == name || name.isEmpty() || 18 < name.length()) {
+      return;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      if (!Character.isDigit(name.charAt(i))) {
+        return;
+      }
+    }
+    final long id = Long.parseLong(name);
+    final AtomicLong sequence = sequence(key.getKind());
+    long last = sequence.get();
+    while (last < id && !sequence.compareAndSet(last, id)) {
+      last = sequence.get();
+    }
+  }
+
+  private AtomicLong sequence(String kind) {
+    AtomicLong sequence = idSequences.get(kind);
+    if (null == sequence) {
+      final AtomicLong created = new AtomicLong();
+      sequence = idSequences.putIfAbsent(kind, created);
+      if (null == sequence) {
+        sequence = created;
+      }
+    }
+    return sequence;
+  }
+
+  @Override
+  public InMemoryKey toKey(InMemoryKey parentKey, String kind, Long lId) {
+    return InMemoryKey.of(parentKey, kind, null != lId ? lId.toString() : null);
+  }
+
+  @Override
+  public InMemoryKey toKey(InMemoryKey parentKey, String kind, String sId) {
+    return InMemoryKey.of(parentKey, kind, sId);
+  }
+
+  @Override
+  public Long toLongKey(InMemoryKey key) {
+    return null != key ? Long.parseLong(key.getName()) : null;
+  }
+
+  @Override
+  public String toStringKey(InMemoryKey key) {
+    return null != key ? key.getName() : null;
+  }
+
+  @Override
+  public InMemoryKey toParentKey(InMemoryKey key) {
+    return null != key ? key.getParentKey() : null;
+  }
+
+  @Override
+  public String toKind(InMemoryKey key) {
+    return null != key ? key.getKind() : null;
+  }
+
+  protected static boolean matchAll(Map<String, Object> v, Filter... filters) {
+    if (null == filters) {
+      return true;
+    }
+    for (Filter f : filters) {
+      if (!match(v, f)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  protected static boolean match(Map<String, Object> v, Filter f) {
+    // compare compact values without decoding
+    if (FilterOperator.EQUALS == f.getOperator() && v instanceof CompactValue) {
+      final Boolean equal = ((CompactValue) v).isEqual(f.getColumn(), f.getOperand());
+      if (null != equal) {
+        return equal;
+      }
+    }
+    final Object value = v.get(f.getColumn());
+    if (null == f.getOperand()) {
+      return null == value;
+    }
+    switch (f.getOperator()) {
+      case EQUALS:
+        return f.getOperand().equals(value);
+      case IN:
+        return f.getOperand() instanceof Collection ? ((Collection) f.getOperand()).contains(value) :
+          f.getOperand().equals(value);
+      case GREATER_THAN:
+        return 0 < compareValues(value, f.getOperand());
+      case GREATER_THAN_OR_EQUALS:
+        return 0 <= compareValues(value, f.getOperand());
+      case LESS_THAN:
+        return compareValues(value, f.getOperand()) < 0;
+      default:
+        throw new UnsupportedOperationException("match " + f.getOperator());
+    }
+  }
+
+  /**
+   * Orders null first, numbers by value, values of the same class naturally and other classes by name.
+   * Non-comparable values are ordered by hash code only.
+   */
+  @SuppressWarnings("unchecked")
+  protected static int compareValues(Object o1, Object o2) {
+    if (o1 == o2) {
+      return 0;
+    }
+    if (null == o1 || null == o2) {
+      return null == o1 ? -1 : 1;
+    }
+    if (o1 instanceof Number && o2 instanceof Number && o1.getClass() != o2.getClass()) {
+      final Number n1 = (Number) o1;
+      final Number n2 = (Number) o2;
+      if (isIntegral(n1) && isIntegral(n2)) {
+        return n1.longValue() < n2.longValue() ? -1 : (n1.longValue() == n2.longValue() ? 0 : 1);
+      }
+      return Double.compare(n1.doubleValue(), n2.doubleValue());
+    }
+    if (o1.getClass() != o2.getClass()) {
+      return o1.getClass().getName().compareTo(o2.getClass().getName());
+    }
+    if (o1 instanceof Comparable) {
+      return ((Comparable) o1).compareTo(o2);
+    }
+    final int h1 = o1.hashCode();
+    final int h2 = o2.hashCode();
+    return h1 < h2 ? -1 : (h1 == h2 ? 0 : 1);
+  }
+
+  private static boolean isIntegral(Number n) {
+    return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+  }
+
+  @Override
+  public void deleteValues(Object tx, Collection<InMemoryKey> keys) throws IOException {
+    for (InMemoryKey key : keys) {
+      deleteValue(tx, key);
+    }
+  }
+
+  @Override
+  public Map<InMemoryKey, Map<String, Object>> readValues(Object tx, Collection<InMemoryKey> keys) throws IOException {
+    final Map<InMemoryKey, Map<String, Object>> values = new LinkedHashMap<InMemoryKey, Map<String, Object>>();
+    for (InMemoryKey key : keys) {
+      final Map<String, Object> value = readValue(tx, key);
+      if (null != value) {
+        values.put(key, value);
+      }
+    }
+    return values;
+  }
+
+  protected <V> Future<V> submit(Callable<V> task) {
+    return executor.submit(task);
+  }
+
+  @Override
+  public Future<Map<String, Object>> readFuture(final Object tx, final InMemoryKey key) throws IOException {
+    return submit(new Callable<Map<String, Object>>() {
+      @Override
+      public Map<String, Object> call() throws Exception {
+        return readValue(tx, key);
+      }
+    });
+  }
+
+  @Override
+  public Future<InMemoryKey> writeFuture(final Object tx, final InMemoryKey key, final Map<String, Object> value) throws IOException {
+    return submit(new Callable<InMemoryKey>() {
+      @Override
+      public InMemoryKey call() throws Exception {
+        return writeValue(tx, key, value);
+      }
+    });
+  }
+
+  @Override
+  public Future<List<InMemoryKey>> writeFutures(final Object tx, final Collection<Map<String, Object>> values) throws IOException {
+    return submit(new Callable<List<InMemoryKey>>() {
+      @Override
+      public List<InMemoryKey> call() throws Exception {
+        return writeValues(tx, values);
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> deleteFuture(final Object tx, final InMemoryKey key) throws IOException {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        deleteValue(tx, key);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> deleteFutures(final Object tx, final Collection<InMemoryKey> keys) throws IOException {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        deleteValues(tx, keys);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Selects the first entries in order, with a heap bounded by limit if one is specified.
+   * @param filters the filters to match, or null if the entries are matched already
+   * @param after select only entries ordered after this one, or null
+   * @param limit the number of entries to return, or a negative value for all
+   */
+  protected static List<Map.Entry<InMemoryKey, Map<String, Object>>> top(Iterable<Map.Entry<InMemoryKey, Map<String, Object>>> entries,
+                                                                  Filter[] filters,
+                                                                  Comparator<Map.Entry<InMemoryKey, Map<String, Object>>> order,
+                                                                  Map.Entry<InMemoryKey, Map<String, Object>> after,
+                                                                  int limit) {
+    if (0 == limit) {
+      return Collections.emptyList();
+    }
+    final List<Map.Entry<InMemoryKey, Map<String, Object>>> top;
+    if (0 > limit) {
+      top = new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>();
+      for (Map.Entry<InMemoryKey, Map<String, Object>> entry : entries) {
+        if ((null == filters || matchAll(entry.getValue(), filters)) && (null == after || 0 < order.compare(entry, after))) {
+          top.add(entry);
+        }
+      }
+    }
+    else {
+      // a max-heap of the limit smallest entries so far
+      final PriorityQueue<Map.Entry<InMemoryKey, Map<String, Object>>> heap =
+        new PriorityQueue<Map.Entry<InMemoryKey, Map<String, Object>>>(limit + 1, Collections.reverseOrder(order));
+      for (Map.Entry<InMemoryKey, Map<String, Object>> entry : entries) {
+        if ((null == filters || matchAll(entry.getValue(), filters)) && (null == after || 0 < order.compare(entry, after))) {
+          if (heap.size() < limit) {
+            heap.add(entry);
+          }
+          else if (order.compare(entry, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(entry);
+          }
+        }
+      }
+      top = new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>(heap);
+    }
+    Collections.sort(top, order);
+    return top;
+  }
+
+  /**
+   * Orders the scanned entries, and returns the requested range of them.
+   * @param entries the matching entries, in any order
+   */
+  protected static Iterable<Map<String, Object>> queryScanned(List<Map.Entry<InMemoryKey, Map<String, Object>>> entries,
+                                                              boolean keysOnly, int offset, int limit,
+                                                              String primaryOrderBy, boolean primaryIsAscending,
+                                                              String secondaryOrderBy, boolean secondaryIsAscending) {
+    final int skip = Math.max(0, offset);
+    final List<Map.Entry<InMemoryKey, Map<String, Object>>> top = top(entries, null,
+      ordering(primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending), null,
+      0 < limit ? skip + limit : limit);
+
+    final Collection<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+    for (int i = skip; i < top.size(); i++) {
+      final Map<String, Object> value = top.get(i).getValue();
+      values.add(keysOnly ? keysOnly(value) : value);
+    }
+    return values;
+  }
+
+  /**
+   * Orders the scanned entries, and returns the page after the cursor.
+   * @param entries the matching entries, in any order
+   */
+  protected CursorPage<Map<String, Object>> pageScanned(List<Map.Entry<InMemoryKey, Map<String, Object>>> entries,
+                                                        boolean keysOnly, int requestedPageSize,
+                                                        String primaryOrderBy, boolean primaryIsAscending,
+                                                        String secondaryOrderBy, boolean secondaryIsAscending,
+                                                        Collection<String> projections, String cursorString) {
+    final CursorPage<Map<String, Object>> page = new CursorPage<Map<String, Object>>();
+    final Collection<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+    page.setItems(values);
+
+    // the cursor is the key and order values of the last item on the previous page
+    final Map.Entry<InMemoryKey, Map<String, Object>> after = null == cursorString ? null :
+      null == primaryOrderBy ? new AbstractMap.SimpleImmutableEntry<InMemoryKey, Map<String, Object>>(
+        decodeKey(cursorString), Collections.<String, Object>emptyMap()) :
+        decodeCursor(cursorString, primaryOrderBy, secondaryOrderBy);
+    final List<Map.Entry<InMemoryKey, Map<String, Object>>> top = top(entries, null,
+      ordering(primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending), after, requestedPageSize);
+
+    for (Map.Entry<InMemoryKey, Map<String, Object>> entry : top) {
+      values.add(keysOnly ? keysOnly(entry.getValue()) :
+        null != projections ? project(entry.getValue(), projections) : entry.getValue());
+    }
+    if (requestedPageSize == top.size()) {
+      final Map.Entry<InMemoryKey, Map<String, Object>> last = top.get(top.size() - 1);
+      page.setCursorKey(null == primaryOrderBy ? encodeKey(last.getKey()) :
+        encodeCursor(last, primaryOrderBy, secondaryOrderBy));
+    }
+    return page;
+  }
+
+  /**
+   * @return the entries of a kind that are descendants of the ancestor key
+   */
+  protected static <V> NavigableMap<InMemoryKey, V> descendants(NavigableMap<InMemoryKey, V> kindMap,
+                                                                InMemoryKey ancestorKey) {
+    // descendants sort right after their ancestor, and before a child key greater than all others
+    return kindMap.subMap(ancestorKey, false, ancestorKey.descendantsEnd(), false);
+  }
+
+  @Override
+  public Map<String, Object> queryUnique(Object tx, InMemoryKey parentKey, String kind, Filter... filters) {
+    final Iterable<Map<String, Object>> iterable = queryIterable(tx, kind, false, 0, 1,
+      parentKey, null, null, false, null, false, filters);
+    final Iterator<Map<String, Object>> iterator = iterable.iterator();
+    return iterator.hasNext() ? iterator.next() : null;
+  }
+
+  protected static String encodeCursor(Map.Entry<InMemoryKey, Map<String, Object>> last,
+                                     String primaryOrderBy, String secondaryOrderBy) {
+    final StringBuilder cursor = new StringBuilder(encodeKey(last.getKey()));
+    cursor.append(CURSOR_SEPARATOR).append(encodeCursorValue(last.getValue().get(primaryOrderBy)));
+    if (null != secondaryOrderBy) {
+      cursor.append(CURSOR_SEPARATOR).append(encodeCursorValue(last.getValue().get(secondaryOrderBy)));
+    }
+    return cursor.toString();
+  }
+
+  /**
+   * @return an entry with the key and order values of the cursor, to compare the candidates with
+   */
+  protected Map.Entry<InMemoryKey, Map<String, Object>> decodeCursor(String cursorString,
+                                                                String primaryOrderBy, String secondaryOrderBy) {
+    final String[] parts = cursorString.split(CURSOR_SEPARATOR, -1);
+    if (parts.length < 2) {
+      throw new IllegalArgumentException("Invalid cursor " + cursorString);
+    }
+    final InMemoryKey key = decodeKey(parts[0]);
+    final Map<String, Object> values = new TreeMap<String, Object>();
+    final Map<String, Object> current;
+    try {
+      current = readValue(null, key);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    values.put(primaryOrderBy, decodeCursorValue(parts[1], current, primaryOrderBy));
+    if (null != secondaryOrderBy && 2 < parts.length) {
+      values.put(secondaryOrderBy, decodeCursorValue(parts[2], current, secondaryOrderBy));
+    }
+    return new AbstractMap.SimpleImmutableEntry<InMemoryKey, Map<String, Object>>(key, values);
+  }
+
+  /** tags the order values by type, so they can be compared after decoding */
+  private static String encodeCursorValue(Object value) {
+    if (null == value) {
+      return "n";
+    }
+    if (value instanceof String) {
+      return "s" + encodeCursorPart((String) value);
+    }
+    if (value instanceof Long) {
+      return "l" + value;
+    }
+    if (value instanceof Integer) {
+      return "i" + value;
+    }
+    if (value instanceof Float) {
+      return "f" + value;
+    }
+    if (value instanceof Boolean) {
+      return "b" + value;
+    }
+    if (value instanceof Date) {
+      return "d" + ((Date) value).getTime();
+    }
+    // other types are looked up from the cursor entity on decode
+    return "?";
+  }
+
+  private static Object decodeCursorValue(String part, Map<String, Object> current, String column) {
+    final String s = part.substring(1);
+    switch (part.charAt(0)) {
+      case 'n':
+        return null;
+      case 's':
+        return decodeCursorPart(s);
+      case 'l':
+        return Long.valueOf(s);
+      case 'i':
+        return Integer.valueOf(s);
+      case 'f':
+        return Float.valueOf(s);
+      case 'b':
+        return Boolean.valueOf(s);
+      case 'd':
+        return new Date(Long.parseLong(s));
+      default:
+        return null != current ? current.get(column) : null;
+    }
+  }
+
+  @Override
+  public List<InMemoryKey> writeValues(Object tx, Collection<Map<String, Object>> values) throws IOException {
+    final List<InMemoryKey> keys = new ArrayList<InMemoryKey>(values.size());
+    for (Map<String, Object> value : values) {
+      keys.add(writeValue(tx, (InMemoryKey) value.get(NAME_KEY), value));
+    }
+    return keys;
+  }
+}
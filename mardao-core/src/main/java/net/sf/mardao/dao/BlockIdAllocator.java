@@ -0,0 +1,101 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leases blocks of ids per kind from a store's IdAllocator, and hands them out locally.
+ * Allocating from the current block is lock-free, only leasing the next block is synchronized.
+ * Ids remaining in a block are lost when the allocator is discarded, like with Datastore allocateIds.
+ * Ids written explicitly should be reserved with {@link #reserveId(String, long)}, not to be handed out
+ * from the current block. Ids of later blocks are up to the store, see {@link IdAllocator}.
+ */
+public class BlockIdAllocator implements IdAllocator {
+
+  private final IdAllocator delegate;
+  private final int blockSize;
+  private final ConcurrentMap<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+
+  public BlockIdAllocator(IdAllocator delegate, int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be positive");
+    }
+    this.delegate = delegate;
+    this.blockSize = blockSize;
+  }
+
+  public long allocateId(String kind) {
+    return allocateIds(kind, 1);
+  }
+
+  @Override
+  public long allocateIds(String kind, int size) {
+    if (blockSize < size) {
+      return delegate.allocateIds(kind, size);
+    }
+    while (true) {
+      final Block block = blocks.get(kind);
+      if (null != block) {
+        final long first = block.next.getAndAdd(size);
+        if (first + size <= block.end) {
+          return first;
+        }
+      }
+      lease(kind, block);
+    }
+  }
+
+  /**
+   * Reserves an id written explicitly, by discarding the current block if it would hand it out.
+   * The next block is leased from the store with a single call, the store itself decides if it skips
+   * ids written explicitly; the in-memory suppliers do, the Datastore does not.
+   */
+  public void reserveId(String kind, long id) {
+    final Block block = blocks.get(kind);
+    if (null != block && block.next.get() <= id && id < block.end) {
+      lease(kind, block);
+    }
+  }
+
+  /** leases the next block, unless another thread already replaced the exhausted one */
+  private synchronized void lease(String kind, Block exhausted) {
+    if (exhausted != blocks.get(kind)) {
+      return;
+    }
+    final long start = delegate.allocateIds(kind, blockSize);
+    blocks.put(kind, new Block(start, start + blockSize));
+  }
+
+  private static final class Block {
+    final AtomicLong next;
+    final long end;
+
+    Block(long start, long end) {
+      this.next = new AtomicLong(start);
+      this.end = end;
+    }
+  }
+}
@@ -0,0 +1,387 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.ImmediateFuture;
+import net.sf.mardao.core.filter.Filter;
+
+/**
+ * Write-behind Supplier decorator, which coalesces writes and deletes per key, last write wins.
+ * Pending writes are kept per thread and transaction, and are flushed to the delegate in batches:
+ * when committing the transaction, when {@link #flush()} is invoked at the end of a unit of work,
+ * when maxPending is reached, or before a query.
+ * Reads of pending keys are served from the buffer.
+ *
+ * Callers must flush at the end of each unit of work, preferably with
+ * {@link AbstractDao#withUnitOfWork(TransFunc)}. Otherwise, on pooled threads, non-transactional writes
+ * are lost or flushed by the next unit of work on the same thread.
+ *
+ * Writes of values with incomplete keys (generated ids) go straight to the delegate.
+ * Requires that write values are readable as read values, as for InMemorySupplier and DatastoreSupplier.
+ */
+public class BufferedSupplier<K, RV, WV, T> extends DelegatingSupplier<K, RV, WV, T> {
+
+  public static final int DEFAULT_MAX_PENDING = 500;
+
+  private final int maxPending;
+
+  /** per thread, pending writes per transaction. A null value is a pending delete. */
+  private final ThreadLocal<Map<T, Map<K, WV>>> pending = new ThreadLocal<Map<T, Map<K, WV>>>() {
+    @Override
+    protected Map<T, Map<K, WV>> initialValue() {
+      return new IdentityHashMap<T, Map<K, WV>>();
+    }
+  };
+
+  public BufferedSupplier(Supplier<K, RV, WV, T> delegate) {
+    this(delegate, DEFAULT_MAX_PENDING);
+  }
+
+  public BufferedSupplier(Supplier<K, RV, WV, T> delegate, int maxPending) {
+    super(delegate);
+    this.maxPending = maxPending;
+  }
+
+  // --- buffer methods ---
+
+  /**
+   * Flushes all pending writes and deletes of the current thread. Invoke at the end of a unit of work.
+   */
+  @Override
+  public void flush() throws IOException {
+    final Map<T, Map<K, WV>> buffers = pending.get();
+    try {
+      for (Map.Entry<T, Map<K, WV>> entry : new ArrayList<Map.Entry<T, Map<K, WV>>>(buffers.entrySet())) {
+        flush(entry.getKey(), entry.getValue());
+      }
+    }
+    finally {
+      // not to carry failed writes over to the next unit of work on this thread
+      pending.remove();
+    }
+  }
+
+  /**
+   * @return the number of pending writes and deletes for the current thread
+   */
+  public int getPendingCount() {
+    int count = 0;
+    for (Map<K, WV> buffer : pending.get().values()) {
+      count += buffer.size();
+    }
+    return count;
+  }
+
+  protected void flush(T tx) throws IOException {
+    final Map<K, WV> buffer = pending.get().get(tx);
+    if (null != buffer) {
+      flush(tx, buffer);
+    }
+  }
+
+  private void flush(T tx, Map<K, WV> buffer) throws IOException {
+    final List<WV> writes = new ArrayList<WV>();
+    final List<K> deletes = new ArrayList<K>();
+    for (Map.Entry<K, WV> entry : buffer.entrySet()) {
+      if (null != entry.getValue()) {
+        writes.add(entry.getValue());
+      }
+      else {
+        deletes.add(entry.getKey());
+      }
+    }
+    if (!writes.isEmpty()) {
+      delegate.writeValues(tx, writes);
+    }
+    if (!deletes.isEmpty()) {
+      delegate.deleteValues(tx, deletes);
+    }
+    buffer.clear();
+  }
+
+  private Map<K, WV> buffer(T tx) {
+    final Map<T, Map<K, WV>> buffers = pending.get();
+    Map<K, WV> buffer = buffers.get(tx);
+    if (null == buffer) {
+      buffer = new LinkedHashMap<K, WV>();
+      buffers.put(tx, buffer);
+    }
+    return buffer;
+  }
+
+  private void bufferValue(T tx, K key, WV value) throws IOException {
+    final Map<K, WV> buffer = buffer(tx);
+    buffer.put(key, value);
+    if (maxPending <= buffer.size()) {
+      flush(tx, buffer);
+    }
+  }
+
+  private boolean isPending(T tx, K key) {
+    final Map<K, WV> buffer = pending.get().get(tx);
+    return null != buffer && buffer.containsKey(key);
+  }
+
+  private void removePending(T tx, K key) {
+    final Map<K, WV> buffer = pending.get().get(tx);
+    if (null != buffer) {
+      buffer.remove(key);
+    }
+  }
+
+  /**
+   * Only values with complete keys can be buffered, as the key is returned before the write.
+   */
+  protected boolean isComplete(K key) {
+    if (null == key) {
+      return false;
+    }
+    if (null != delegate.toStringKey(key)) {
+      return true;
+    }
+    try {
+      final Long id = delegate.toLongKey(key);
+      return null != id && 0L != id;
+    } catch (RuntimeException notNumeric) {
+      return false;
+    }
+  }
+
+  // --- write methods ---
+
+  @Override
+  public K writeValue(T tx, K key, WV value) throws IOException {
+    if (!isComplete(key)) {
+      return delegate.writeValue(tx, key, value);
+    }
+    bufferValue(tx, key, value);
+    return key;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<K> writeValues(T tx, Collection<WV> values) throws IOException {
+    final List<K> keys = new ArrayList<K>(values.size());
+    final List<WV> incomplete = new ArrayList<WV>();
+    for (WV value : values) {
+      final K key = delegate.getKey((RV) value, null);
+      if (isComplete(key)) {
+        bufferValue(tx, key, value);
+      }
+      else {
+        incomplete.add(value);
+      }
+      keys.add(key);
+    }
+
+    if (!incomplete.isEmpty()) {
+      final List<K> generated = delegate.writeValues(tx, incomplete);
+      for (int i = 0, g = 0; i < keys.size(); i++) {
+        if (!isComplete(keys.get(i))) {
+          keys.set(i, generated.get(g++));
+        }
+      }
+    }
+    return keys;
+  }
+
+  @Override
+  public Future<K> writeFuture(T tx, K key, WV value) throws IOException {
+    if (!isComplete(key)) {
+      return delegate.writeFuture(tx, key, value);
+    }
+    bufferValue(tx, key, value);
+    return new ImmediateFuture<K>(key);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Future<List<K>> writeFutures(T tx, Collection<WV> values) throws IOException {
+    for (WV value : values) {
+      if (!isComplete(delegate.getKey((RV) value, null))) {
+        // write through, but do not let stale pending values overwrite these later
+        for (WV v : values) {
+          removePending(tx, delegate.getKey((RV) v, null));
+        }
+        return delegate.writeFutures(tx, values);
+      }
+    }
+    return new ImmediateFuture<List<K>>(writeValues(tx, values));
+  }
+
+  @Override
+  public void deleteValue(T tx, K key) throws IOException {
+    bufferValue(tx, key, null);
+  }
+
+  @Override
+  public void deleteValues(T tx, Collection<K> keys) throws IOException {
+    for (K key : keys) {
+      bufferValue(tx, key, null);
+    }
+  }
+
+  @Override
+  public Future<Void> deleteFuture(T tx, K key) throws IOException {
+    deleteValue(tx, key);
+    return new ImmediateFuture<Void>(null);
+  }
+
+  @Override
+  public Future<Void> deleteFutures(T tx, Collection<K> keys) throws IOException {
+    deleteValues(tx, keys);
+    return new ImmediateFuture<Void>(null);
+  }
+
+  // --- read methods ---
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public RV readValue(T tx, K key) throws IOException {
+    if (isPending(tx, key)) {
+      return (RV) pending.get().get(tx).get(key);
+    }
+    return delegate.readValue(tx, key);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Map<K, RV> readValues(T tx, Collection<K> keys) throws IOException {
+    final Map<K, WV> buffer = pending.get().get(tx);
+    if (null == buffer || buffer.isEmpty()) {
+      return delegate.readValues(tx, keys);
+    }
+
+    final List<K> remaining = new ArrayList<K>();
+    for (K key : keys) {
+      if (!buffer.containsKey(key)) {
+        remaining.add(key);
+      }
+    }
+    final Map<K, RV> read = remaining.isEmpty() ? null : delegate.readValues(tx, remaining);
+    final Map<K, RV> values = new LinkedHashMap<K, RV>();
+    for (K key : keys) {
+      final RV value = buffer.containsKey(key) ? (RV) buffer.get(key) : read.get(key);
+      if (null != value) {
+        values.put(key, value);
+      }
+    }
+    return values;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Future<RV> readFuture(T tx, K key) throws IOException {
+    if (isPending(tx, key)) {
+      return new ImmediateFuture<RV>((RV) pending.get().get(tx).get(key));
+    }
+    return delegate.readFuture(tx, key);
+  }
+
+  // --- transaction methods ---
+
+  /**
+   * Flushes the non-transactional writes first, so that they are visible within the transaction.
+   */
+  @Override
+  public T beginTransaction() {
+    flushUnchecked(null);
+    return delegate.beginTransaction();
+  }
+
+  @Override
+  public void commitTransaction(T transaction) {
+    flushUnchecked(transaction);
+    pending.get().remove(transaction);
+    delegate.commitTransaction(transaction);
+  }
+
+  @Override
+  public void rollbackActiveTransaction(T transaction) {
+    pending.get().remove(transaction);
+    delegate.rollbackActiveTransaction(transaction);
+  }
+
+  private void flushUnchecked(T tx) {
+    try {
+      flush(tx);
+    } catch (IOException e) {
+      throw new IllegalStateException("Flushing pending writes", e);
+    }
+  }
+
+  // --- query methods flush first, to see pending writes ---
+
+  @Override
+  public int count(T tx, String kind, K ancestorKey, K simpleKey, Filter... filters) {
+    flushUnchecked(tx);
+    return super.count(tx, kind, ancestorKey, simpleKey, filters);
+  }
+
+  @Override
+  public Future<Integer> countFuture(T tx, String kind, K ancestorKey, K simpleKey, int limit, Filter... filters) {
+    flushUnchecked(tx);
+    return super.countFuture(tx, kind, ancestorKey, simpleKey, limit, filters);
+  }
+
+  @Override
+  public Iterable<RV> queryIterable(T tx, String kind, boolean keysOnly, int offset, int limit,
+                                    K ancestorKey, K simpleKey,
+                                    String primaryOrderBy, boolean primaryIsAscending,
+                                    String secondaryOrderBy, boolean secondaryIsAscending,
+                                    Filter... filters) {
+    flushUnchecked(tx);
+    return super.queryIterable(tx, kind, keysOnly, offset, limit, ancestorKey, simpleKey,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending, filters);
+  }
+
+  @Override
+  public RV queryUnique(T tx, K parentKey, String kind, Filter... filters) {
+    flushUnchecked(tx);
+    return super.queryUnique(tx, parentKey, kind, filters);
+  }
+
+  @Override
+  public CursorPage<RV> queryPage(T tx, String kind, boolean keysOnly,
+                                  int requestedPageSize, K ancestorKey,
+                                  String primaryOrderBy, boolean primaryIsAscending,
+                                  String secondaryOrderBy, boolean secondaryIsAscending,
+                                  Collection<String> projections,
+                                  String cursorString,
+                                  Filter... filters) {
+    flushUnchecked(tx);
+    return super.queryPage(tx, kind, keysOnly, requestedPageSize, ancestorKey,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending,
+      projections, cursorString, filters);
+  }
+}
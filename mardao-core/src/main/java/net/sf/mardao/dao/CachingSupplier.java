@@ -0,0 +1,627 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.mardao.core.ImmediateFuture;
+
+/**
+ * Read-through entity cache decorator for any Supplier.
+ * Caches the values of non-transactional readValue, readValues and readFuture calls in a bounded,
+ * segmented LRU cache with optional time-to-live. Writes and deletes through this Supplier invalidate
+ * the written keys, again when the transaction commits or rolls back and again when write futures complete.
+ * Keys with an async write in flight are not populated.
+ * A read racing with an invalidation of the same segment does not populate the cache.
+ *
+ * Caching is enabled for all kinds, or only for the kinds specified in the constructor,
+ * and can be toggled per kind with {@link #setKindEnabled(String, boolean)}.
+ * Override {@link #weigh(Object, Object)} to bound the cache by an estimated value size rather than entry count.
+ */
+public class CachingSupplier<K, RV, WV, T> extends DelegatingSupplier<K, RV, WV, T> {
+
+  public static final int SEGMENTS = 16;
+
+  private final Segment<K, RV>[] segments;
+  private final long ttlMillis;
+  private final boolean allKinds;
+  private final ConcurrentMap<String, Boolean> kinds = new ConcurrentHashMap<String, Boolean>();
+  private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+  /** keys written per transaction, invalidated again at commit or rollback */
+  private final Map<T, Collection<K>> transactionWrites =
+    Collections.synchronizedMap(new IdentityHashMap<T, Collection<K>>());
+
+  /**
+   * @param maxWeight the maximum total weight of cached values, by default the number of entries,
+   *                  split across {@link #SEGMENTS} segments
+   * @param ttlMillis time-to-live for cached values, or 0 to keep until evicted or invalidated
+   * @param kinds the kinds to cache, or none to cache all kinds
+   */
+  @SuppressWarnings("unchecked")
+  public CachingSupplier(Supplier<K, RV, WV, T> delegate, long maxWeight, long ttlMillis, String... kinds) {
+    super(delegate);
+    this.ttlMillis = ttlMillis;
+    this.allKinds = 0 == kinds.length;
+    for (String kind : kinds) {
+      this.kinds.put(kind, Boolean.TRUE);
+    }
+    this.segments = new Segment[SEGMENTS];
+    // split exactly, below SEGMENTS entries some segments hold nothing
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment<K, RV>(maxWeight / SEGMENTS + (i < maxWeight % SEGMENTS ? 1L : 0L));
+    }
+  }
+
+  // --- cache methods ---
+
+  /**
+   * Override to weigh values by estimated size. The default weight is 1 per entry.
+   */
+  protected int weigh(K key, RV value) {
+    return 1;
+  }
+
+  public boolean isKindEnabled(String kind) {
+    final Boolean enabled = kinds.get(kind);
+    return null != enabled ? enabled : allKinds;
+  }
+
+  /**
+   * Enables or disables caching for a kind. Disabling removes the cached values of the kind.
+   */
+  public void setKindEnabled(String kind, boolean enabled) {
+    kinds.put(kind, enabled);
+    if (!enabled) {
+      for (Segment<K, RV> segment : segments) {
+        segment.removeKind(kind);
+      }
+    }
+  }
+
+  public void invalidate(K key) {
+    if (null != key) {
+      segmentFor(key).remove(key);
+    }
+  }
+
+  public void invalidateAll() {
+    for (Segment<K, RV> segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * @return the hit, miss and eviction counters for the kind
+   */
+  public Stats getStats(String kind) {
+    Stats s = stats.get(kind);
+    if (null == s) {
+      final Stats created = new Stats();
+      s = stats.putIfAbsent(kind, created);
+      if (null == s) {
+        s = created;
+      }
+    }
+    return s;
+  }
+
+  /**
+   * @return the number of cached entries, including expired ones not yet removed
+   */
+  public int size() {
+    int size = 0;
+    for (Segment<K, RV> segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  private boolean isCached(T tx, K key) {
+    // transactional reads must reach the store, to be isolated and tracked
+    return null == tx && null != key && isKindEnabled(delegate.toKind(key));
+  }
+
+  private Segment<K, RV> segmentFor(K key) {
+    final int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  private void populate(K key, RV value, long generation) {
+    if (null != value) {
+      final String kind = delegate.toKind(key);
+      final long expires = 0L < ttlMillis ? System.currentTimeMillis() + ttlMillis : 0L;
+      final int evicted = segmentFor(key).put(key,
+        new CacheEntry<RV>(value, kind, weigh(key, value), expires), generation, this);
+      if (0 < evicted) {
+        getStats(kind).evictions.addAndGet(evicted);
+      }
+    }
+  }
+
+  private void invalidateWritten(T tx, Collection<K> keys) {
+    for (K key : keys) {
+      invalidate(key);
+    }
+    if (null != tx) {
+      synchronized (transactionWrites) {
+        Collection<K> written = transactionWrites.get(tx);
+        if (null == written) {
+          written = new ArrayList<K>();
+          transactionWrites.put(tx, written);
+        }
+        written.addAll(keys);
+      }
+    }
+  }
+
+  /**
+   * Invalidates the written keys now, and again once the write future is seen completed,
+   * whether or not its result is ever requested. Each segment tracks the pending writes of its keys.
+   */
+  private <V> Future<V> invalidateWritten(T tx, Collection<K> keys, Future<V> future) {
+    invalidateWritten(tx, keys);
+    final Map<Segment<K, RV>, List<K>> bySegment = new IdentityHashMap<Segment<K, RV>, List<K>>();
+    for (K key : keys) {
+      final Segment<K, RV> segment = segmentFor(key);
+      List<K> segmentKeys = bySegment.get(segment);
+      if (null == segmentKeys) {
+        segmentKeys = new ArrayList<K>();
+        bySegment.put(segment, segmentKeys);
+      }
+      segmentKeys.add(key);
+    }
+    for (Map.Entry<Segment<K, RV>, List<K>> entry : bySegment.entrySet()) {
+      entry.getKey().addPendingWrite(future, entry.getValue());
+    }
+    return future;
+  }
+
+  private void invalidateTransaction(T tx) {
+    final Collection<K> written = transactionWrites.remove(tx);
+    if (null != written) {
+      for (K key : written) {
+        invalidate(key);
+      }
+    }
+  }
+
+  // --- read methods ---
+
+  @Override
+  public RV readValue(T tx, K key) throws IOException {
+    if (!isCached(tx, key)) {
+      return delegate.readValue(tx, key);
+    }
+    final Segment<K, RV> segment = segmentFor(key);
+    final Stats s = getStats(delegate.toKind(key));
+    final RV cached = segment.get(key);
+    if (null != cached) {
+      s.hits.incrementAndGet();
+      return cached;
+    }
+    s.misses.incrementAndGet();
+    final long generation = segment.getGeneration();
+    final RV value = delegate.readValue(tx, key);
+    populate(key, value, generation);
+    return value;
+  }
+
+  @Override
+  public Map<K, RV> readValues(T tx, Collection<K> keys) throws IOException {
+    if (null != tx) {
+      return delegate.readValues(tx, keys);
+    }
+    final Map<K, RV> found = new LinkedHashMap<K, RV>();
+    final List<K> missing = new ArrayList<K>();
+    final Map<K, Long> generations = new IdentityHashMap<K, Long>();
+    for (K key : keys) {
+      if (!isCached(tx, key)) {
+        missing.add(key);
+        continue;
+      }
+      final Segment<K, RV> segment = segmentFor(key);
+      final Stats s = getStats(delegate.toKind(key));
+      final RV cached = segment.get(key);
+      if (null != cached) {
+        s.hits.incrementAndGet();
+        found.put(key, cached);
+      }
+      else {
+        s.misses.incrementAndGet();
+        generations.put(key, segment.getGeneration());
+        missing.add(key);
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      final Map<K, RV> read = delegate.readValues(tx, missing);
+      for (K key : missing) {
+        final Long generation = generations.get(key);
+        final RV value = read.get(key);
+        if (null != generation) {
+          populate(key, value, generation);
+        }
+        if (null != value) {
+          found.put(key, value);
+        }
+      }
+    }
+
+    // in the order of the requested keys
+    final Map<K, RV> values = new LinkedHashMap<K, RV>();
+    for (K key : keys) {
+      final RV value = found.get(key);
+      if (null != value) {
+        values.put(key, value);
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public Future<RV> readFuture(T tx, K key) throws IOException {
+    if (!isCached(tx, key)) {
+      return delegate.readFuture(tx, key);
+    }
+    final Segment<K, RV> segment = segmentFor(key);
+    final Stats s = getStats(delegate.toKind(key));
+    final RV cached = segment.get(key);
+    if (null != cached) {
+      s.hits.incrementAndGet();
+      return new ImmediateFuture<RV>(cached);
+    }
+    s.misses.incrementAndGet();
+    final long generation = segment.getGeneration();
+    return new PopulatingFuture(delegate.readFuture(tx, key), key, generation);
+  }
+
+  // --- write methods ---
+
+  @Override
+  public K writeValue(T tx, K key, WV value) throws IOException {
+    final K written = delegate.writeValue(tx, key, value);
+    invalidateWritten(tx, Collections.singletonList(written));
+    return written;
+  }
+
+  @Override
+  public List<K> writeValues(T tx, Collection<WV> values) throws IOException {
+    final List<K> written = delegate.writeValues(tx, values);
+    invalidateWritten(tx, written);
+    return written;
+  }
+
+  @Override
+  public Future<K> writeFuture(T tx, K key, WV value) throws IOException {
+    final Future<K> future = delegate.writeFuture(tx, key, value);
+    final List<K> keys = null != key ? Collections.singletonList(key) : Collections.<K>emptyList();
+    return invalidateWritten(tx, keys, future);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Future<List<K>> writeFutures(T tx, Collection<WV> values) throws IOException {
+    final Future<List<K>> future = delegate.writeFutures(tx, values);
+    final List<K> keys = new ArrayList<K>(values.size());
+    for (WV value : values) {
+      final K key = delegate.getKey((RV) value, null);
+      if (null != key) {
+        keys.add(key);
+      }
+    }
+    return invalidateWritten(tx, keys, future);
+  }
+
+  @Override
+  public void deleteValue(T tx, K key) throws IOException {
+    delegate.deleteValue(tx, key);
+    invalidateWritten(tx, Collections.singletonList(key));
+  }
+
+  @Override
+  public void deleteValues(T tx, Collection<K> keys) throws IOException {
+    delegate.deleteValues(tx, keys);
+    invalidateWritten(tx, keys);
+  }
+
+  @Override
+  public Future<Void> deleteFuture(T tx, K key) throws IOException {
+    final Future<Void> future = delegate.deleteFuture(tx, key);
+    return invalidateWritten(tx, Collections.singletonList(key), future);
+  }
+
+  @Override
+  public Future<Void> deleteFutures(T tx, Collection<K> keys) throws IOException {
+    final Future<Void> future = delegate.deleteFutures(tx, keys);
+    return invalidateWritten(tx, keys, future);
+  }
+
+  // --- transaction methods ---
+
+  @Override
+  public void commitTransaction(T transaction) {
+    try {
+      delegate.commitTransaction(transaction);
+    }
+    finally {
+      invalidateTransaction(transaction);
+    }
+  }
+
+  @Override
+  public void rollbackActiveTransaction(T transaction) {
+    try {
+      delegate.rollbackActiveTransaction(transaction);
+    }
+    finally {
+      invalidateTransaction(transaction);
+    }
+  }
+
+  // --- cache internals ---
+
+  /** Counters per kind */
+  public static class Stats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public long getHitCount() {
+      return hits.get();
+    }
+
+    public long getMissCount() {
+      return misses.get();
+    }
+
+    public long getEvictionCount() {
+      return evictions.get();
+    }
+
+    public double getHitRate() {
+      final long requests = hits.get() + misses.get();
+      return 0L < requests ? (double) hits.get() / requests : 0.0;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{ hits:" + hits + ", misses:" + misses + ", evictions:" + evictions + "}";
+    }
+  }
+
+  private static final class CacheEntry<V> {
+    final V value;
+    final String kind;
+    final int weight;
+    final long expires;
+
+    CacheEntry(V value, String kind, int weight, long expires) {
+      this.value = value;
+      this.kind = kind;
+      this.weight = weight;
+      this.expires = expires;
+    }
+
+    boolean isExpired(long now) {
+      return 0L != expires && expires <= now;
+    }
+  }
+
+  /** An access-ordered LRU map, guarded by its own monitor */
+  private static final class Segment<K, V> {
+    private final LinkedHashMap<K, CacheEntry<V>> map = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+    private final long maxWeight;
+    private long weight;
+    /** incremented on every invalidation, to not populate with values read before it */
+    private long generation;
+    /** async writes not yet seen completed, with their keys in this segment */
+    private final List<PendingWrite<K>> pendingWrites = new ArrayList<PendingWrite<K>>();
+    /** the number of pending async writes per key, not to populate a key while it is written */
+    private final Map<K, Integer> keysInFlight = new HashMap<K, Integer>();
+
+    Segment(long maxWeight) {
+      this.maxWeight = maxWeight;
+    }
+
+    synchronized long getGeneration() {
+      return generation;
+    }
+
+    synchronized int size() {
+      return map.size();
+    }
+
+    synchronized V get(K key) {
+      final CacheEntry<V> entry = map.get(key);
+      if (null == entry) {
+        return null;
+      }
+      if (entry.isExpired(System.currentTimeMillis())) {
+        map.remove(key);
+        weight -= entry.weight;
+        return null;
+      }
+      return entry.value;
+    }
+
+    /**
+     * @return the number of evicted entries
+     */
+    synchronized int put(K key, CacheEntry<V> entry, long readGeneration, CachingSupplier<K, V, ?, ?> cache) {
+      completeWrites();
+      if (readGeneration != generation || keysInFlight.containsKey(key)) {
+        return 0;
+      }
+      // too heavy for this segment, keep the segment within its share of the weight
+      if (maxWeight < entry.weight) {
+        final CacheEntry<V> previous = map.remove(key);
+        if (null != previous) {
+          weight -= previous.weight;
+        }
+        return 0;
+      }
+      final CacheEntry<V> previous = map.put(key, entry);
+      if (null != previous) {
+        weight -= previous.weight;
+      }
+      weight += entry.weight;
+
+      int evicted = 0;
+      final Iterator<Map.Entry<K, CacheEntry<V>>> eldest = map.entrySet().iterator();
+      while (maxWeight < weight && eldest.hasNext()) {
+        final CacheEntry<V> e = eldest.next().getValue();
+        if (e == entry) {
+          continue;
+        }
+        eldest.remove();
+        weight -= e.weight;
+        evicted++;
+      }
+      return evicted;
+    }
+
+    synchronized void addPendingWrite(Future<?> future, List<K> keys) {
+      completeWrites();
+      pendingWrites.add(new PendingWrite<K>(future, keys));
+      for (K key : keys) {
+        final Integer count = keysInFlight.get(key);
+        keysInFlight.put(key, null != count ? count + 1 : 1);
+      }
+    }
+
+    /**
+     * Invalidates the keys of the async writes completed since last checked.
+     * Futures offer no completion callback, so completion is polled before every populate and async write.
+     */
+    private void completeWrites() {
+      final Iterator<PendingWrite<K>> pending = pendingWrites.iterator();
+      while (pending.hasNext()) {
+        final PendingWrite<K> write = pending.next();
+        if (write.future.isDone()) {
+          pending.remove();
+          for (K key : write.keys) {
+            remove(key);
+            final int count = keysInFlight.remove(key) - 1;
+            if (0 < count) {
+              keysInFlight.put(key, count);
+            }
+          }
+        }
+      }
+    }
+
+    synchronized void remove(K key) {
+      generation++;
+      final CacheEntry<V> previous = map.remove(key);
+      if (null != previous) {
+        weight -= previous.weight;
+      }
+    }
+
+    synchronized void removeKind(String kind) {
+      generation++;
+      for (Iterator<CacheEntry<V>> i = map.values().iterator(); i.hasNext(); ) {
+        final CacheEntry<V> e = i.next();
+        if (kind.equals(e.kind)) {
+          i.remove();
+          weight -= e.weight;
+        }
+      }
+    }
+
+    synchronized void clear() {
+      generation++;
+      map.clear();
+      weight = 0L;
+    }
+  }
+
+  /** Populates the cache when a read future is resolved */
+  private class PopulatingFuture implements Future<RV> {
+    private final Future<RV> future;
+    private final K key;
+    private final long generation;
+
+    PopulatingFuture(Future<RV> future, K key, long generation) {
+      this.future = future;
+      this.key = key;
+      this.generation = generation;
+    }
+
+    @Override
+    public boolean cancel(boolean b) {
+      return future.cancel(b);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return future.isDone();
+    }
+
+    @Override
+    public RV get() throws InterruptedException, ExecutionException {
+      final RV value = future.get();
+      populate(key, value, generation);
+      return value;
+    }
+
+    @Override
+    public RV get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+      final RV value = future.get(l, timeUnit);
+      populate(key, value, generation);
+      return value;
+    }
+  }
+
+  /** An async write not yet seen completed, and the keys it writes in a segment */
+  private static final class PendingWrite<K> {
+    final Future<?> future;
+    final List<K> keys;
+
+    PendingWrite(Future<?> future, List<K> keys) {
+      this.future = future;
+      this.keys = keys;
+    }
+  }
+}
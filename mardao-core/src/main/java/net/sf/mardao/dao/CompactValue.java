@@ -0,0 +1,335 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An immutable, compact entity value for {@link InMemorySupplier}.
+ * The column names and types are shared per kind in a {@link Schema}. Long, Integer, Float, Boolean and Date
+ * values are stored as primitive bits, Strings as codes of a per-column dictionary, and other values as references.
+ * The value is read through the Map interface, as the Supplier getters do.
+ */
+final class CompactValue extends AbstractMap<String, Object> {
+
+  /** Strings beyond this many distinct values per column are referenced instead of dictionary-encoded */
+  static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+  /** the schema when encoded, later columns of the kind are null in this value */
+  private final Schema schema;
+  private final InMemoryKey key;
+  private final InMemoryKey parentKey;
+  /** the bits of each column, followed by a bitmap of the columns that have bits */
+  private final long[] bits;
+  /** values that are not encoded as bits, or null if none */
+  private final Object[] refs;
+
+  private CompactValue(Schema schema, InMemoryKey key, InMemoryKey parentKey, long[] bits, Object[] refs) {
+    this.schema = schema;
+    this.key = key;
+    this.parentKey = parentKey;
+    this.bits = bits;
+    this.refs = refs;
+  }
+
+  /**
+   * Encodes the value with the latest schema of its kind, adding columns to the schema as needed.
+   */
+  static CompactValue encode(AtomicReference<Schema> kindSchema, Map<String, Object> value) {
+    Schema schema = kindSchema.get();
+    for (Map.Entry<String, Object> entry : value.entrySet()) {
+      if (null != entry.getValue() && !isKeyColumn(entry.getKey()) && !schema.slots.containsKey(entry.getKey())) {
+        schema = extend(kindSchema, entry.getKey(), Type.of(entry.getValue()));
+      }
+    }
+
+    final int columns = schema.names.length;
+    final long[] bits = new long[columns + (columns + 63) / 64];
+    Object[] refs = null;
+    for (Map.Entry<String, Object> entry : value.entrySet()) {
+      if (null == entry.getValue() || isKeyColumn(entry.getKey())) {
+        continue;
+      }
+      final int slot = schema.slots.get(entry.getKey());
+      final Type type = schema.types[slot];
+      if (type.accepts(entry.getValue()) && schema.encode(slot, entry.getValue(), bits)) {
+        bits[columns + slot / 64] |= 1L << (slot % 64);
+      }
+      else {
+        if (null == refs) {
+          refs = new Object[columns];
+        }
+        refs[slot] = entry.getValue();
+      }
+    }
+    return new CompactValue(schema, (InMemoryKey) value.get(InMemorySupplier.NAME_KEY),
+      (InMemoryKey) value.get(InMemorySupplier.NAME_PARENT_KEY), bits, refs);
+  }
+
+  private static Schema extend(AtomicReference<Schema> kindSchema, String name, Type type) {
+    while (true) {
+      final Schema current = kindSchema.get();
+      if (current.slots.containsKey(name)) {
+        return current;
+      }
+      final Schema extended = current.with(name, type);
+      if (kindSchema.compareAndSet(current, extended)) {
+        return extended;
+      }
+    }
+  }
+
+  private static boolean isKeyColumn(Object column) {
+    return InMemorySupplier.NAME_KEY.equals(column) || InMemorySupplier.NAME_PARENT_KEY.equals(column);
+  }
+
+  @Override
+  public Object get(Object column) {
+    if (InMemorySupplier.NAME_KEY.equals(column)) {
+      return key;
+    }
+    if (InMemorySupplier.NAME_PARENT_KEY.equals(column)) {
+      return parentKey;
+    }
+    final int slot = slot(column);
+    if (slot < 0) {
+      return null;
+    }
+    if (null != refs && null != refs[slot]) {
+      return refs[slot];
+    }
+    return hasBits(slot) ? schema.decode(slot, bits[slot]) : null;
+  }
+
+  /**
+   * Compares an equality operand with the bits of the column, without decoding.
+   * @return the comparison, or null if it can not be made on the bits
+   */
+  Boolean isEqual(String column, Object operand) {
+    final int slot = slot(column);
+    if (slot < 0 || null == operand || (null != refs && null != refs[slot])) {
+      return null;
+    }
+    final Type type = schema.types[slot];
+    if (!type.accepts(operand)) {
+      return null;
+    }
+    if (!hasBits(slot)) {
+      return false;
+    }
+    if (Type.STRING == type) {
+      // a String not in the dictionary was not encoded in this value
+      final Integer code = schema.dictionaries[slot].codes.get(operand);
+      return null != code && code == bits[slot];
+    }
+    final long[] encoded = new long[1];
+    schema.encode(slot, operand, encoded, 0);
+    return encoded[0] == bits[slot];
+  }
+
+  private int slot(Object column) {
+    final Integer slot = schema.slots.get(column);
+    return null != slot ? slot : -1;
+  }
+
+  private boolean hasBits(int slot) {
+    return 0L != (bits[schema.names.length + slot / 64] & (1L << (slot % 64)));
+  }
+
+  @Override
+  public boolean containsKey(Object column) {
+    return null != get(column);
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    final Map<String, Object> entries = new LinkedHashMap<String, Object>();
+    entries.put(InMemorySupplier.NAME_KEY, key);
+    entries.put(InMemorySupplier.NAME_PARENT_KEY, parentKey);
+    for (int slot = 0; slot < schema.names.length; slot++) {
+      final Object value = get(schema.names[slot]);
+      if (null != value) {
+        entries.put(schema.names[slot], value);
+      }
+    }
+    return Collections.unmodifiableMap(entries).entrySet();
+  }
+
+  enum Type {
+    LONG, INTEGER, FLOAT, BOOLEAN, DATE, STRING, OBJECT;
+
+    static Type of(Object value) {
+      if (value instanceof Long) {
+        return LONG;
+      }
+      if (value instanceof Integer) {
+        return INTEGER;
+      }
+      if (value instanceof Float) {
+        return FLOAT;
+      }
+      if (value instanceof Boolean) {
+        return BOOLEAN;
+      }
+      if (Date.class.equals(value.getClass())) {
+        return DATE;
+      }
+      return value instanceof String ? STRING : OBJECT;
+    }
+
+    boolean accepts(Object value) {
+      return OBJECT != this && this == of(value);
+    }
+  }
+
+  /**
+   * The immutable column names and types of a kind. Columns are only appended, so that values encoded with an
+   * earlier schema can be read with a later one.
+   */
+  static final class Schema {
+    static final Schema EMPTY = new Schema(new String[0], new Type[0], new Dictionary[0]);
+
+    final String[] names;
+    final Type[] types;
+    final Dictionary[] dictionaries;
+    final Map<String, Integer> slots;
+
+    private Schema(String[] names, Type[] types, Dictionary[] dictionaries) {
+      this.names = names;
+      this.types = types;
+      this.dictionaries = dictionaries;
+      final Map<String, Integer> slots = new HashMap<String, Integer>();
+      for (int i = 0; i < names.length; i++) {
+        slots.put(names[i], i);
+      }
+      this.slots = slots;
+    }
+
+    Schema with(String name, Type type) {
+      final int slot = names.length;
+      final String[] extendedNames = Arrays.copyOf(names, slot + 1);
+      final Type[] extendedTypes = Arrays.copyOf(types, slot + 1);
+      final Dictionary[] extendedDictionaries = Arrays.copyOf(dictionaries, slot + 1);
+      extendedNames[slot] = name;
+      extendedTypes[slot] = type;
+      extendedDictionaries[slot] = Type.STRING == type ? new Dictionary() : null;
+      return new Schema(extendedNames, extendedTypes, extendedDictionaries);
+    }
+
+    boolean encode(int slot, Object value, long[] bits) {
+      return encode(slot, value, bits, slot);
+    }
+
+    /** @return false if the value could not be encoded */
+    boolean encode(int slot, Object value, long[] bits, int index) {
+      switch (types[slot]) {
+        case LONG:
+          bits[index] = (Long) value;
+          return true;
+        case INTEGER:
+          bits[index] = (Integer) value;
+          return true;
+        case FLOAT:
+          bits[index] = Float.floatToIntBits((Float) value);
+          return true;
+        case BOOLEAN:
+          bits[index] = ((Boolean) value) ? 1L : 0L;
+          return true;
+        case DATE:
+          bits[index] = ((Date) value).getTime();
+          return true;
+        case STRING:
+          final int code = dictionaries[slot].encode((String) value);
+          bits[index] = code;
+          return 0 <= code;
+        default:
+          return false;
+      }
+    }
+
+    Object decode(int slot, long bits) {
+      switch (types[slot]) {
+        case LONG:
+          return bits;
+        case INTEGER:
+          return (int) bits;
+        case FLOAT:
+          return Float.intBitsToFloat((int) bits);
+        case BOOLEAN:
+          return 0L != bits;
+        case DATE:
+          return new Date(bits);
+        case STRING:
+          return dictionaries[slot].decode((int) bits);
+        default:
+          throw new IllegalStateException("No bits for " + names[slot]);
+      }
+    }
+  }
+
+  /**
+   * Codes the distinct Strings of a column, shared by all values of the kind. Codes are never removed.
+   */
+  static final class Dictionary {
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] strings = new String[16];
+    private int size = 0;
+
+    /** @return the code of the String, or -1 if the dictionary is full */
+    int encode(String s) {
+      final Integer code = codes.get(s);
+      if (null != code) {
+        return code;
+      }
+      synchronized (this) {
+        final Integer existing = codes.get(s);
+        if (null != existing) {
+          return existing;
+        }
+        if (MAX_DICTIONARY_SIZE <= size) {
+          return -1;
+        }
+        if (size == strings.length) {
+          strings = Arrays.copyOf(strings, size * 2);
+        }
+        // published to readers with the value that holds the code
+        strings[size] = s;
+        codes.put(s, size);
+        return size++;
+      }
+    }
+
+    String decode(int code) {
+      return strings[code];
+    }
+  }
+}
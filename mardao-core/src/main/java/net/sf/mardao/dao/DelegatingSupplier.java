@@ -0,0 +1,312 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.filter.Filter;
+
+/**
+ * Forwards all calls to a delegate Supplier. Extend this to decorate a Supplier.
+ */
+public class DelegatingSupplier<K, RV, WV, T> implements Supplier<K, RV, WV, T>, Flushable {
+
+  protected final Supplier<K, RV, WV, T> delegate;
+
+  public DelegatingSupplier(Supplier<K, RV, WV, T> delegate) {
+    if (null == delegate) {
+      throw new IllegalArgumentException("Delegate cannot be null");
+    }
+    this.delegate = delegate;
+  }
+
+  public Supplier<K, RV, WV, T> getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * Flushes the delegate, if it buffers writes.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (delegate instanceof Flushable) {
+      ((Flushable) delegate).flush();
+    }
+  }
+
+  @Override
+  public int count(T tx, String kind, K ancestorKey, K simpleKey, Filter... filters) {
+    return delegate.count(tx, kind, ancestorKey, simpleKey, filters);
+  }
+
+  @Override
+  public Future<Integer> countFuture(T tx, String kind, K ancestorKey, K simpleKey, int limit, Filter... filters) {
+    return delegate.countFuture(tx, kind, ancestorKey, simpleKey, limit, filters);
+  }
+
+  @Override
+  public void deleteValue(T tx, K key) throws IOException {
+    delegate.deleteValue(tx, key);
+  }
+
+  @Override
+  public void deleteValues(T tx, Collection<K> keys) throws IOException {
+    delegate.deleteValues(tx, keys);
+  }
+
+  @Override
+  public RV readValue(T tx, K key) throws IOException {
+    return delegate.readValue(tx, key);
+  }
+
+  @Override
+  public Map<K, RV> readValues(T tx, Collection<K> keys) throws IOException {
+    return delegate.readValues(tx, keys);
+  }
+
+  @Override
+  public K writeValue(T tx, K key, WV value) throws IOException {
+    return delegate.writeValue(tx, key, value);
+  }
+
+  @Override
+  public List<K> writeValues(T tx, Collection<WV> values) throws IOException {
+    return delegate.writeValues(tx, values);
+  }
+
+  @Override
+  public Future<RV> readFuture(T tx, K key) throws IOException {
+    return delegate.readFuture(tx, key);
+  }
+
+  @Override
+  public Future<K> writeFuture(T tx, K key, WV value) throws IOException {
+    return delegate.writeFuture(tx, key, value);
+  }
+
+  @Override
+  public Future<List<K>> writeFutures(T tx, Collection<WV> values) throws IOException {
+    return delegate.writeFutures(tx, values);
+  }
+
+  @Override
+  public Future<Void> deleteFuture(T tx, K key) throws IOException {
+    return delegate.deleteFuture(tx, key);
+  }
+
+  @Override
+  public Future<Void> deleteFutures(T tx, Collection<K> keys) throws IOException {
+    return delegate.deleteFutures(tx, keys);
+  }
+
+  @Override
+  public long allocateIds(String kind, int size) {
+    return delegate.allocateIds(kind, size);
+  }
+
+  @Override
+  public K toKey(K parentKey, String kind, Long lId) {
+    return delegate.toKey(parentKey, kind, lId);
+  }
+
+  @Override
+  public K toKey(K parentKey, String kind, String sId) {
+    return delegate.toKey(parentKey, kind, sId);
+  }
+
+  @Override
+  public Long toLongKey(K key) {
+    return delegate.toLongKey(key);
+  }
+
+  @Override
+  public String toStringKey(K key) {
+    return delegate.toStringKey(key);
+  }
+
+  @Override
+  public K toParentKey(K key) {
+    return delegate.toParentKey(key);
+  }
+
+  @Override
+  public String toKind(K key) {
+    return delegate.toKind(key);
+  }
+
+  @Override
+  public Collection getCollection(RV value, String column) {
+    return delegate.getCollection(value, column);
+  }
+
+  @Override
+  public Date getDate(RV value, String column) {
+    return delegate.getDate(value, column);
+  }
+
+  @Override
+  public Long getLong(RV value, String column) {
+    return delegate.getLong(value, column);
+  }
+
+  @Override
+  public K getKey(RV value, String column) {
+    return delegate.getKey(value, column);
+  }
+
+  @Override
+  public K getParentKey(RV value, String column) {
+    return delegate.getParentKey(value, column);
+  }
+
+  @Override
+  public String getString(RV value, String column) {
+    return delegate.getString(value, column);
+  }
+
+  @Override
+  public Integer getInteger(RV value, String column) {
+    return delegate.getInteger(value, column);
+  }
+
+  @Override
+  public Boolean getBoolean(RV value, String column) {
+    return delegate.getBoolean(value, column);
+  }
+
+  @Override
+  public Float getFloat(RV value, String column) {
+    return delegate.getFloat(value, column);
+  }
+
+  @Override
+  public ByteBuffer getByteBuffer(RV value, String column) {
+    return delegate.getByteBuffer(value, column);
+  }
+
+  @Override
+  public void setCollection(WV value, String column, Collection c) {
+    delegate.setCollection(value, column, c);
+  }
+
+  @Override
+  public void setDate(WV value, String column, Date d) {
+    delegate.setDate(value, column, d);
+  }
+
+  @Override
+  public void setLong(WV value, String column, Long l) {
+    delegate.setLong(value, column, l);
+  }
+
+  @Override
+  public void setString(WV value, String column, String s) {
+    delegate.setString(value, column, s);
+  }
+
+  @Override
+  public void setInteger(WV value, String column, Integer i) {
+    delegate.setInteger(value, column, i);
+  }
+
+  @Override
+  public void setBoolean(WV value, String column, Boolean b) {
+    delegate.setBoolean(value, column, b);
+  }
+
+  @Override
+  public void setFloat(WV value, String column, Float f) {
+    delegate.setFloat(value, column, f);
+  }
+
+  @Override
+  public void setByteBuffer(WV value, String column, ByteBuffer b) {
+    delegate.setByteBuffer(value, column, b);
+  }
+
+  @Override
+  public WV createWriteValue(K parentKey, String kind, Long id) {
+    return delegate.createWriteValue(parentKey, kind, id);
+  }
+
+  @Override
+  public WV createWriteValue(K parentKey, String kind, String id) {
+    return delegate.createWriteValue(parentKey, kind, id);
+  }
+
+  @Override
+  public void createIndex(String kind, String column, boolean sorted) {
+    delegate.createIndex(kind, column, sorted);
+  }
+
+  @Override
+  public T beginTransaction() {
+    return delegate.beginTransaction();
+  }
+
+  @Override
+  public void commitTransaction(T transaction) {
+    delegate.commitTransaction(transaction);
+  }
+
+  @Override
+  public void rollbackActiveTransaction(T transaction) {
+    delegate.rollbackActiveTransaction(transaction);
+  }
+
+  @Override
+  public Iterable<RV> queryIterable(T tx, String kind, boolean keysOnly, int offset, int limit,
+                                    K ancestorKey, K simpleKey,
+                                    String primaryOrderBy, boolean primaryIsAscending,
+                                    String secondaryOrderBy, boolean secondaryIsAscending,
+                                    Filter... filters) {
+    return delegate.queryIterable(tx, kind, keysOnly, offset, limit, ancestorKey, simpleKey,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending, filters);
+  }
+
+  @Override
+  public RV queryUnique(T tx, K parentKey, String kind, Filter... filters) {
+    return delegate.queryUnique(tx, parentKey, kind, filters);
+  }
+
+  @Override
+  public CursorPage<RV> queryPage(T tx, String kind, boolean keysOnly,
+                                  int requestedPageSize, K ancestorKey,
+                                  String primaryOrderBy, boolean primaryIsAscending,
+                                  String secondaryOrderBy, boolean secondaryIsAscending,
+                                  Collection<String> projections,
+                                  String cursorString,
+                                  Filter... filters) {
+    return delegate.queryPage(tx, kind, keysOnly, requestedPageSize, ancestorKey,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending,
+      projections, cursorString, filters);
+  }
+}
@@ -0,0 +1,38 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Allocates ranges of ids, unique within a kind, so that keys can be built before the entities are written.
+ * The in-memory stores skip ids written explicitly, the Datastore does not, so keep those in a range of their own.
+ */
+public interface IdAllocator {
+
+  /**
+   * Reserves a contiguous range of ids of the kind, that the store will not assign itself.
+   * @param kind the kind to allocate ids for
+   * @param size the number of ids to allocate, at least 1
+   * @return the first id of the range, followed by size - 1 more
+   */
+  long allocateIds(String kind, int size);
+}
@@ -21,51 +21,130 @@ package net.sf.mardao.dao;
  * <http://www.gnu.org/licenses/gpl-3.0.html>.
  * #L%
  */
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Key class for {@link net.sf.mardao.dao.InMemorySupplier}.
+ * Keys are ordered by path from the root, like Datastore keys, so that the descendants of a key
+ * immediately follow it in a sorted map.
+ *
+ * The path is encoded once into bytes, which are compared, hashed and serialized.
+ * Each element is the kind, a 0 byte, then a 0 byte for a null name or 1, the name and a 0 byte.
+ * Strings are encoded as modified UTF-8 without 0 bytes, with surrogates encoded separately,
+ * so that the bytes compare like the strings.
  *
  * @author osandstrom Date: 2014-09-21 Time: 18:09
  */
-public class InMemoryKey {
+public class InMemoryKey implements Comparable<InMemoryKey> {
+
+  /** the interned kinds */
+  private static final ConcurrentMap<String, String> KINDS = new ConcurrentHashMap<String, String>();
+
+  private static final char[] WEB_SAFE =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  private static final int[] WEB_SAFE_VALUES = new int[128];
+
+  static {
+    Arrays.fill(WEB_SAFE_VALUES, -1);
+    for (int i = 0; i < WEB_SAFE.length; i++) {
+      WEB_SAFE_VALUES[WEB_SAFE[i]] = i;
+    }
+  }
+
   private final InMemoryKey parentKey;
   private final String kind;
   private final String name;
+  /** the encoded path from the root */
+  private final byte[] path;
+  private final int hash;
 
   public InMemoryKey(InMemoryKey parentKey, String kind, String name) {
     if (null == kind) {
       throw new IllegalArgumentException("Kind cannot be null");
     }
+    this.parentKey = parentKey;
+    this.kind = intern(kind);
+    this.name = name;
+    this.path = encode(null != parentKey ? parentKey.path : null, kind, name);
+    this.hash = Arrays.hashCode(path);
+  }
+
+  private InMemoryKey(InMemoryKey parentKey, String kind, String name, byte[] path) {
     this.parentKey = parentKey;
     this.kind = kind;
     this.name = name;
+    this.path = path;
+    this.hash = Arrays.hashCode(path);
   }
 
   public static InMemoryKey of(InMemoryKey parentKey, String kind, String name) {
     return new InMemoryKey(parentKey, kind, name);
   }
 
+  private static String intern(String kind) {
+    final String interned = KINDS.putIfAbsent(kind, kind);
+    return null != interned ? interned : kind;
+  }
+
   @Override
   public boolean equals(Object obj) {
-    if (null == obj) {
-      return false;
+    if (this == obj) {
+      return true;
     }
     if (!(obj instanceof InMemoryKey)) {
       return false;
     }
-    InMemoryKey other = (InMemoryKey) obj;
-    if (null == this.parentKey) {
-      if (null != other.parentKey) {
+    final InMemoryKey other = (InMemoryKey) obj;
+    return hash == other.hash && Arrays.equals(path, other.path);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public int compareTo(InMemoryKey other) {
+    if (this == other) {
+      return 0;
+    }
+    final byte[] p = other.path;
+    final int length = Math.min(path.length, p.length);
+    for (int i = 0; i < length; i++) {
+      if (path[i] != p[i]) {
+        return (path[i] & 0xff) - (p[i] & 0xff);
+      }
+    }
+    // an ancestor comes before its descendants
+    return path.length - p.length;
+  }
+
+  /**
+   * @return true if the specified key is a proper ancestor of this key
+   */
+  public boolean isDescendantOf(InMemoryKey ancestorKey) {
+    final byte[] p = ancestorKey.path;
+    if (path.length <= p.length) {
+      return false;
+    }
+    for (int i = 0; i < p.length; i++) {
+      if (path[i] != p[i]) {
         return false;
       }
-      return this.kind.equals(other.kind) && this.name.equals(other.name);
     }
-    return this.parentKey.equals(other.parentKey) && this.kind.equals(other.kind) && this.name.equals(other.name);
+    return true;
   }
 
-  @Override
-  public int hashCode() {
-    return (null != parentKey ? 31*31*parentKey.hashCode() : 0) + 31*kind.hashCode() + name.hashCode();
+  /**
+   * @return a bound ordered after all descendants of this key, and before any other key ordered after it
+   */
+  InMemoryKey descendantsEnd() {
+    final byte[] end = Arrays.copyOf(path, path.length + 1);
+    // no encoded string contains 0xff
+    end[path.length] = (byte) 0xff;
+    return new InMemoryKey(this, kind, null, end);
   }
 
   public String getKind() {
@@ -80,6 +159,162 @@ public class InMemoryKey {
     return parentKey;
   }
 
+  // --- encoding ---
+
+  /** @return a copy of the encoded path */
+  public byte[] toBytes() {
+    return path.clone();
+  }
+
+  /** @return the encoded path, which must not be modified */
+  byte[] encoded() {
+    return path;
+  }
+
+  public static InMemoryKey fromBytes(byte[] bytes) {
+    return decode(bytes, bytes.length);
+  }
+
+  /** @return the encoded path, in URL- and filename-safe base64 without padding */
+  public String toWebSafeString() {
+    final StringBuilder s = new StringBuilder((path.length * 4 + 2) / 3);
+    for (int i = 0; i < path.length; i += 3) {
+      final int remaining = path.length - i;
+      final int b = (path[i] & 0xff) << 16 | (1 < remaining ? (path[i + 1] & 0xff) << 8 : 0) |
+        (2 < remaining ? path[i + 2] & 0xff : 0);
+      s.append(WEB_SAFE[b >> 18 & 0x3f]).append(WEB_SAFE[b >> 12 & 0x3f]);
+      if (1 < remaining) {
+        s.append(WEB_SAFE[b >> 6 & 0x3f]);
+      }
+      if (2 < remaining) {
+        s.append(WEB_SAFE[b & 0x3f]);
+      }
+    }
+    return s.toString();
+  }
+
+  public static InMemoryKey fromWebSafeString(String s) {
+    if (1 == s.length() % 4) {
+      throw new IllegalArgumentException("Invalid key " + s);
+    }
+    final byte[] bytes = new byte[s.length() * 3 / 4];
+    int b = 0;
+    int bits = 0;
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      final int value = c < WEB_SAFE_VALUES.length ? WEB_SAFE_VALUES[c] : -1;
+      if (value < 0) {
+        throw new IllegalArgumentException("Invalid key " + s);
+      }
+      b = b << 6 | value;
+      bits += 6;
+      if (8 <= bits) {
+        bits -= 8;
+        bytes[length++] = (byte) (b >> bits);
+      }
+    }
+    return decode(bytes, length);
+  }
+
+  private static byte[] encode(byte[] parentPath, String kind, String name) {
+    final int parentLength = null != parentPath ? parentPath.length : 0;
+    final byte[] path = new byte[parentLength + encodedLength(kind) + 2 + (null != name ? encodedLength(name) + 1 : 0)];
+    if (0 < parentLength) {
+      System.arraycopy(parentPath, 0, path, 0, parentLength);
+    }
+    int i = encode(kind, path, parentLength);
+    path[i++] = 0;
+    if (null != name) {
+      path[i++] = 1;
+      i = encode(name, path, i);
+    }
+    path[i] = 0;
+    return path;
+  }
+
+  private static int encodedLength(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      length += 0 < c && c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+    }
+    return length;
+  }
+
+  private static int encode(String s, byte[] bytes, int offset) {
+    int i = offset;
+    for (int j = 0; j < s.length(); j++) {
+      final char c = s.charAt(j);
+      if (0 < c && c < 0x80) {
+        bytes[i++] = (byte) c;
+      }
+      else if (c < 0x800) {
+        bytes[i++] = (byte) (0xc0 | c >> 6);
+        bytes[i++] = (byte) (0x80 | c & 0x3f);
+      }
+      else {
+        bytes[i++] = (byte) (0xe0 | c >> 12);
+        bytes[i++] = (byte) (0x80 | c >> 6 & 0x3f);
+        bytes[i++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+    return i;
+  }
+
+  /** @return the string from the offset up to the next 0 byte */
+  private static String decode(byte[] bytes, int offset, int end) {
+    final StringBuilder s = new StringBuilder(end - offset);
+    int i = offset;
+    while (i < end) {
+      final int b = bytes[i++] & 0xff;
+      if (b < 0x80) {
+        s.append((char) b);
+      }
+      else if (b < 0xe0) {
+        s.append((char) ((b & 0x1f) << 6 | bytes[i++] & 0x3f));
+      }
+      else {
+        s.append((char) ((b & 0x0f) << 12 | (bytes[i++] & 0x3f) << 6 | bytes[i++] & 0x3f));
+      }
+    }
+    return s.toString();
+  }
+
+  private static int indexOfZero(byte[] bytes, int offset, int length) {
+    for (int i = offset; i < length; i++) {
+      if (0 == bytes[i]) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Invalid key encoding");
+  }
+
+  private static InMemoryKey decode(byte[] bytes, int length) {
+    InMemoryKey key = null;
+    int i = 0;
+    while (i < length) {
+      final int kindEnd = indexOfZero(bytes, i, length);
+      final String kind = intern(decode(bytes, i, kindEnd));
+      i = kindEnd + 1;
+      String name = null;
+      if (i < length && 1 == bytes[i]) {
+        final int nameEnd = indexOfZero(bytes, i + 1, length);
+        name = decode(bytes, i + 1, nameEnd);
+        i = nameEnd;
+      }
+      if (length <= i || 0 != bytes[i]) {
+        throw new IllegalArgumentException("Invalid key encoding");
+      }
+      i++;
+      key = new InMemoryKey(key, kind, name, Arrays.copyOf(bytes, i));
+    }
+    if (null == key) {
+      throw new IllegalArgumentException("Invalid key encoding");
+    }
+    return key;
+  }
+
   @Override
   public String toString() {
     return "Key{ parent:" + parentKey + ", kind:" + kind + ", name:" + name + "}";
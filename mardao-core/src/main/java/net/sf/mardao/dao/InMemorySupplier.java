@@ -22,244 +22,505 @@ package net.sf.mardao.dao;
  * #L%
  */
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.sf.mardao.core.CursorPage;
 import net.sf.mardao.core.filter.Filter;
+import net.sf.mardao.core.filter.FilterOperator;
 
 /**
- * Stores entities in-memory using a new TreeMap&lt;InMemoryKey, Map&lt;String, Object&gt;&gt;.
+ * Stores entities in-memory using a ConcurrentSkipListMap&lt;InMemoryKey, Map&lt;String, Object&gt;&gt; per kind.
+ * Safe for concurrent use: reads are lock-free, and writes replace a stored value atomically with an
+ * unmodifiable copy, so readers never observe a partially written entity. The copy is a TreeMap, or a
+ * {@link CompactValue} if constructed compact.
+ * Queries iterate weakly consistent, in key order, and see every entity at most once.
+ *
+ * Equality filters on indexed columns are served from the index, see {@link #createIndex(String, String, boolean)},
+ * other queries scan the kind.
+ *
+ * Every write adds a version of the entity, stamped with a commit timestamp. Transactions read the versions of
+ * their snapshot and buffer their writes until commit, when the read and written keys are validated optimistically:
+ * if any of them was written by another commit since the snapshot, a ConcurrentModificationException is thrown,
+ * like the Datastore does. Rollback discards the buffer. Queries within a transaction read the latest commits.
  *
  * @author osandstrom Date: 2014-09-03 Time: 20:48
  */
-public class InMemorySupplier implements Supplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object> {
-
-  public static final String NAME_PARENT_KEY = "__parentKey";
-  public static final String NAME_KEY = "__Key";
+public class InMemorySupplier extends AbstractMapSupplier {
 
   static final Logger LOGGER = LoggerFactory.getLogger(InMemorySupplier.class);
 
-  private final Map<String, Map<String, Map<String, Object>>> store = new TreeMap<String, Map<String, Map<String, Object>>>();
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /** the first bytes of a snapshot file, and its format version */
+  private static final int SNAPSHOT_MAGIC = 0x4d445332;
 
-  @Override
-  public Object beginTransaction() {
-    return new Object();
-  }
+  private final ConcurrentMap<String, ConcurrentNavigableMap<InMemoryKey, Map<String, Object>>> store =
+    new ConcurrentHashMap<String, ConcurrentNavigableMap<InMemoryKey, Map<String, Object>>>();
+  /** kind -> column -> index */
+  private final ConcurrentMap<String, ConcurrentMap<String, Index>> indexes =
+    new ConcurrentHashMap<String, ConcurrentMap<String, Index>>();
+  /** writes to the same key are serialized, to keep the indexes in line with the store */
+  private final ReentrantLock[] writeLocks = new ReentrantLock[64];
 
-  @Override
-  public void commitTransaction(Object tx) {
+  /** the latest version of each key, linked to the older versions still read by active transactions */
+  private final ConcurrentMap<InMemoryKey, Version> versions = new ConcurrentHashMap<InMemoryKey, Version>();
+  /** versions of deleted keys, removed when no active transaction reads before them */
+  private final ConcurrentLinkedQueue<Map.Entry<InMemoryKey, Version>> tombstones =
+    new ConcurrentLinkedQueue<Map.Entry<InMemoryKey, Version>>();
+  private final ReentrantLock tombstonesLock = new ReentrantLock();
+  /** the last allocated commit timestamp */
+  private final AtomicLong clock = new AtomicLong();
+  /** commit timestamps up to this one are completely written, and can be snapshot */
+  private final AtomicLong published = new AtomicLong();
+  /** the active transactions, oldest snapshot first */
+  private final TreeSet<Transaction> transactions = new TreeSet<Transaction>();
+  private long transactionSequence = 0L;
+  /** kind -> schema of the compact values, if compact */
+  private final ConcurrentMap<String, AtomicReference<CompactValue.Schema>> schemas;
 
+  public InMemorySupplier() {
+    this(false);
   }
 
-  @Override
-  public void rollbackActiveTransaction(Object tx) {
-
-  }
-
-  @Override
-  public int count(Object tx, String kind, InMemoryKey ancestorKey, InMemoryKey simpleKey, Filter... filters) {
-    final Collection<Map<String, Object>> filtered = filterValues(kindStore(kind).values());
-    return filtered.size();
-  }
-
-  @Override
-  public void deleteValue(Object tx, InMemoryKey key) throws IOException {
-    kindStore(key).remove(key.getName());
+  /**
+   * @param compact true to store the values compactly, with a shared schema per kind, see {@link CompactValue}
+   */
+  public InMemorySupplier(boolean compact) {
+    this(compact, SupplierExecutors.defaultExecutor());
   }
 
-  @Override
-  public void deleteValues(Object tx, Collection<InMemoryKey> keys) throws IOException {
-    for (InMemoryKey key : keys) {
-      deleteValue(tx, key);
+  /**
+   * @param compact true to store the values compactly, with a shared schema per kind, see {@link CompactValue}
+   * @param executor runs the futures, see {@link SupplierExecutors}
+   */
+  public InMemorySupplier(boolean compact, ExecutorService executor) {
+    super(executor);
+    this.schemas = compact ? new ConcurrentHashMap<String, AtomicReference<CompactValue.Schema>>() : null;
+    for (int i = 0; i < writeLocks.length; i++) {
+      writeLocks[i] = new ReentrantLock();
     }
   }
 
   @Override
-  public Map<String, Object> readValue(Object tx, InMemoryKey key) throws IOException {
-    return kindStore(key).get(key.getName());
+  public Object beginTransaction() {
+    synchronized (transactions) {
+      final Transaction transaction = new Transaction(published.get(), ++transactionSequence);
+      transactions.add(transaction);
+      return transaction;
+    }
   }
 
   @Override
-  public Future<Map<String, Object>> readFuture(final Object tx, final InMemoryKey key) throws IOException {
-    FutureTask<Map<String, Object>> task = new FutureTask<Map<String, Object>>(new Callable<Map<String, Object>>() {
-      @Override
-      public Map<String, Object> call() throws Exception {
-        return readValue(tx, key);
+  public void commitTransaction(Object tx) {
+    final Transaction transaction = (Transaction) tx;
+    if (!transaction.active) {
+      throw new IllegalStateException("Transaction is not active");
+    }
+    try {
+      final Map<InMemoryKey, Map<String, Object>> writes;
+      synchronized (transaction.writes) {
+        writes = new LinkedHashMap<InMemoryKey, Map<String, Object>>(transaction.writes);
       }
-    });
-    new Thread(task).start();
-    return task;
-  }
-
-  @Override
-  public Future<InMemoryKey> writeFuture(final Object tx, final InMemoryKey key, final Map<String, Object> value) throws IOException {
-    FutureTask<InMemoryKey> task = new FutureTask<InMemoryKey>(new Callable<InMemoryKey>() {
-      @Override
-      public InMemoryKey call() throws Exception {
-        return writeValue(tx, key, value);
+      // a read-only transaction has read a consistent snapshot
+      if (!writes.isEmpty()) {
+        commit(transaction, writes);
       }
-    });
-    new Thread(task).start();
-    return task;
-  }
-
-  @Override
-  public Collection getCollection(Map<String, Object> value, String column) {
-    return (Collection) value.get(column);
+    }
+    finally {
+      end(transaction);
+    }
   }
 
-  @Override
-  public Date getDate(Map<String, Object> value, String column) {
-    return (Date) value.get(column);
-  }
+  private void commit(Transaction transaction, Map<InMemoryKey, Map<String, Object>> writes) {
+    final Set<InMemoryKey> keys = new HashSet<InMemoryKey>(transaction.reads);
+    keys.addAll(writes.keySet());
 
-  @Override
-  public Long getLong(Map<String, Object> core, String column) {
-    return (Long) core.get(column);
+    // lock in stripe order, not to deadlock with other commits
+    final TreeSet<Integer> stripes = new TreeSet<Integer>();
+    for (InMemoryKey key : keys) {
+      stripes.add(stripe(key));
+    }
+    final List<ReentrantLock> locked = new ArrayList<ReentrantLock>(stripes.size());
+    try {
+      for (Integer stripe : stripes) {
+        writeLocks[stripe].lock();
+        locked.add(writeLocks[stripe]);
+      }
+      for (InMemoryKey key : keys) {
+        final Version latest = versions.get(key);
+        if (null != latest && transaction.snapshot < latest.timestamp) {
+          throw new ConcurrentModificationException("Concurrent write to " + key);
+        }
+      }
+      final long timestamp = clock.incrementAndGet();
+      try {
+        for (Map.Entry<InMemoryKey, Map<String, Object>> write : writes.entrySet()) {
+          apply(write.getKey(), write.getValue(), false, timestamp);
+        }
+      }
+      finally {
+        publish(timestamp);
+      }
+    }
+    finally {
+      for (ReentrantLock lock : locked) {
+        lock.unlock();
+      }
+    }
+    LOGGER.debug("committed {} writes", writes.size());
+    removeTombstones();
   }
 
   @Override
-  public InMemoryKey getKey(Map<String, Object> value, String column) {
-    return (InMemoryKey) value.get(NAME_KEY);
+  public void rollbackActiveTransaction(Object tx) {
+    final Transaction transaction = (Transaction) tx;
+    if (null != transaction && transaction.active) {
+      end(transaction);
+    }
   }
 
-  @Override
-  public InMemoryKey getParentKey(Map<String, Object> value, String column) {
-    return (InMemoryKey) value.get(NAME_PARENT_KEY);
+  private void end(Transaction transaction) {
+    transaction.active = false;
+    transaction.writes.clear();
+    synchronized (transactions) {
+      transactions.remove(transaction);
+    }
+    removeTombstones();
   }
 
   @Override
-  public String getString(Map<String, Object> core, String column) {
-    return (String) core.get(column);
-  }
+  public void createIndex(String kind, String column, boolean sorted) {
+    ConcurrentMap<String, Index> kindIndexes = indexes.get(kind);
+    if (null == kindIndexes) {
+      final ConcurrentMap<String, Index> created = new ConcurrentHashMap<String, Index>();
+      kindIndexes = indexes.putIfAbsent(kind, created);
+      if (null == kindIndexes) {
+        kindIndexes = created;
+      }
+    }
+    final Index existing = kindIndexes.get(column);
+    if (null != existing && (existing.sorted || !sorted)) {
+      return;
+    }
 
-  @Override
-  public Integer getInteger(Map<String, Object> core, String column) {
-    return (Integer) core.get(column);
+    // register before populating, so that concurrent writes maintain it
+    final Index index = new Index(column, sorted);
+    kindIndexes.put(column, index);
+    for (Map.Entry<InMemoryKey, Map<String, Object>> entry : kindStore(kind).entrySet()) {
+      final ReentrantLock lock = writeLock(entry.getKey());
+      lock.lock();
+      try {
+        final Map<String, Object> value = kindStore(kind).get(entry.getKey());
+        if (null != value) {
+          index.add(value.get(column), entry.getKey());
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    LOGGER.debug("created index on {}.{} for {} entities", new Object[] {kind, column, kindStore(kind).size()});
   }
 
   @Override
-  public Boolean getBoolean(Map<String, Object> core, String column) {
-    return (Boolean) core.get(column);
+  public int count(Object tx, String kind, InMemoryKey ancestorKey, InMemoryKey simpleKey, Filter... filters) {
+    return count(kind, ancestorKey, 0, filters);
   }
 
-  @Override
-  public Float getFloat(Map<String, Object> core, String column) {
-    return (Float) core.get(column);
+  /**
+   * Counts from an index if possible, else scans the kind, or the descendants of the ancestor, until limit is reached.
+   * @param limit stop counting at limit, or 0 to count all
+   */
+  private int count(String kind, InMemoryKey ancestorKey, int limit, Filter... filters) {
+    final NavigableMap<InMemoryKey, Map<String, Object>> indexed = indexed(kind, ancestorKey, filters);
+    if (null != indexed) {
+      return 0 < limit ? Math.min(limit, indexed.size()) : indexed.size();
+    }
+    int count = 0;
+    for (Map<String, Object> value : scope(kind, ancestorKey).values()) {
+      if (matchAll(value, filters) && ++count == limit) {
+        break;
+      }
+    }
+    return count;
   }
 
   @Override
-  public ByteBuffer getByteBuffer(Map<String, Object> core, String column) {
-    return (ByteBuffer) core.get(column);
+  public Future<Integer> countFuture(final Object tx, final String kind, final InMemoryKey ancestorKey,
+                                     final InMemoryKey simpleKey, final int limit, final Filter... filters) {
+    return submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        return count(kind, ancestorKey, limit, filters);
+      }
+    });
   }
 
   @Override
-  public void setCollection(Map<String, Object> value, String column, Collection c) {
-    value.put(column, c);
+  public void deleteValue(Object tx, InMemoryKey key) throws IOException {
+    if (null != tx) {
+      ((Transaction) tx).writes.put(key, null);
+    }
+    else {
+      store(key, null, false);
+    }
   }
 
   @Override
-  public void setDate(Map<String, Object> value, String column, Date d) {
-    value.put(column, d);
-  }
+  public Map<String, Object> readValue(Object tx, InMemoryKey key) throws IOException {
+    if (null == tx) {
+      return kindStore(key).get(key);
+    }
 
-  @Override
-  public void setLong(Map<String, Object> value, String column, Long l) {
-    value.put(column, l);
+    // own writes first, then the snapshot
+    final Transaction transaction = (Transaction) tx;
+    synchronized (transaction.writes) {
+      if (transaction.writes.containsKey(key)) {
+        return transaction.writes.get(key);
+      }
+    }
+    transaction.reads.add(key);
+    Version version = versions.get(key);
+    while (null != version && transaction.snapshot < version.timestamp) {
+      version = version.previous;
+    }
+    return null != version ? version.value : null;
   }
 
   @Override
-  public void setString(Map<String, Object> value, String column, String s) {
-    value.put(column, s);
-  }
+  public Iterable<Map<String, Object>> queryIterable(Object tx, String kind, boolean keysOnly, int offset, int limit,
+                                                     InMemoryKey ancestorKey, InMemoryKey simpleKey,
+                                                     String primaryOrderBy, boolean primaryIsAscending,
+                                                     String secondaryOrderBy, boolean secondaryIsAscending, Filter... filters) {
+    if (null != simpleKey) {
+      final Map<String, Object> value = kindStore(kind).get(simpleKey);
+      return null != value && (null == ancestorKey || simpleKey.isDescendantOf(ancestorKey)) && matchAll(value, filters) && offset <= 0 && 0 != limit ?
+        Collections.singletonList(keysOnly ? keysOnly(value) : value) : Collections.<Map<String, Object>>emptyList();
+    }
 
-  @Override
-  public void setInteger(Map<String, Object> value, String column, Integer i) {
-    value.put(column, i);
-  }
+    final NavigableMap<InMemoryKey, Map<String, Object>> indexed = indexed(kind, ancestorKey, filters);
+    final int skip = Math.max(0, offset);
+    final int end = 0 < limit ? skip + limit : -1;
 
-  @Override
-  public void setBoolean(Map<String, Object> value, String column, Boolean b) {
-    value.put(column, b);
-  }
+    final List<Map.Entry<InMemoryKey, Map<String, Object>>> entries;
+    if (null == primaryOrderBy) {
+      // in key order, stop at offset + limit
+      entries = new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>();
+      final boolean matched = null != indexed;
+      for (Map.Entry<InMemoryKey, Map<String, Object>> entry : (matched ? indexed : scope(kind, ancestorKey)).entrySet()) {
+        if (matched || matchAll(entry.getValue(), filters)) {
+          entries.add(entry);
+          if (end == entries.size()) {
+            break;
+          }
+        }
+      }
+    }
+    else {
+      final Index orderIndex = null == indexed ? sortedIndex(kind, primaryOrderBy) : null;
+      if (null != orderIndex) {
+        entries = orderedScan(kind, ancestorKey, orderIndex, primaryOrderBy, primaryIsAscending,
+          secondaryOrderBy, secondaryIsAscending, null, end, filters);
+      }
+      else {
+        final Comparator<Map.Entry<InMemoryKey, Map<String, Object>>> order =
+          ordering(primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending);
+        entries = top(null != indexed ? indexed.entrySet() : scope(kind, ancestorKey).entrySet(),
+          null != indexed ? null : filters, order, null, end);
+      }
+    }
 
-  @Override
-  public void setFloat(Map<String, Object> value, String column, Float f) {
-    value.put(column, f);
+    final Collection<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+    for (int i = skip; i < entries.size(); i++) {
+      final Map<String, Object> value = entries.get(i).getValue();
+      values.add(keysOnly ? keysOnly(value) : value);
+    }
+    return values;
   }
 
-  @Override
-  public void setByteBuffer(Map<String, Object> value, String column, ByteBuffer b) {
-    value.put(column, b);
-  }
+  /**
+   * Walks a sorted index of the primary order column, limited to the range of the filters on that column.
+   * @param after seek to the entries ordered after this one, or null
+   * @param limit stop when this many entries are found, or a negative value for all
+   */
+  private List<Map.Entry<InMemoryKey, Map<String, Object>>> orderedScan(String kind, InMemoryKey ancestorKey,
+                                                                       Index orderIndex,
+                                                                  String primaryOrderBy, boolean ascending,
+                                                                  String secondaryOrderBy, boolean secondaryIsAscending,
+                                                                  Map.Entry<InMemoryKey, Map<String, Object>> after,
+                                                                  int limit, Filter... filters) {
+    final List<Map.Entry<InMemoryKey, Map<String, Object>>> entries = new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>();
+    if (0 == limit) {
+      return entries;
+    }
+    final NavigableMap<InMemoryKey, Map<String, Object>> kindStore = kindStore(kind);
+    final Comparator<Map.Entry<InMemoryKey, Map<String, Object>>> order =
+      ordering(primaryOrderBy, ascending, secondaryOrderBy, secondaryIsAscending);
+    final Comparator<Map.Entry<InMemoryKey, Map<String, Object>>> tieBreak =
+      ordering(null, true, secondaryOrderBy, secondaryIsAscending);
+    final Set<InMemoryKey> seen = new HashSet<InMemoryKey>();
 
-  @Override
-  public Map<String, Object> createWriteValue(InMemoryKey parentKey, String kind, Long id) {
-    return createWriteValue(parentKey, toKey(parentKey, kind, id));
+    NavigableMap<Object, Set<InMemoryKey>> range = orderIndex.range(filters);
+    if (null != after) {
+      range = orderIndex.seek(range, after.getValue().get(primaryOrderBy), ascending);
+    }
+    if (!ascending) {
+      range = range.descendingMap();
+    }
+    for (Set<InMemoryKey> keys : range.values()) {
+      final List<Map.Entry<InMemoryKey, Map<String, Object>>> bucket = new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>();
+      for (InMemoryKey key : keys) {
+        // an entity being re-indexed may be in two buckets
+        final Map<String, Object> value = kindStore.get(key);
+        if (null != value && (null == ancestorKey || key.isDescendantOf(ancestorKey)) &&
+          matchAll(value, filters) && seen.add(key)) {
+          final Map.Entry<InMemoryKey, Map<String, Object>> entry =
+            new AbstractMap.SimpleImmutableEntry<InMemoryKey, Map<String, Object>>(key, value);
+          if (null == after || 0 < order.compare(entry, after)) {
+            bucket.add(entry);
+          }
+        }
+      }
+      Collections.sort(bucket, tieBreak);
+      entries.addAll(bucket);
+      if (0 < limit && limit <= entries.size()) {
+        break;
+      }
+    }
+    return 0 < limit && limit < entries.size() ? entries.subList(0, limit) : entries;
   }
 
-  private Map<String, Object> createWriteValue(InMemoryKey parentKey, InMemoryKey key) {
-    final TreeMap<String, Object> value = new TreeMap<String, Object>();
-    value.put(NAME_KEY, key);
-    value.put(NAME_PARENT_KEY, parentKey);
-    return value;
+  private Index sortedIndex(String kind, String column) {
+    final Map<String, Index> kindIndexes = indexes.get(kind);
+    final Index index = null != kindIndexes ? kindIndexes.get(column) : null;
+    return null != index && index.sorted ? index : null;
   }
 
-  @Override
-  public Map<String, Object> createWriteValue(InMemoryKey parentKey, String kind, String id) {
-    return createWriteValue(parentKey, toKey(parentKey, kind, id));
+  /**
+   * Looks up the values matching the filters from an index, if one of the filters is an equality on an indexed column.
+   * @return the matching values by name in key order, or null if no index applies
+   */
+  protected NavigableMap<InMemoryKey, Map<String, Object>> indexed(String kind, InMemoryKey ancestorKey,
+                                                                   Filter... filters) {
+    final Set<InMemoryKey> keys = null != filters ? lookupIndex(kind, filters) : null;
+    if (null == keys) {
+      return null;
+    }
+    final NavigableMap<InMemoryKey, Map<String, Object>> kindStore = kindStore(kind);
+    final NavigableMap<InMemoryKey, Map<String, Object>> matching = new TreeMap<InMemoryKey, Map<String, Object>>();
+    for (InMemoryKey key : keys) {
+      // indexes are maintained after the store, so verify against the current value
+      final Map<String, Object> value = kindStore.get(key);
+      if (null != value && (null == ancestorKey || key.isDescendantOf(ancestorKey)) && matchAll(value, filters)) {
+        matching.put(key, value);
+      }
+    }
+    return matching;
   }
 
-  @Override
-  public Iterable<Map<String, Object>> queryIterable(Object tx, String kind, boolean keysOnly, int offset, int limit,
-                                                     InMemoryKey ancestorKey, InMemoryKey simpleKey,
-                                                     String primaryOrderBy, boolean primaryIsAscending,
-                                                     String secondaryOrderBy, boolean secondaryIsAscending, Filter... filters) {
-    // this will do for now
-    Collection<Map<String, Object>> remaining = kindStore(kind).values();
+  /**
+   * @return the names indexed for the most selective equality or IN filter, else for a range filter on a sorted index,
+   * or null if no filter is on an indexed column
+   */
+  private Set<InMemoryKey> lookupIndex(String kind, Filter... filters) {
+    final Map<String, Index> kindIndexes = indexes.get(kind);
+    if (null == kindIndexes) {
+      return null;
+    }
+    Set<InMemoryKey> smallest = null;
+    Index rangeIndex = null;
+    for (Filter f : filters) {
+      final Index index = kindIndexes.get(f.getColumn());
+      if (null == index) {
+        continue;
+      }
+      Set<InMemoryKey> names = null;
+      if (FilterOperator.EQUALS == f.getOperator()) {
+        names = index.get(f.getOperand());
+      }
+      else if (FilterOperator.IN == f.getOperator() && f.getOperand() instanceof Collection) {
+        names = new HashSet<InMemoryKey>();
+        for (Object operand : (Collection) f.getOperand()) {
+          names.addAll(index.get(operand));
+        }
+      }
+      else if (index.sorted && null != f.getOperand()) {
+        rangeIndex = index;
+      }
+      if (null != names && (null == smallest || names.size() < smallest.size())) {
+        smallest = names;
+      }
+    }
 
-    return filterValues(remaining, filters);
+    if (null == smallest && null != rangeIndex) {
+      smallest = new HashSet<InMemoryKey>();
+      for (Set<InMemoryKey> names : rangeIndex.range(filters).values()) {
+        smallest.addAll(names);
+      }
+    }
+    return smallest;
   }
 
-  private Collection<Map<String, Object>> filterValues(Collection<Map<String, Object>> values, Filter... filters) {
-    Collection<Map<String, Object>> after = values;
-    if (null != filters) {
-      for (Filter f : filters) {
-        after = new ArrayList<Map<String, Object>>();
-        for (Map<String, Object> v : values) {
-          if (match(v, f)) {
-            after.add(v);
-          }
+  private void updateIndexes(String kind, InMemoryKey key, Map<String, Object> previous, Map<String, Object> value) {
+    final Map<String, Index> kindIndexes = indexes.get(kind);
+    if (null != kindIndexes) {
+      for (Index index : kindIndexes.values()) {
+        if (null != previous) {
+          index.remove(previous.get(index.column), key);
         }
-        values = after;
-        if (after.isEmpty()) {
-          break;
+        if (null != value) {
+          index.add(value.get(index.column), key);
         }
       }
     }
-    return after;
   }
 
-  @Override
-  public Map<String, Object> queryUnique(Object tx, InMemoryKey parentKey, String kind, Filter... filters) {
-    final Iterable<Map<String, Object>> iterable = queryIterable(tx, kind, false, 0, 1,
-      parentKey, null, null, false, null, false, filters);
-    final Iterator<Map<String, Object>> iterator = iterable.iterator();
-    return iterator.hasNext() ? iterator.next() : null;
+  private ReentrantLock writeLock(InMemoryKey key) {
+    return writeLocks[stripe(key)];
+  }
+
+  private int stripe(InMemoryKey key) {
+    final int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (writeLocks.length - 1);
   }
 
   @Override
@@ -272,97 +533,548 @@ public class InMemorySupplier implements Supplier<InMemoryKey, Map<String, Objec
     CursorPage<Map<String, Object>> page = new CursorPage<Map<String, Object>>();
     Collection<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
     page.setItems(values);
-    if (null == cursorString) {
-      page.setTotalSize(filterValues(kindStore(kind).values(), filters).size());
+
+    NavigableMap<InMemoryKey, Map<String, Object>> candidates = indexed(kind, ancestorKey, filters);
+    final boolean matched = null != candidates;
+    if (!matched) {
+      candidates = scope(kind, ancestorKey);
     }
 
-    boolean foundCursor = null == cursorString;
-    for (Map.Entry<String, Map<String, Object>> entry : kindStore(kind).entrySet()) {
-      if (!foundCursor) {
-        foundCursor = entry.getKey().toString().equals(cursorString);
+    final List<Map.Entry<InMemoryKey, Map<String, Object>>> entries;
+    if (null == primaryOrderBy) {
+      entries = new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>();
+      if (null != cursorString) {
+        // the cursor is the key of the last item on the previous page
+        candidates = candidates.tailMap(decodeKey(cursorString), false);
       }
-      else if (matchAll(entry.getValue(), filters)) {
-        values.add(entry.getValue());
-        if (requestedPageSize == values.size()) {
-          page.setCursorKey(entry.getKey().toString());
-          break;
+      for (Map.Entry<InMemoryKey, Map<String, Object>> entry : candidates.entrySet()) {
+        if (matched || matchAll(entry.getValue(), filters)) {
+          entries.add(entry);
+          if (requestedPageSize == entries.size()) {
+            break;
+          }
         }
       }
     }
+    else {
+      // the cursor is the key and order values of the last item on the previous page
+      final Map.Entry<InMemoryKey, Map<String, Object>> after = null != cursorString ?
+        decodeCursor(cursorString, primaryOrderBy, secondaryOrderBy) : null;
+      final Index orderIndex = !matched ? sortedIndex(kind, primaryOrderBy) : null;
+      if (null != orderIndex) {
+        entries = orderedScan(kind, ancestorKey, orderIndex, primaryOrderBy, primaryIsAscending,
+          secondaryOrderBy, secondaryIsAscending, after, requestedPageSize, filters);
+      }
+      else {
+        entries = top(candidates.entrySet(), matched ? null : filters,
+          ordering(primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending), after, requestedPageSize);
+      }
+    }
+
+    for (Map.Entry<InMemoryKey, Map<String, Object>> entry : entries) {
+      values.add(keysOnly ? keysOnly(entry.getValue()) :
+        null != projections ? project(entry.getValue(), projections) : entry.getValue());
+    }
+    if (requestedPageSize == entries.size()) {
+      final Map.Entry<InMemoryKey, Map<String, Object>> last = entries.get(entries.size() - 1);
+      page.setCursorKey(null == primaryOrderBy ? encodeKey(last.getKey()) :
+        encodeCursor(last, primaryOrderBy, secondaryOrderBy));
+    }
     return page;
   }
 
   @Override
   public InMemoryKey writeValue(Object tx, InMemoryKey key, Map<String, Object> core) throws IOException {
-    // assign long key?
-    if (null == key.getName()) {
-      key = InMemoryKey.of(key.getParentKey(), key.getKind(), Long.toString(Math.round(Math.random() * Long.MAX_VALUE)));
+    reserveId(key);
+    if (null != tx) {
+      final Transaction transaction = (Transaction) tx;
+      if (null == key.getName()) {
+        key = generateKey(key);
+        core.put(NAME_KEY, key);
+        // validated at commit, not to overwrite a concurrently generated entity
+        transaction.reads.add(key);
+      }
+      transaction.writes.put(key, snapshot(core));
+    }
+    // assign long key? skip ids already written explicitly
+    else if (null == key.getName()) {
+      boolean stored;
+      do {
+        key = generateKey(key);
+        core.put(NAME_KEY, key);
+        stored = store(key, snapshot(core), true);
+      } while (!stored);
+    }
+    else {
+      store(key, snapshot(core), false);
     }
-    kindStore(key).put(key.getName(), core);
     LOGGER.debug("put {} -> {}", key, core);
     return key;
   }
 
-  @Override
-  public InMemoryKey toKey(InMemoryKey parentKey, String kind, Long lId) {
-    return InMemoryKey.of(parentKey, kind, null != lId ? lId.toString() : null);
+  private InMemoryKey generateKey(InMemoryKey key) {
+    return InMemoryKey.of(key.getParentKey(), key.getKind(), Long.toString(allocateIds(key.getKind(), 1)));
   }
 
-  @Override
-  public InMemoryKey toKey(InMemoryKey parentKey, String kind, String sId) {
-    return InMemoryKey.of(parentKey, kind, sId);
+  /**
+   * Writes outside of a transaction, as a commit of its own.
+   * @param value the value to store, or null to delete
+   */
+  private boolean store(InMemoryKey key, Map<String, Object> value, boolean ifAbsent) {
+    final boolean stored;
+    final ReentrantLock lock = writeLock(key);
+    lock.lock();
+    try {
+      final long timestamp = clock.incrementAndGet();
+      try {
+        stored = apply(key, value, ifAbsent, timestamp);
+      }
+      finally {
+        publish(timestamp);
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+    if (null == value) {
+      removeTombstones();
+    }
+    return stored;
   }
 
-  @Override
-  public Long toLongKey(InMemoryKey key) {
-    return null != key ? Long.parseLong(key.getName()) : null;
+  /**
+   * Updates the store and the indexes, and adds a version. The caller holds the write lock of the key.
+   * @param value the value to store, or null to delete
+   */
+  private boolean apply(InMemoryKey key, Map<String, Object> value, boolean ifAbsent, long timestamp) {
+    final ConcurrentNavigableMap<InMemoryKey, Map<String, Object>> kindStore = kindStore(key);
+    final Map<String, Object> previous;
+    if (null == value) {
+      previous = kindStore.remove(key);
+      if (null == previous) {
+        return false;
+      }
+    }
+    else if (ifAbsent) {
+      previous = kindStore.putIfAbsent(key, value);
+      if (null != previous) {
+        return false;
+      }
+    }
+    else {
+      previous = kindStore.put(key, value);
+    }
+    updateIndexes(key.getKind(), key, previous, value);
+
+    final Version latest = new Version(timestamp, value, versions.get(key));
+    versions.put(key, latest);
+    // keep the newest version visible to the oldest snapshot, drop the older ones
+    final long horizon = horizon();
+    for (Version version = latest.previous; null != version; version = version.previous) {
+      if (version.timestamp <= horizon) {
+        version.previous = null;
+        break;
+      }
+    }
+    if (null == value) {
+      tombstones.add(new AbstractMap.SimpleImmutableEntry<InMemoryKey, Version>(key, latest));
+    }
+    return true;
   }
 
-  @Override
-  public String toStringKey(InMemoryKey key) {
-    return null != key ? key.getName() : null;
+  /**
+   * Makes the commit timestamp visible to new snapshots, in timestamp order.
+   * The earlier commits hold all their locks already, so this only waits for them to finish writing.
+   */
+  private void publish(long timestamp) {
+    while (!published.compareAndSet(timestamp - 1, timestamp)) {
+      Thread.yield();
+    }
   }
 
-  @Override
-  public InMemoryKey toParentKey(InMemoryKey key) {
-    return null != key ? key.getParentKey() : null;
+  /** @return the oldest snapshot that may still be read */
+  private long horizon() {
+    synchronized (transactions) {
+      return transactions.isEmpty() ? published.get() : transactions.first().snapshot;
+    }
+  }
+
+  private void removeTombstones() {
+    if (tombstones.isEmpty() || !tombstonesLock.tryLock()) {
+      return;
+    }
+    try {
+      final long horizon = horizon();
+      Map.Entry<InMemoryKey, Version> tombstone;
+      while (null != (tombstone = tombstones.peek()) && tombstone.getValue().timestamp <= horizon) {
+        tombstones.poll();
+        // unless re-written since
+        versions.remove(tombstone.getKey(), tombstone.getValue());
+      }
+    }
+    finally {
+      tombstonesLock.unlock();
+    }
+  }
+
+  /** the stored values are immutable, so they can be read without locking */
+  private Map<String, Object> snapshot(Map<String, Object> value) {
+    if (null == schemas) {
+      return Collections.unmodifiableMap(value instanceof SerializedValue ?
+        ((SerializedValue) value).decode() : new TreeMap<String, Object>(value));
+    }
+    final String kind = ((InMemoryKey) value.get(NAME_KEY)).getKind();
+    AtomicReference<CompactValue.Schema> schema = schemas.get(kind);
+    if (null == schema) {
+      final AtomicReference<CompactValue.Schema> created =
+        new AtomicReference<CompactValue.Schema>(CompactValue.Schema.EMPTY);
+      schema = schemas.putIfAbsent(kind, created);
+      if (null == schema) {
+        schema = created;
+      }
+    }
+    return CompactValue.encode(schema, value);
+  }
+
+  /**
+   * @return the entities of the kind, or only the descendants of the ancestor key, in key order
+   */
+  protected NavigableMap<InMemoryKey, Map<String, Object>> scope(String kind, InMemoryKey ancestorKey) {
+    final ConcurrentNavigableMap<InMemoryKey, Map<String, Object>> kindStore = kindStore(kind);
+    if (null == ancestorKey) {
+      return kindStore;
+    }
+    return descendants(kindStore, ancestorKey);
   }
 
-  protected Map<String, Map<String, Object>> kindStore(InMemoryKey key) {
+  protected ConcurrentNavigableMap<InMemoryKey, Map<String, Object>> kindStore(InMemoryKey key) {
     return kindStore(key.getKind());
   }
 
-  protected Map<String, Map<String, Object>> kindStore(String kind) {
-    Map<String, Map<String, Object>> ks = store.get(kind);
+  protected ConcurrentNavigableMap<InMemoryKey, Map<String, Object>> kindStore(String kind) {
+    ConcurrentNavigableMap<InMemoryKey, Map<String, Object>> ks = store.get(kind);
     if (null == ks && null != kind) {
-      ks = new TreeMap<String, Map<String, Object>>();
-      store.put(kind, ks);
+      final ConcurrentNavigableMap<InMemoryKey, Map<String, Object>> created =
+        new ConcurrentSkipListMap<InMemoryKey, Map<String, Object>>();
+      ks = store.putIfAbsent(kind, created);
+      if (null == ks) {
+        ks = created;
+      }
     }
     return ks;
   }
 
-  protected static boolean matchAll(Map<String, Object> v, Filter... filters) {
-    if (null == filters) {
-      return true;
+  // --- snapshots ---
+
+  /**
+   * Writes the entities and index definitions to a file, as committed at one point in time, for a fast
+   * {@link #restoreFrom(File)}. Concurrent writes may continue while writing.
+   */
+  public void snapshotTo(File file) throws IOException {
+    final Transaction pinned = (Transaction) beginTransaction();
+    try {
+      // kind -> the values visible to the snapshot
+      final Map<String, List<Map.Entry<InMemoryKey, Map<String, Object>>>> kinds =
+        new TreeMap<String, List<Map.Entry<InMemoryKey, Map<String, Object>>>>();
+      for (String kind : indexes.keySet()) {
+        kinds.put(kind, new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>());
+      }
+      for (Map.Entry<InMemoryKey, Version> entry : versions.entrySet()) {
+        Version version = entry.getValue();
+        while (null != version && pinned.snapshot < version.timestamp) {
+          version = version.previous;
+        }
+        if (null != version && null != version.value) {
+          List<Map.Entry<InMemoryKey, Map<String, Object>>> kind = kinds.get(entry.getKey().getKind());
+          if (null == kind) {
+            kind = new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>();
+            kinds.put(entry.getKey().getKind(), kind);
+          }
+          kind.add(new AbstractMap.SimpleImmutableEntry<InMemoryKey, Map<String, Object>>(entry.getKey(), version.value));
+        }
+      }
+
+      final FileOutputStream fos = new FileOutputStream(file);
+      try {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Channels.newOutputStream(fos.getChannel()), 1 << 16));
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(kinds.size());
+        for (Map.Entry<String, List<Map.Entry<InMemoryKey, Map<String, Object>>>> kind : kinds.entrySet()) {
+          writeString(out, kind.getKey());
+          final Map<String, Index> kindIndexes = indexes.get(kind.getKey());
+          final Collection<Index> defined = null != kindIndexes ?
+            new ArrayList<Index>(kindIndexes.values()) : Collections.<Index>emptyList();
+          out.writeInt(defined.size());
+          for (Index index : defined) {
+            writeString(out, index.column);
+            out.writeBoolean(index.sorted);
+          }
+
+          // in key order, to append to the restored skip lists
+          final List<Map.Entry<InMemoryKey, Map<String, Object>>> entries = kind.getValue();
+          Collections.sort(entries, ordering(null, true, null, true));
+          out.writeInt(entries.size());
+          for (Map.Entry<InMemoryKey, Map<String, Object>> entry : entries) {
+            writeKey(out, entry.getKey());
+            final byte[] value = SerializedValue.encode(entry.getValue());
+            out.writeInt(value.length);
+            out.write(value);
+          }
+        }
+        out.flush();
+        fos.getChannel().force(false);
+      }
+      finally {
+        fos.close();
+      }
     }
-    for (Filter f : filters) {
-      if (!match(v, f)) {
-        return false;
+    finally {
+      end(pinned);
+    }
+  }
+
+  /**
+   * Replaces all entities with the ones of a snapshot, and rebuilds the indexes in bulk.
+   * Must not run concurrently with other calls.
+   */
+  public void restoreFrom(File file) throws IOException {
+    synchronized (transactions) {
+      if (!transactions.isEmpty()) {
+        throw new IllegalStateException("Cannot restore with active transactions");
       }
     }
-    return true;
+    final ByteBuffer buffer;
+    final FileInputStream fis = new FileInputStream(file);
+    try {
+      final FileChannel channel = fis.getChannel();
+      if (Integer.MAX_VALUE < channel.size()) {
+        throw new IOException("Snapshot is too large to map: " + file);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      // the mapping stays valid after the channel is closed
+      fis.close();
+    }
+    if (buffer.remaining() < 8 || SNAPSHOT_MAGIC != buffer.getInt()) {
+      throw new IOException("Not a snapshot: " + file);
+    }
+
+    store.clear();
+    versions.clear();
+    tombstones.clear();
+    // empty the registered indexes
+    for (ConcurrentMap<String, Index> kindIndexes : indexes.values()) {
+      for (Index index : kindIndexes.values()) {
+        kindIndexes.put(index.column, new Index(index.column, index.sorted));
+      }
+    }
+
+    int count = 0;
+    final long timestamp = clock.incrementAndGet();
+    try {
+      for (int kinds = buffer.getInt(); 0 < kinds; kinds--) {
+        final String kind = readString(buffer);
+        ConcurrentMap<String, Index> kindIndexes = indexes.get(kind);
+        if (null == kindIndexes) {
+          kindIndexes = new ConcurrentHashMap<String, Index>();
+          indexes.put(kind, kindIndexes);
+        }
+        for (int i = buffer.getInt(); 0 < i; i--) {
+          final String column = readString(buffer);
+          final boolean sorted = 0 != buffer.get();
+          final Index existing = kindIndexes.get(column);
+          if (null == existing || (sorted && !existing.sorted)) {
+            kindIndexes.put(column, new Index(column, sorted));
+          }
+        }
+
+        final ConcurrentNavigableMap<InMemoryKey, Map<String, Object>> kindStore = kindStore(kind);
+        for (int i = buffer.getInt(); 0 < i; i--) {
+          final InMemoryKey key = readKey(buffer);
+          final byte[] bytes = new byte[buffer.getInt()];
+          buffer.get(bytes);
+          final Map<String, Object> value = snapshot(new SerializedValue(key, bytes));
+          kindStore.put(key, value);
+          versions.put(key, new Version(timestamp, value, null));
+          for (Index index : kindIndexes.values()) {
+            index.add(value.get(index.column), key);
+          }
+          reserveId(key);
+          count++;
+        }
+      }
+    }
+    catch (BufferUnderflowException e) {
+      throw new IOException("Truncated snapshot: " + file, e);
+    }
+    finally {
+      publish(timestamp);
+    }
+    LOGGER.info("restored {} entities from {}", count, file);
+  }
+
+  private static void writeKey(DataOutputStream out, InMemoryKey key) throws IOException {
+    final byte[] bytes = key.encoded();
+    out.writeInt(bytes.length);
+    out.write(bytes);
   }
 
-  protected static boolean match(Map<String, Object> v, Filter f) {
-    final Object value = v.get(f.getColumn());
-    if (null == f.getOperand()) {
-      return null == value;
+  private static InMemoryKey readKey(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return InMemoryKey.fromBytes(bytes);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    final byte[] bytes = s.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /** A hash or sorted index from column value to entity names */
+  private static final class Index {
+    /** the index key for null and missing values, which concurrent maps do not allow */
+    private static final Object NULL = new Object();
+
+    /**
+     * Orders like compareValues. Unequal values may share an entry, which is fine as candidates are verified.
+     */
+    private static final Comparator<Object> ORDER = new Comparator<Object>() {
+      @Override
+      public int compare(Object o1, Object o2) {
+        return compareValues(NULL != o1 ? o1 : null, NULL != o2 ? o2 : null);
+      }
+    };
+
+    final String column;
+    final boolean sorted;
+    private final ConcurrentMap<Object, Set<InMemoryKey>> entries;
+
+    Index(String column, boolean sorted) {
+      this.column = column;
+      this.sorted = sorted;
+      this.entries = sorted ? new ConcurrentSkipListMap<Object, Set<InMemoryKey>>(ORDER) :
+        new ConcurrentHashMap<Object, Set<InMemoryKey>>();
     }
-    switch (f.getOperator()) {
-      case EQUALS:
-        return f.getOperand().equals(value);
-      default:
-        throw new UnsupportedOperationException("match " + f.getOperator());
+
+    Set<InMemoryKey> get(Object value) {
+      final Set<InMemoryKey> names = entries.get(null != value ? value : NULL);
+      return null != names ? names : Collections.<InMemoryKey>emptySet();
+    }
+
+    /**
+     * @return the entries of a sorted index, limited by the equality and range filters on its column
+     */
+    NavigableMap<Object, Set<InMemoryKey>> range(Filter... filters) {
+      NavigableMap<Object, Set<InMemoryKey>> range = (NavigableMap<Object, Set<InMemoryKey>>) entries;
+      for (Filter f : filters) {
+        if (!column.equals(f.getColumn()) || null == f.getOperand()) {
+          continue;
+        }
+        try {
+          switch (f.getOperator()) {
+            case EQUALS:
+              range = range.subMap(f.getOperand(), true, f.getOperand(), true);
+              break;
+            case GREATER_THAN:
+              range = range.tailMap(f.getOperand(), false);
+              break;
+            case GREATER_THAN_OR_EQUALS:
+              range = range.tailMap(f.getOperand(), true);
+              break;
+            case LESS_THAN:
+              range = range.headMap(f.getOperand(), false);
+              break;
+            default:
+              break;
+          }
+        }
+        catch (IllegalArgumentException disjoint) {
+          // the filters select outside the range of a previous filter
+          return new TreeMap<Object, Set<InMemoryKey>>(ORDER);
+        }
+      }
+      return range;
+    }
+
+    /**
+     * @return the range from the value and on, in the specified direction, including the value itself
+     */
+    NavigableMap<Object, Set<InMemoryKey>> seek(NavigableMap<Object, Set<InMemoryKey>> range, Object value, boolean ascending) {
+      final Object key = null != value ? value : NULL;
+      try {
+        return ascending ? range.tailMap(key, true) : range.headMap(key, true);
+      }
+      catch (IllegalArgumentException outside) {
+        // the value is outside the filtered range, entries are compared one by one instead
+        return range;
+      }
+    }
+
+    /** synchronized with remove, not to drop an entry while adding to it */
+    synchronized void add(Object value, InMemoryKey name) {
+      final Object key = null != value ? value : NULL;
+      Set<InMemoryKey> names = entries.get(key);
+      if (null == names) {
+        names = Collections.newSetFromMap(new ConcurrentHashMap<InMemoryKey, Boolean>());
+        entries.put(key, names);
+      }
+      names.add(name);
+    }
+
+    synchronized void remove(Object value, InMemoryKey name) {
+      final Object key = null != value ? value : NULL;
+      final Set<InMemoryKey> names = entries.get(key);
+      if (null != names) {
+        names.remove(name);
+        if (names.isEmpty()) {
+          entries.remove(key);
+        }
+      }
+    }
+  }
+
+  /** a committed value of a key, or null if deleted */
+  private static final class Version {
+    final long timestamp;
+    final Map<String, Object> value;
+    volatile Version previous;
+
+    Version(long timestamp, Map<String, Object> value, Version previous) {
+      this.timestamp = timestamp;
+      this.value = value;
+      this.previous = previous;
+    }
+  }
+
+  private static final class Transaction implements Comparable<Transaction> {
+    final long snapshot;
+    final long sequence;
+    final Set<InMemoryKey> reads = Collections.newSetFromMap(new ConcurrentHashMap<InMemoryKey, Boolean>());
+    /** buffered writes, null values are deletes */
+    final Map<InMemoryKey, Map<String, Object>> writes =
+      Collections.synchronizedMap(new LinkedHashMap<InMemoryKey, Map<String, Object>>());
+    volatile boolean active = true;
+
+    Transaction(long snapshot, long sequence) {
+      this.snapshot = snapshot;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Transaction other) {
+      if (snapshot != other.snapshot) {
+        return snapshot < other.snapshot ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
     }
   }
 }
@@ -23,6 +23,7 @@ package net.sf.mardao.dao;
  */
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
 
 import net.sf.mardao.domain.AbstractEntityBuilder;
@@ -35,11 +36,30 @@ import net.sf.mardao.domain.AbstractEntityBuilder;
 public interface Mapper<T, ID extends Serializable> {
   ID fromKey(Object key);
   T fromReadValue(Object value);
+
+  /**
+   * Maps a partial value, from a projection query.
+   * @param value the projected value
+   * @param columns the projected column names
+   * @return an entity with the key and the projected columns populated only
+   */
+  T fromReadValue(Object value, Collection<String> columns);
   String getCreatedByColumnName();
   String getCreatedDateColumnName();
   ID getId(T entity);
+
+  /**
+   * @return the type of the id, Long or String
+   */
+  Class<ID> getIdClass();
+  void setId(T entity, ID id);
   Object getParentKey(T entity);
   String getKind();
+
+  /**
+   * @return the columns to index in stores that do not index implicitly
+   */
+  Collection<String> getIndexedColumnNames();
   String getUpdatedByColumnName();
   String getUpdatedDateColumnName();
   Object toKey(Object parentKey, ID id);
@@ -0,0 +1,373 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores records of key and value bytes in direct ByteBuffers, outside of the Java heap.
+ * Records are allocated from slabs in power-of-two size classes, and freed chunks are reused by the same class.
+ * Keys are found by an open-addressing hash table of record addresses, itself in a direct ByteBuffer.
+ * Reads share a read lock, writes take the write lock.
+ */
+class OffHeapStore {
+
+  /** larger than the 1MB Datastore entity limit */
+  static final int SLAB_SIZE = 1 << 21;
+  private static final int MIN_CHUNK_SHIFT = 5;
+  private static final int MAX_CHUNK_SHIFT = 21;
+  /** key length and value length */
+  private static final int HEADER = 8;
+  /** index entries are the address + 1, or 0 if empty, and the hash */
+  private static final int ENTRY = 12;
+  private static final int MAX_CAPACITY = 1 << 27;
+
+  private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+  /** per size class, the addresses of free chunks */
+  private final LongStack[] free = new LongStack[MAX_CHUNK_SHIFT - MIN_CHUNK_SHIFT + 1];
+  /** per size class, the slab being carved and the next offset in it */
+  private final int[] carving = new int[free.length];
+  private final int[] carved = new int[free.length];
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private ByteBuffer index;
+  private int mask;
+  private int size = 0;
+  private long allocated = 0L;
+
+  OffHeapStore() {
+    for (int c = 0; c < free.length; c++) {
+      free[c] = new LongStack();
+      carving[c] = -1;
+    }
+    index = ByteBuffer.allocateDirect(1024 * ENTRY);
+    mask = 1023;
+  }
+
+  /** Visits records during a scan, under the read lock, so it must not write to the store. */
+  interface Visitor {
+    /** @return false to stop the scan */
+    boolean visit(byte[] key, byte[] value);
+  }
+
+  byte[] get(byte[] key) {
+    lock.readLock().lock();
+    try {
+      final int slot = find(key, hash(key));
+      return slot < 0 ? null : readValue(address(slot));
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return false if ifAbsent and the key is stored already
+   */
+  boolean put(byte[] key, byte[] value, boolean ifAbsent) {
+    final int length = HEADER + key.length + value.length;
+    if (1 << MAX_CHUNK_SHIFT < length) {
+      throw new IllegalArgumentException("Record of " + length + " bytes is larger than " + SLAB_SIZE);
+    }
+    lock.writeLock().lock();
+    try {
+      final int hash = hash(key);
+      int slot = find(key, hash);
+      if (0 <= slot) {
+        if (ifAbsent) {
+          return false;
+        }
+        final long previous = address(slot);
+        if (sizeClass(recordLength(previous)) == sizeClass(length)) {
+          // overwrite in place
+          write(previous, key, value);
+          return true;
+        }
+        release(previous);
+      }
+      else {
+        if (mask + 1 < (size + 1) * 2) {
+          grow();
+        }
+        slot = -find(key, hash) - 1;
+        size++;
+      }
+      final long address = allocate(length);
+      write(address, key, value);
+      index.putLong(slot * ENTRY, address + 1);
+      index.putInt(slot * ENTRY + 8, hash);
+      return true;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  boolean remove(byte[] key) {
+    lock.writeLock().lock();
+    try {
+      final int slot = find(key, hash(key));
+      if (slot < 0) {
+        return false;
+      }
+      release(address(slot));
+      removeSlot(slot);
+      size--;
+      return true;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  void scan(Visitor visitor) {
+    lock.readLock().lock();
+    try {
+      for (int slot = 0; slot <= mask; slot++) {
+        final long entry = index.getLong(slot * ENTRY);
+        if (0L != entry && !visitor.visit(readKey(entry - 1), readValue(entry - 1))) {
+          return;
+        }
+      }
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return the bytes of the allocated chunks */
+  long getAllocatedBytes() {
+    lock.readLock().lock();
+    try {
+      return allocated;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return the bytes of direct memory held by the slabs and the index */
+  long getReservedBytes() {
+    lock.readLock().lock();
+    try {
+      return (long) slabs.size() * SLAB_SIZE + index.capacity();
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // --- hash index ---
+
+  private static int hash(byte[] key) {
+    // spread, as the table is indexed by the low bits
+    int h = Arrays.hashCode(key);
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h;
+  }
+
+  /**
+   * @return the slot of the key, or -(empty slot + 1) if not found
+   */
+  private int find(byte[] key, int hash) {
+    int slot = hash & mask;
+    while (true) {
+      final long entry = index.getLong(slot * ENTRY);
+      if (0L == entry) {
+        return -slot - 1;
+      }
+      if (hash == index.getInt(slot * ENTRY + 8) && keyEquals(entry - 1, key)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private long address(int slot) {
+    return index.getLong(slot * ENTRY) - 1;
+  }
+
+  /** Shifts back the following entries of the probe sequence, so that lookups need no tombstones. */
+  private void removeSlot(int slot) {
+    int hole = slot;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      final long entry = index.getLong(next * ENTRY);
+      if (0L == entry) {
+        break;
+      }
+      final int hash = index.getInt(next * ENTRY + 8);
+      final int home = hash & mask;
+      // the entry may fill the hole unless its home is cyclically in (hole, next]
+      final boolean between = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+      if (!between) {
+        index.putLong(hole * ENTRY, entry);
+        index.putInt(hole * ENTRY + 8, hash);
+        hole = next;
+      }
+    }
+    index.putLong(hole * ENTRY, 0L);
+  }
+
+  private void grow() {
+    final int capacity = (mask + 1) * 2;
+    if (MAX_CAPACITY < capacity) {
+      throw new IllegalStateException("Index is full at " + size + " records");
+    }
+    final ByteBuffer previous = index;
+    final int previousCapacity = mask + 1;
+    index = ByteBuffer.allocateDirect(capacity * ENTRY);
+    mask = capacity - 1;
+    for (int slot = 0; slot < previousCapacity; slot++) {
+      final long entry = previous.getLong(slot * ENTRY);
+      if (0L != entry) {
+        final int hash = previous.getInt(slot * ENTRY + 8);
+        int target = hash & mask;
+        while (0L != index.getLong(target * ENTRY)) {
+          target = (target + 1) & mask;
+        }
+        index.putLong(target * ENTRY, entry);
+        index.putInt(target * ENTRY + 8, hash);
+      }
+    }
+  }
+
+  // --- records ---
+
+  private static int sizeClass(int length) {
+    final int shift = Math.max(MIN_CHUNK_SHIFT, 32 - Integer.numberOfLeadingZeros(length - 1));
+    return shift - MIN_CHUNK_SHIFT;
+  }
+
+  private long allocate(int length) {
+    final int c = sizeClass(length);
+    final int chunk = 1 << (c + MIN_CHUNK_SHIFT);
+    allocated += chunk;
+    if (!free[c].isEmpty()) {
+      return free[c].pop();
+    }
+    if (carving[c] < 0 || SLAB_SIZE < carved[c] + chunk) {
+      slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+      carving[c] = slabs.size() - 1;
+      carved[c] = 0;
+    }
+    final long address = ((long) carving[c] << 32) | carved[c];
+    carved[c] += chunk;
+    return address;
+  }
+
+  private void release(long address) {
+    final int c = sizeClass(recordLength(address));
+    allocated -= 1 << (c + MIN_CHUNK_SHIFT);
+    free[c].push(address);
+  }
+
+  private ByteBuffer slab(long address) {
+    return slabs.get((int) (address >>> 32));
+  }
+
+  private static int offset(long address) {
+    return (int) address;
+  }
+
+  private int recordLength(long address) {
+    final ByteBuffer slab = slab(address);
+    return HEADER + slab.getInt(offset(address)) + slab.getInt(offset(address) + 4);
+  }
+
+  private void write(long address, byte[] key, byte[] value) {
+    final ByteBuffer record = slab(address).duplicate();
+    record.position(offset(address));
+    record.putInt(key.length).putInt(value.length).put(key).put(value);
+  }
+
+  private boolean keyEquals(long address, byte[] key) {
+    final ByteBuffer slab = slab(address);
+    final int offset = offset(address);
+    if (key.length != slab.getInt(offset)) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] != slab.get(offset + HEADER + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private byte[] readKey(long address) {
+    final ByteBuffer record = slab(address).duplicate();
+    record.position(offset(address));
+    final byte[] key = new byte[record.getInt()];
+    record.getInt();
+    record.get(key);
+    return key;
+  }
+
+  private byte[] readValue(long address) {
+    final ByteBuffer record = slab(address).duplicate();
+    record.position(offset(address));
+    final int keyLength = record.getInt();
+    final byte[] value = new byte[record.getInt()];
+    record.position(record.position() + keyLength);
+    record.get(value);
+    return value;
+  }
+
+  private static final class LongStack {
+    private long[] elements = new long[16];
+    private int size = 0;
+
+    boolean isEmpty() {
+      return 0 == size;
+    }
+
+    void push(long element) {
+      if (size == elements.length) {
+        elements = Arrays.copyOf(elements, size * 2);
+      }
+      elements[size++] = element;
+    }
+
+    long pop() {
+      return elements[--size];
+    }
+  }
+}
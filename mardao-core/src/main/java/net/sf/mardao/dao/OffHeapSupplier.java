@@ -0,0 +1,268 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.filter.Filter;
+
+/**
+ * Stores serialized entities outside of the Java heap, see {@link OffHeapStore}, for large in-process datasets
+ * without GC pauses. Read values decode only the columns requested through the getters.
+ *
+ * Transactions buffer their writes until committed, and are validated optimistically, see {@link SerializedTransaction}.
+ * Queries scan the store, as no indexes are kept, and read the latest commits also within a transaction.
+ */
+public class OffHeapSupplier extends AbstractMapSupplier {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(OffHeapSupplier.class);
+
+  private final OffHeapStore store = new OffHeapStore();
+  /** commits validate and apply under the write lock, other writes hold the read lock */
+  private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+
+  public OffHeapSupplier() {
+  }
+
+  /**
+   * @param executor runs the futures, see {@link SupplierExecutors}
+   */
+  public OffHeapSupplier(ExecutorService executor) {
+    super(executor);
+  }
+
+  @Override
+  public Object beginTransaction() {
+    return new SerializedTransaction();
+  }
+
+  @Override
+  public void commitTransaction(Object tx) {
+    final SerializedTransaction transaction = (SerializedTransaction) tx;
+    final Map<InMemoryKey, byte[]> writes = transaction.getWrites();
+    final Map<InMemoryKey, byte[]> seen = transaction.getSeen();
+    transaction.clear();
+    if (writes.isEmpty()) {
+      return;
+    }
+    commitLock.writeLock().lock();
+    try {
+      for (Map.Entry<InMemoryKey, byte[]> entry : seen.entrySet()) {
+        SerializedTransaction.validate(entry.getKey(), entry.getValue(), store.get(encode(entry.getKey())));
+      }
+      for (Map.Entry<InMemoryKey, byte[]> write : writes.entrySet()) {
+        if (null != write.getValue()) {
+          store.put(encode(write.getKey()), write.getValue(), false);
+        }
+        else {
+          store.remove(encode(write.getKey()));
+        }
+      }
+    }
+    finally {
+      commitLock.writeLock().unlock();
+    }
+    LOGGER.debug("committed {} writes", writes.size());
+  }
+
+  @Override
+  public void rollbackActiveTransaction(Object tx) {
+    ((SerializedTransaction) tx).clear();
+  }
+
+  @Override
+  public void createIndex(String kind, String column, boolean sorted) {
+    // queries scan the store
+  }
+
+  /** @return the number of stored entities */
+  public int size() {
+    return store.size();
+  }
+
+  /** @return the bytes of direct memory held by the store */
+  public long getReservedBytes() {
+    return store.getReservedBytes();
+  }
+
+  @Override
+  public int count(Object tx, String kind, InMemoryKey ancestorKey, InMemoryKey simpleKey, Filter... filters) {
+    return scan(kind, ancestorKey, simpleKey, filters).size();
+  }
+
+  @Override
+  public Future<Integer> countFuture(final Object tx, final String kind, final InMemoryKey ancestorKey,
+                                     final InMemoryKey simpleKey, final int limit, final Filter... filters) {
+    return submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        final int count = count(tx, kind, ancestorKey, simpleKey, filters);
+        return 0 < limit ? Math.min(limit, count) : count;
+      }
+    });
+  }
+
+  @Override
+  public void deleteValue(Object tx, InMemoryKey key) throws IOException {
+    if (null != tx) {
+      ((SerializedTransaction) tx).write(key, store.get(encode(key)), null);
+      return;
+    }
+    commitLock.readLock().lock();
+    try {
+      store.remove(encode(key));
+    }
+    finally {
+      commitLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Map<String, Object> readValue(Object tx, InMemoryKey key) throws IOException {
+    final SerializedTransaction transaction = (SerializedTransaction) tx;
+    if (null != transaction && transaction.isWritten(key)) {
+      final byte[] value = transaction.getWritten(key);
+      return null != value ? new SerializedValue(key, value) : null;
+    }
+    final byte[] value = store.get(encode(key));
+    if (null != transaction) {
+      transaction.see(key, value);
+    }
+    return null != value ? new SerializedValue(key, value) : null;
+  }
+
+  @Override
+  public InMemoryKey writeValue(Object tx, InMemoryKey key, Map<String, Object> core) throws IOException {
+    if (null != tx) {
+      // assign long key? skip ids already written explicitly
+      if (null == key.getName()) {
+        do {
+          key = InMemoryKey.of(key.getParentKey(), key.getKind(), Long.toString(allocateIds(key.getKind(), 1)));
+        } while (null != store.get(encode(key)));
+        core.put(NAME_KEY, key);
+      }
+      else {
+        reserveId(key);
+      }
+      ((SerializedTransaction) tx).write(key, store.get(encode(key)), encode(core));
+      LOGGER.debug("buffered {} -> {}", key, core);
+      return key;
+    }
+    commitLock.readLock().lock();
+    try {
+      // assign long key? skip ids already written explicitly
+      if (null == key.getName()) {
+        do {
+          key = InMemoryKey.of(key.getParentKey(), key.getKind(), Long.toString(allocateIds(key.getKind(), 1)));
+          core.put(NAME_KEY, key);
+        } while (!store.put(encode(key), encode(core), true));
+      }
+      else {
+        reserveId(key);
+        store.put(encode(key), encode(core), false);
+      }
+    }
+    finally {
+      commitLock.readLock().unlock();
+    }
+    LOGGER.debug("put {} -> {}", key, core);
+    return key;
+  }
+
+  @Override
+  public Iterable<Map<String, Object>> queryIterable(Object tx, String kind, boolean keysOnly, int offset, int limit,
+                                                     InMemoryKey ancestorKey, InMemoryKey simpleKey,
+                                                     String primaryOrderBy, boolean primaryIsAscending,
+                                                     String secondaryOrderBy, boolean secondaryIsAscending, Filter... filters) {
+    return queryScanned(scan(kind, ancestorKey, simpleKey, filters), keysOnly, offset, limit,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending);
+  }
+
+  @Override
+  public CursorPage<Map<String, Object>> queryPage(Object tx, String kind, boolean keysOnly,
+                                                   int requestedPageSize, InMemoryKey ancestorKey,
+                                                   String primaryOrderBy, boolean primaryIsAscending,
+                                                   String secondaryOrderBy, boolean secondaryIsAscending,
+                                                   Collection<String> projections, String cursorString,
+                                                   Filter... filters) {
+    return pageScanned(scan(kind, ancestorKey, null, filters), keysOnly, requestedPageSize,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending, projections, cursorString);
+  }
+
+  /**
+   * @return the entities of the kind matching the filters, in no particular order
+   */
+  private List<Map.Entry<InMemoryKey, Map<String, Object>>> scan(final String kind, final InMemoryKey ancestorKey,
+                                                                 InMemoryKey simpleKey, final Filter... filters) {
+    final List<Map.Entry<InMemoryKey, Map<String, Object>>> entries =
+      new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>();
+    if (null != simpleKey) {
+      final byte[] value = store.get(encode(simpleKey));
+      if (null != value && (null == ancestorKey || simpleKey.isDescendantOf(ancestorKey))) {
+        addMatching(entries, simpleKey, value, filters);
+      }
+      return entries;
+    }
+    store.scan(new OffHeapStore.Visitor() {
+      @Override
+      public boolean visit(byte[] keyBytes, byte[] value) {
+        final InMemoryKey key = InMemoryKey.fromBytes(keyBytes);
+        if (kind.equals(key.getKind()) && (null == ancestorKey || key.isDescendantOf(ancestorKey))) {
+          addMatching(entries, key, value, filters);
+        }
+        return true;
+      }
+    });
+    return entries;
+  }
+
+  private static void addMatching(List<Map.Entry<InMemoryKey, Map<String, Object>>> entries, InMemoryKey key,
+                                  byte[] bytes, Filter... filters) {
+    final Map<String, Object> value = new SerializedValue(key, bytes);
+    if (matchAll(value, filters)) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<InMemoryKey, Map<String, Object>>(key, value));
+    }
+  }
+
+  private static byte[] encode(InMemoryKey key) {
+    return key.encoded();
+  }
+
+  private static byte[] encode(Map<String, Object> value) throws IOException {
+    return SerializedValue.encode(value);
+  }
+}
@@ -0,0 +1,278 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.filter.Filter;
+
+/**
+ * A lazy, single-use sequence of query results. Values are fetched from the Supplier
+ * one batch (cursor page) at a time, and mapped to entities only when consumed.
+ * Use {@link #forEach(ExecutorService, int, EntityVisitor)} to map and process
+ * the batches in parallel.
+ */
+public class QueryStream<T> implements Iterable<T>, Closeable {
+
+  private final Mapper<T, ?> mapper;
+  private final Supplier<Object, Object, ?, Object> supplier;
+  private final Object transaction;
+  private final int batchSize;
+  private final Object ancestorKey;
+  private final String primaryOrderBy;
+  private final boolean primaryIsAscending;
+  private final String secondaryOrderBy;
+  private final boolean secondaryIsAscending;
+  private final Filter[] filters;
+
+  private String cursorString;
+  private boolean started;
+  private boolean exhausted;
+  /** the number of values fetched, and if they are all */
+  private int fetched;
+  private boolean complete;
+  private Integer count;
+
+  protected QueryStream(Mapper<T, ?> mapper, Supplier<Object, Object, ?, Object> supplier, Object transaction, int batchSize,
+                        Object ancestorKey,
+                        String primaryOrderBy, boolean primaryIsAscending,
+                        String secondaryOrderBy, boolean secondaryIsAscending,
+                        Filter... filters) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    this.mapper = mapper;
+    this.supplier = supplier;
+    this.transaction = transaction;
+    this.batchSize = batchSize;
+    this.ancestorKey = ancestorKey;
+    this.primaryOrderBy = primaryOrderBy;
+    this.primaryIsAscending = primaryIsAscending;
+    this.secondaryOrderBy = secondaryOrderBy;
+    this.secondaryIsAscending = secondaryIsAscending;
+    this.filters = filters;
+  }
+
+  /**
+   * Fetches the next batch of values from the Supplier.
+   * @return the next batch of values, or null if there are no more batches
+   */
+  protected synchronized Collection<?> nextBatch() {
+    if (exhausted) {
+      return null;
+    }
+    final CursorPage<?> page = supplier.queryPage(transaction, mapper.getKind(), false,
+      batchSize, ancestorKey,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending,
+      null, cursorString, filters);
+    cursorString = page.getCursorKey();
+    exhausted = null == cursorString;
+    final Collection<?> items = null != page.getItems() ? page.getItems() : Collections.emptyList();
+    fetched += items.size();
+    complete = exhausted;
+    return items;
+  }
+
+  /**
+   * @return the number of entities if known without counting, when all batches were fetched, or -1
+   */
+  public synchronized int getEstimatedSize() {
+    return complete ? fetched : -1;
+  }
+
+  /**
+   * Counts the matching entities with the Supplier, on first invocation only, as the size may change while
+   * streaming. This is a query over the whole result set, on the Datastore a blocking one.
+   * @return the number of entities reported by the Supplier
+   */
+  public synchronized int count() {
+    if (null == count) {
+      count = supplier.count(transaction, mapper.getKind(), ancestorKey, null, filters);
+    }
+    return count;
+  }
+
+  /**
+   * Stops fetching further batches.
+   */
+  @Override
+  public synchronized void close() {
+    exhausted = true;
+  }
+
+  private synchronized void start() {
+    if (started) {
+      throw new IllegalStateException("QueryStream can only be consumed once");
+    }
+    started = true;
+  }
+
+  /**
+   * Returns a lazy Iterator over the entities. Can only be invoked once.
+   */
+  @Override
+  public Iterator<T> iterator() {
+    start();
+    return new Iterator<T>() {
+      private Iterator<?> batch = Collections.emptyList().iterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!batch.hasNext()) {
+          final Collection<?> values = nextBatch();
+          if (null == values) {
+            return false;
+          }
+          batch = values.iterator();
+        }
+        return true;
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return mapper.fromReadValue(batch.next());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Visits all entities sequentially on the calling thread, then closes this stream.
+   * @param visitor invoked for each entity
+   */
+  public void forEach(EntityVisitor<T> visitor) throws IOException {
+    try {
+      for (T entity : this) {
+        visitor.visit(entity);
+      }
+    }
+    finally {
+      close();
+    }
+  }
+
+  /**
+   * Fetches the batches on the calling thread, and maps and visits each batch as a task on the executor.
+   * At most maxBatchesInFlight fetched batches are held in memory at the same time.
+   * Returns when all entities have been visited, then closes this stream.
+   * @param executor runs the per-batch tasks
+   * @param maxBatchesInFlight the maximum number of fetched batches not yet visited
+   * @param visitor invoked for each entity, concurrently from several threads
+   */
+  public void forEach(ExecutorService executor, int maxBatchesInFlight, final EntityVisitor<T> visitor) throws IOException {
+    start();
+    final Semaphore inFlight = new Semaphore(maxBatchesInFlight);
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    try {
+      while (true) {
+        // acquire before fetching, not to hold more than maxBatchesInFlight batches
+        inFlight.acquire();
+        boolean submitted = false;
+        try {
+          final Collection<?> batch = nextBatch();
+          if (null == batch) {
+            break;
+          }
+          futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              try {
+                for (Object value : batch) {
+                  visitor.visit(mapper.fromReadValue(value));
+                }
+                return null;
+              }
+              finally {
+                inFlight.release();
+              }
+            }
+          }));
+          submitted = true;
+        }
+        finally {
+          if (!submitted) {
+            inFlight.release();
+          }
+        }
+        checkDone(futures);
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while visiting batches", e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Visiting batch", e.getCause());
+    }
+    finally {
+      close();
+      for (Future<Void> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  public void forEach(ExecutorService executor, EntityVisitor<T> visitor) throws IOException {
+    forEach(executor, 2 * Runtime.getRuntime().availableProcessors(), visitor);
+  }
+
+  /** fail fast, by resolving and removing completed tasks */
+  private static void checkDone(List<Future<Void>> futures) throws ExecutionException, InterruptedException {
+    for (Iterator<Future<Void>> i = futures.iterator(); i.hasNext(); ) {
+      final Future<Void> future = i.next();
+      if (future.isDone()) {
+        future.get();
+        i.remove();
+      }
+    }
+  }
+}
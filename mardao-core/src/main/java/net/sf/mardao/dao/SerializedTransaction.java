@@ -0,0 +1,93 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A transaction of the serializing suppliers. Writes are buffered until committed, where a null value is a delete.
+ * The stored value of each key is recorded when first read or written, and validated optimistically at commit:
+ * if another writer changed it since, a ConcurrentModificationException is thrown, like the Datastore does.
+ * Rollback discards the buffer.
+ */
+final class SerializedTransaction {
+
+  private final Map<InMemoryKey, byte[]> writes = new LinkedHashMap<InMemoryKey, byte[]>();
+  private final Map<InMemoryKey, byte[]> seen = new HashMap<InMemoryKey, byte[]>();
+
+  synchronized boolean isWritten(InMemoryKey key) {
+    return writes.containsKey(key);
+  }
+
+  /** @return the buffered value of the key, or null if deleted */
+  synchronized byte[] getWritten(InMemoryKey key) {
+    return writes.get(key);
+  }
+
+  /**
+   * Records the stored value of a key read, unless already seen.
+   * @param stored the serialized value in the store, or null if none
+   */
+  synchronized void see(InMemoryKey key, byte[] stored) {
+    if (!seen.containsKey(key)) {
+      seen.put(key, stored);
+    }
+  }
+
+  /**
+   * Buffers a write, recording the stored value of the key unless already seen.
+   * @param value the serialized value, or null to delete
+   */
+  synchronized void write(InMemoryKey key, byte[] stored, byte[] value) {
+    see(key, stored);
+    writes.put(key, value);
+  }
+
+  /** @return the keys seen, which include the keys written */
+  synchronized Map<InMemoryKey, byte[]> getSeen() {
+    return new HashMap<InMemoryKey, byte[]>(seen);
+  }
+
+  synchronized Map<InMemoryKey, byte[]> getWrites() {
+    return new LinkedHashMap<InMemoryKey, byte[]>(writes);
+  }
+
+  synchronized void clear() {
+    writes.clear();
+    seen.clear();
+  }
+
+  /**
+   * @param stored the serialized value in the store now, or null if none
+   * @throws ConcurrentModificationException if the key was written by another since seen
+   */
+  static void validate(InMemoryKey key, byte[] seen, byte[] stored) {
+    if (!Arrays.equals(seen, stored)) {
+      throw new ConcurrentModificationException("Concurrent write to " + key);
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A value serialized to bytes, decoding columns only when requested.
+ * The key columns are not serialized, but kept as the key of the value.
+ */
+final class SerializedValue extends AbstractMap<String, Object> {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte TYPE_LONG = 1;
+  private static final byte TYPE_INTEGER = 2;
+  private static final byte TYPE_FLOAT = 3;
+  private static final byte TYPE_BOOLEAN = 4;
+  private static final byte TYPE_DATE = 5;
+  private static final byte TYPE_STRING = 6;
+  private static final byte TYPE_BYTES = 7;
+  private static final byte TYPE_KEY = 8;
+  private static final byte TYPE_SERIALIZED = 9;
+
+  private final InMemoryKey key;
+  private final byte[] bytes;
+
+  SerializedValue(InMemoryKey key, byte[] bytes) {
+    this.key = key;
+    this.bytes = bytes;
+  }
+
+  @Override
+  public Object get(Object column) {
+    if (AbstractMapSupplier.NAME_KEY.equals(column)) {
+      return key;
+    }
+    if (AbstractMapSupplier.NAME_PARENT_KEY.equals(column)) {
+      return key.getParentKey();
+    }
+    if (!(column instanceof String)) {
+      return null;
+    }
+    final byte[] name = ((String) column).getBytes(UTF8);
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      final boolean found = nameEquals(buffer, name);
+      final byte type = buffer.get();
+      if (found) {
+        return decode(buffer, type);
+      }
+      skip(buffer, type);
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(Object column) {
+    return null != get(column);
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return Collections.unmodifiableMap(decode()).entrySet();
+  }
+
+  /** @return all columns, decoded into a new map */
+  TreeMap<String, Object> decode() {
+    final TreeMap<String, Object> entries = new TreeMap<String, Object>();
+    entries.put(AbstractMapSupplier.NAME_KEY, key);
+    entries.put(AbstractMapSupplier.NAME_PARENT_KEY, key.getParentKey());
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      final String name = new String(readBytes(buffer), UTF8);
+      entries.put(name, decode(buffer, buffer.get()));
+    }
+    return entries;
+  }
+
+  /** reads the name, and compares it to the specified one */
+  private static boolean nameEquals(ByteBuffer buffer, byte[] name) {
+    final int length = buffer.getInt();
+    boolean equal = length == name.length;
+    for (int i = 0; equal && i < length; i++) {
+      equal = name[i] == buffer.get(buffer.position() + i);
+    }
+    buffer.position(buffer.position() + length);
+    return equal;
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    final byte[] b = new byte[buffer.getInt()];
+    buffer.get(b);
+    return b;
+  }
+
+  private static void skip(ByteBuffer buffer, byte type) {
+    switch (type) {
+      case TYPE_LONG:
+      case TYPE_DATE:
+        buffer.position(buffer.position() + 8);
+        break;
+      case TYPE_INTEGER:
+      case TYPE_FLOAT:
+        buffer.position(buffer.position() + 4);
+        break;
+      case TYPE_BOOLEAN:
+        buffer.position(buffer.position() + 1);
+        break;
+      default:
+        buffer.position(buffer.position() + 4 + buffer.getInt(buffer.position()));
+    }
+  }
+
+  private static Object decode(ByteBuffer buffer, byte type) {
+    switch (type) {
+      case TYPE_LONG:
+        return buffer.getLong();
+      case TYPE_INTEGER:
+        return buffer.getInt();
+      case TYPE_FLOAT:
+        return buffer.getFloat();
+      case TYPE_BOOLEAN:
+        return 0 != buffer.get();
+      case TYPE_DATE:
+        return new Date(buffer.getLong());
+      case TYPE_STRING:
+        return new String(readBytes(buffer), UTF8);
+      case TYPE_BYTES:
+        return ByteBuffer.wrap(readBytes(buffer));
+      case TYPE_KEY:
+        return InMemoryKey.fromBytes(readBytes(buffer));
+      case TYPE_SERIALIZED:
+        try {
+          final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(buffer)));
+          try {
+            return ois.readObject();
+          }
+          finally {
+            ois.close();
+          }
+        }
+        catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        catch (ClassNotFoundException e) {
+          throw new IllegalStateException(e);
+        }
+      default:
+        throw new IllegalStateException("Unknown type " + type);
+    }
+  }
+
+  /**
+   * Encodes the columns as name length, name, type and value, without the key columns.
+   */
+  static byte[] encode(Map<String, Object> value) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    for (Map.Entry<String, Object> entry : value.entrySet()) {
+      final Object v = entry.getValue();
+      if (null == v || AbstractMapSupplier.NAME_KEY.equals(entry.getKey()) || AbstractMapSupplier.NAME_PARENT_KEY.equals(entry.getKey())) {
+        continue;
+      }
+      writeBytes(out, entry.getKey().getBytes(UTF8));
+      if (v instanceof Long) {
+        out.writeByte(TYPE_LONG);
+        out.writeLong((Long) v);
+      }
+      else if (v instanceof Integer) {
+        out.writeByte(TYPE_INTEGER);
+        out.writeInt((Integer) v);
+      }
+      else if (v instanceof Float) {
+        out.writeByte(TYPE_FLOAT);
+        out.writeFloat((Float) v);
+      }
+      else if (v instanceof Boolean) {
+        out.writeByte(TYPE_BOOLEAN);
+        out.writeBoolean((Boolean) v);
+      }
+      else if (Date.class.equals(v.getClass())) {
+        out.writeByte(TYPE_DATE);
+        out.writeLong(((Date) v).getTime());
+      }
+      else if (v instanceof String) {
+        out.writeByte(TYPE_STRING);
+        writeBytes(out, ((String) v).getBytes(UTF8));
+      }
+      else if (v instanceof ByteBuffer) {
+        final ByteBuffer buffer = ((ByteBuffer) v).duplicate();
+        final byte[] b = new byte[buffer.remaining()];
+        buffer.get(b);
+        out.writeByte(TYPE_BYTES);
+        writeBytes(out, b);
+      }
+      else if (v instanceof InMemoryKey) {
+        out.writeByte(TYPE_KEY);
+        writeBytes(out, ((InMemoryKey) v).encoded());
+      }
+      else if (v instanceof Serializable) {
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(serialized);
+        oos.writeObject(v);
+        oos.close();
+        out.writeByte(TYPE_SERIALIZED);
+        writeBytes(out, serialized.toByteArray());
+      }
+      else {
+        throw new IOException("Cannot serialize " + entry.getKey() + " of " + v.getClass());
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+}
@@ -26,6 +26,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import net.sf.mardao.core.CursorPage;
@@ -36,15 +38,26 @@ import net.sf.mardao.core.filter.Filter;
  *
  * @author osandstrom Date: 2014-09-03 Time: 19:50
  */
-public interface Supplier<K, RV, WV, T> {
+public interface Supplier<K, RV, WV, T> extends IdAllocator {
   int count(T tx, String kind, K ancestorKey, K simpleKey, Filter... filters);
+
+  /**
+   * Starts counting, to be resolved after other calls are made.
+   * @param limit stop counting at limit, or 0 to count all
+   */
+  Future<Integer> countFuture(T tx, String kind, K ancestorKey, K simpleKey, int limit, Filter... filters);
   void deleteValue(T tx, K key) throws IOException;
   void deleteValues(T tx, Collection<K> keys) throws IOException;
   RV readValue(T tx, K key) throws IOException;
+  Map<K, RV> readValues(T tx, Collection<K> keys) throws IOException;
   K writeValue(T tx, K key, WV value) throws IOException;
+  List<K> writeValues(T tx, Collection<WV> values) throws IOException;
 
   Future<RV> readFuture(T tx, K key) throws IOException;
   Future<K> writeFuture(T tx, K key, WV value) throws IOException;
+  Future<List<K>> writeFutures(T tx, Collection<WV> values) throws IOException;
+  Future<Void> deleteFuture(T tx, K key) throws IOException;
+  Future<Void> deleteFutures(T tx, Collection<K> keys) throws IOException;
 
   K toKey(K parentKey, String kind, Long lId);
   K toKey(K parentKey, String kind, String sId);
@@ -52,6 +65,7 @@ public interface Supplier<K, RV, WV, T> {
   Long toLongKey(K key);
   String toStringKey(K key);
   K toParentKey(K key);
+  String toKind(K key);
 
   Collection getCollection(RV value, String column);
   Date getDate(RV value, String column);
@@ -84,6 +98,12 @@ public interface Supplier<K, RV, WV, T> {
 
   // --- query methods ---
 
+  /**
+   * Declares an index on a column, for stores that do not index implicitly. Creating an existing index has no effect.
+   * @param sorted true for an index that also supports ranges and ordering, false for an equality-only index
+   */
+  void createIndex(String kind, String column, boolean sorted);
+
   Iterable<RV> queryIterable(T tx, String kind, boolean keysOnly,
                               int offset, int limit,
                               K ancestorKey, K simpleKey,
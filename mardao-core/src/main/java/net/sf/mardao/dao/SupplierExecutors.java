@@ -0,0 +1,194 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors for the futures of the in-process Suppliers.
+ */
+public final class SupplierExecutors {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(SupplierExecutors.class);
+
+  private SupplierExecutors() {
+  }
+
+  /**
+   * @return the shared executor, with a virtual thread per task if the JVM supports it,
+   * or else a bounded pool of daemon threads
+   */
+  public static ExecutorService defaultExecutor() {
+    return DefaultHolder.EXECUTOR;
+  }
+
+  /**
+   * @return an executor running each task in the calling thread, returning completed futures, for deterministic tests
+   */
+  public static ExecutorService sameThread() {
+    return new SameThreadExecutor();
+  }
+
+  /**
+   * @return a pool of at most the specified number of daemon threads, which time out when idle
+   */
+  public static ExecutorService boundedPool(int threads) {
+    final AtomicInteger count = new AtomicInteger();
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "mardao-supplier-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /** created on first use */
+  private static final class DefaultHolder {
+    static final ExecutorService EXECUTOR = create();
+
+    private static ExecutorService create() {
+      try {
+        // Java 21 and later
+        final Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) virtual.invoke(null);
+      }
+      catch (Exception unsupported) {
+        final int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        LOGGER.debug("no virtual threads, using a pool of {} threads", threads);
+        return boundedPool(threads);
+      }
+    }
+  }
+
+  private static final class SameThreadExecutor extends AbstractExecutorService {
+    private volatile boolean shutdown;
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+      if (shutdown) {
+        throw new RejectedExecutionException("Executor is shut down");
+      }
+      try {
+        return new CompletedFuture<T>(task.call(), null);
+      }
+      catch (Exception e) {
+        return new CompletedFuture<T>(null, e);
+      }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      if (shutdown) {
+        throw new RejectedExecutionException("Executor is shut down");
+      }
+      command.run();
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      shutdown = true;
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return shutdown;
+    }
+  }
+
+  /** the result or failure of a task that has run already */
+  private static final class CompletedFuture<V> implements Future<V> {
+    private final V value;
+    private final Exception failure;
+
+    CompletedFuture(V value, Exception failure) {
+      this.value = value;
+      this.failure = failure;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return true;
+    }
+
+    @Override
+    public V get() throws ExecutionException {
+      if (null != failure) {
+        throw new ExecutionException(failure);
+      }
+      return value;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws ExecutionException {
+      return get();
+    }
+  }
+}
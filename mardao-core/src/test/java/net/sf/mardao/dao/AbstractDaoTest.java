@@ -25,14 +25,25 @@ package net.sf.mardao.dao;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.MardaoListFuture;
 import net.sf.mardao.core.filter.Filter;
 import net.sf.mardao.domain.DFactory;
 import net.sf.mardao.domain.DUser;
@@ -46,6 +57,8 @@ public class AbstractDaoTest {
 
   public static final String PRINCIPAL_FIXTURE = "fixture";
   public static final String PRINCIPAL_SET_UP = "setUp";
+  /** more than one block of ids */
+  static final int ID_COUNT = AbstractDao.ID_BLOCK_SIZE + 50;
   protected DUserDao userDao;
   protected DFactoryDao factoryDao;
   protected Supplier supplier;
@@ -68,6 +81,42 @@ public class AbstractDaoTest {
     assertNotNull(actual.getBirthDate());
   }
 
+  @Test
+  public void testAllocateId() throws IOException {
+    final List<DUser> users = new ArrayList<DUser>();
+    for (int i = 0; i < ID_COUNT; i++) {
+      DUser user = new DUser();
+      user.setDisplayName("allocated_" + i);
+      users.add(user);
+    }
+    final Long first = userDao.allocateId(users.get(0));
+    assertNotNull(first);
+    assertEquals(first, userDao.allocateId(users.get(0)));
+
+    final List<Long> ids = userDao.put(users);
+    assertEquals(first, ids.get(0));
+    assertEquals(ID_COUNT, new HashSet<Long>(ids).size());
+    for (DUser user : users) {
+      assertEquals(user.getDisplayName(), userDao.get(user.getId()).getDisplayName());
+    }
+    assertNull(factoryDao.allocateId(new DFactory()));
+  }
+
+  @Test
+  public void testPutExplicitThenNew() throws IOException {
+    final Long generated = userDao.put(DUserMapper.newBuilder().displayName("generated").build());
+
+    // an explicit id within the block leased for the generated one
+    final Long explicit = generated + 1;
+    userDao.put(DUserMapper.newBuilder().id(explicit).displayName("explicit").build());
+    final Long next = userDao.put(DUserMapper.newBuilder().displayName("generated").build());
+    assertNotEquals(explicit, next);
+
+    assertEquals("explicit", userDao.get(explicit).getDisplayName());
+    assertEquals("generated", userDao.get(generated).getDisplayName());
+    assertEquals("generated", userDao.get(next).getDisplayName());
+  }
+
   @Test
   public void testWriteReadUser() throws IOException {
     Long id = userDao.withCommitTransaction(new TransFunc<Long>() {
@@ -115,6 +164,29 @@ public class AbstractDaoTest {
     assertEquals("xHjqLåäö123", actual.getDisplayName());
   }
 
+  @Test
+  public void testPutDeleteAsync() throws IOException, ExecutionException, InterruptedException {
+    DUser first = DUserMapper.newBuilder().id(21L).displayName("first").build();
+    DUser generated = DUserMapper.newBuilder().displayName("generated").build();
+    DUser third = DUserMapper.newBuilder().id(23L).displayName("third").build();
+
+    MardaoListFuture<DUser> future = userDao.putAsync(Arrays.asList(first, generated, third));
+    List<?> ids = future.get();
+    assertEquals(3, ids.size());
+    assertEquals(Long.valueOf(21L), ids.get(0));
+    assertNotNull(generated.getId());
+    assertEquals(generated.getId(), ids.get(1));
+    assertEquals(PRINCIPAL_SET_UP, generated.getCreatedBy());
+    assertEquals("generated", userDao.get(generated.getId()).getDisplayName());
+
+    Future<Void> deleted = userDao.deleteAsync(21L);
+    Future<Void> deletedBatch = userDao.deleteAsync(Arrays.asList(generated.getId(), 23L));
+    deleted.get();
+    deletedBatch.get();
+    assertNull(userDao.get(21L));
+    assertTrue(userDao.get(Arrays.asList(21L, generated.getId(), 23L)).isEmpty());
+  }
+
   @Test
   public void testWriteReadFactory() throws IOException {
     final String name = factoryDao.withCommitTransaction(new TransFunc<String>() {
@@ -139,6 +211,41 @@ public class AbstractDaoTest {
     });
   }
 
+  @Test
+  public void testRollbackOnFailure() throws IOException {
+    try {
+      userDao.withCommitTransaction(new TransFunc<Void>() {
+        @Override
+        public Void apply() throws IOException {
+          userDao.put(DUserMapper.newBuilder().id(1L).displayName("rolledBack").build());
+          throw new IOException("failed");
+        }
+      });
+      fail("Expected IOException");
+    }
+    catch (IOException expected) {
+      assertEquals("failed", expected.getMessage());
+    }
+    assertNull(userDao.get(1L));
+  }
+
+  @Test(expected = ConcurrentModificationException.class)
+  public void testTransactionConflict() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    userDao.withCommitTransaction(new TransFunc<Void>() {
+      @Override
+      public Void apply() throws IOException {
+        final DUser user = userDao.get(1L);
+        // written by another, outside of the transaction
+        final DUser other = DUserMapper.newBuilder().id(1L).displayName("other").build();
+        supplier.writeValue(null, supplier.toKey(null, "DUser", 1L), new DUserMapper(supplier).toWriteValue(other));
+        user.setDisplayName("second");
+        userDao.put(user);
+        return null;
+      }
+    });
+  }
+
   @Test
   public void testQueryByField() throws IOException {
       createQueryFixtures();
@@ -187,6 +294,93 @@ public class AbstractDaoTest {
       assertEquals(117, userDao.count());
   }
 
+  @Test
+  public void testGetBatch() throws IOException {
+    createQueryFixtures();
+    Map<Long, DUser> actual = userDao.get(Arrays.asList(47L, 500L, 1042L, 42L));
+    assertEquals(3, actual.size());
+    Iterator<Long> ids = actual.keySet().iterator();
+    assertEquals(Long.valueOf(47L), ids.next());
+    assertEquals(Long.valueOf(1042L), ids.next());
+    assertEquals(Long.valueOf(42L), ids.next());
+    assertEquals("user_47@example.com", actual.get(47L).getEmail());
+    assertEquals("user_42", actual.get(1042L).getDisplayName());
+    assertFalse(actual.containsKey(500L));
+  }
+
+  @Test
+  public void testIdentityMapTransaction() throws IOException {
+    createQueryFixtures();
+    userDao.withCommitTransaction(new TransFunc<Void>() {
+      @Override
+      public Void apply() throws IOException, RuntimeException {
+        DUser first = userDao.get(47L);
+        assertSame(first, userDao.get(47L));
+        assertSame(first, userDao.get(Arrays.asList(42L, 47L)).get(47L));
+        try {
+          assertSame(first, userDao.getAsync(null, 47L).get());
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+
+        DUser created = DUserMapper.newBuilder().id(5000L).displayName("created").build();
+        userDao.put(created);
+        assertSame(created, userDao.get(5000L));
+
+        userDao.delete(47L);
+        assertNull(userDao.get(47L));
+        return null;
+      }
+    });
+    assertNotSame(userDao.get(42L), userDao.get(42L));
+  }
+
+  @Test
+  public void testIdentityMapRequestScope() throws IOException {
+    createQueryFixtures();
+    AbstractDao.beginRequestScope();
+    try {
+      final DUser first = userDao.get(47L);
+      assertSame(first, userDao.get(47L));
+
+      userDao.withCommitTransaction(new TransFunc<Void>() {
+        @Override
+        public Void apply() throws IOException {
+          DUser updated = userDao.get(47L);
+          assertNotSame(first, updated);
+          updated.setDisplayName("updated");
+          userDao.put(updated);
+          return null;
+        }
+      });
+      assertEquals("updated", userDao.get(47L).getDisplayName());
+    }
+    finally {
+      AbstractDao.endRequestScope();
+    }
+    assertNotSame(userDao.get(42L), userDao.get(42L));
+  }
+
+  @Test
+  public void testPutBatch() throws IOException {
+    DUser first = DUserMapper.newBuilder().id(11L).displayName("first").build();
+    DUser generated = DUserMapper.newBuilder().displayName("generated").build();
+    DUser third = DUserMapper.newBuilder().id(13L).displayName("third").build();
+
+    List<Long> ids = userDao.put(Arrays.asList(first, generated, third));
+    assertEquals(3, ids.size());
+    assertEquals(Long.valueOf(11L), ids.get(0));
+    assertNotNull(ids.get(1));
+    assertEquals(ids.get(1), generated.getId());
+    assertEquals(Long.valueOf(13L), ids.get(2));
+    assertEquals(PRINCIPAL_SET_UP, generated.getCreatedBy());
+    assertNotNull(generated.getBirthDate());
+
+    assertEquals("third", userDao.get(13L).getDisplayName());
+    assertEquals("generated", userDao.get(generated.getId()).getDisplayName());
+  }
+
   @Test
   public void testCreated() throws IOException {
     createQueryFixtures();
@@ -239,9 +433,10 @@ public class AbstractDaoTest {
     Filter filter = Filter.equalsFilter(DUserMapper.Field.DISPLAYNAME.getFieldName(), "mod7_3");
     CursorPage<DUser> firstPage = userDao.queryPage(false, 5, null,
       null, false, null, false,
-      null, null,
+      null, null, AbstractDao.TOTAL_SIZE_ALL,
       filter);
     assertEquals(Integer.valueOf(9), firstPage.getTotalSize());
+    assertFalse(firstPage.getTotalSizeCapped());
     assertNotNull(firstPage.getCursorKey());
     assertEquals(5, firstPage.getItems().size());
 
@@ -253,6 +448,110 @@ public class AbstractDaoTest {
     assertEquals(4, secondPage.getItems().size());
   }
 
+  @Test
+  public void testQueryIds() throws IOException {
+    createQueryFixtures();
+    int count = 0;
+    for (Long id : userDao.queryIds(null)) {
+      assertTrue(id.toString(), (0 < id && id < 60) || (1000 < id && id < 1060));
+      count++;
+    }
+    assertEquals(118, count);
+  }
+
+  @Test
+  public void testQueryIdsPage() throws IOException {
+    createQueryFixtures();
+    Filter filter = Filter.equalsFilter(DUserMapper.Field.DISPLAYNAME.getFieldName(), "mod7_3");
+    CursorPage<Long> firstPage = userDao.queryIdsPage(5, null, null, false, null, false, null, filter);
+    assertEquals(5, firstPage.getItems().size());
+    assertNotNull(firstPage.getCursorKey());
+    for (Long id : firstPage.getItems()) {
+      assertEquals(3, id % 7);
+    }
+
+    CursorPage<Long> secondPage = userDao.queryIdsPage(5, null, null, false, null, false,
+      firstPage.getCursorKey(), filter);
+    assertEquals(4, secondPage.getItems().size());
+  }
+
+  @Test
+  public void testQueryPageTotalSize() throws IOException {
+    createQueryFixtures();
+    Filter filter = Filter.equalsFilter(DUserMapper.Field.DISPLAYNAME.getFieldName(), "mod7_3");
+    CursorPage<DUser> page = userDao.queryPage(false, 5, null,
+      null, false, null, false,
+      null, null, filter);
+    assertNull(page.getTotalSize());
+    assertEquals(5, page.getItems().size());
+
+    page = userDao.queryPage(false, 5, null,
+      null, false, null, false,
+      null, null, 7, filter);
+    assertEquals(Integer.valueOf(7), page.getTotalSize());
+    assertTrue(page.getTotalSizeCapped());
+
+    page = userDao.queryPage(false, 5, null,
+      null, false, null, false,
+      null, null, 9, filter);
+    assertEquals(Integer.valueOf(9), page.getTotalSize());
+    assertFalse(page.getTotalSizeCapped());
+  }
+
+  @Test
+  public void testQueryPageProjection() throws IOException {
+    createQueryFixtures();
+    Filter filter = Filter.equalsFilter(DUserMapper.Field.DISPLAYNAME.getFieldName(), "mod7_3");
+    CursorPage<DUser> page = userDao.queryPage(false, 5, null,
+      null, false, null, false,
+      Arrays.asList(DUserMapper.Field.EMAIL.getFieldName(), DUserMapper.Field.CREATEDBY.getFieldName()), null,
+      filter);
+    assertEquals(5, page.getItems().size());
+    for (DUser u : page.getItems()) {
+      assertEquals(3, u.getId() % 7);
+      assertEquals("user_" + u.getId() + "@example.com", u.getEmail());
+      assertEquals(PRINCIPAL_FIXTURE, u.getCreatedBy());
+      assertNull(u.getDisplayName());
+      assertNull(u.getBirthDate());
+    }
+  }
+
+  @Test
+  public void testStream() throws IOException {
+    createQueryFixtures();
+    Filter filter = Filter.equalsFilter(DUserMapper.Field.DISPLAYNAME.getFieldName(), "mod7_3");
+    QueryStream<DUser> stream = userDao.stream(4, null, null, false, null, false, filter);
+    assertEquals(-1, stream.getEstimatedSize());
+    assertEquals(9, stream.count());
+    int count = 0;
+    for (DUser u : stream) {
+      assertEquals("mod7_3", u.getDisplayName());
+      count++;
+    }
+    assertEquals(9, count);
+    assertEquals(9, stream.getEstimatedSize());
+  }
+
+  @Test
+  public void testStreamParallel() throws IOException {
+    createQueryFixtures();
+    final AtomicInteger count = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      userDao.stream(10).forEach(executor, new EntityVisitor<DUser>() {
+        @Override
+        public void visit(DUser entity) throws IOException {
+          assertNotNull(entity.getId());
+          count.incrementAndGet();
+        }
+      });
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(118, count.get());
+  }
+
   protected void createQueryFixtures() throws IOException {
     AbstractDao.setPrincipalName(PRINCIPAL_FIXTURE);
     for (int i = 1; i < 60; i++) {
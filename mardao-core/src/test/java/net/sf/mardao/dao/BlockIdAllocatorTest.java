@@ -0,0 +1,117 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Tests for BlockIdAllocator.
+ */
+public class BlockIdAllocatorTest {
+
+  static final int THREADS = 8;
+  static final int IDS_PER_THREAD = 5000;
+
+  @Test
+  public void testUniqueConcurrent() throws Exception {
+    final AtomicInteger leases = new AtomicInteger();
+    final InMemorySupplier supplier = new InMemorySupplier();
+    final BlockIdAllocator allocator = new BlockIdAllocator(new IdAllocator() {
+      @Override
+      public long allocateIds(String kind, int size) {
+        leases.incrementAndGet();
+        return supplier.allocateIds(kind, size);
+      }
+    }, 100);
+    final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < THREADS; t++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int i = 0; i < IDS_PER_THREAD; i++) {
+              assertTrue(ids.add(allocator.allocateId("DUser")));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    assertEquals(THREADS * IDS_PER_THREAD / 100, leases.get());
+
+    // ranges larger than a block are allocated directly, and other kinds have their own blocks
+    final long range = allocator.allocateIds("DUser", 500);
+    assertTrue(ids.add(range));
+    assertEquals(1L, allocator.allocateId("DFactory"));
+  }
+
+  @Test
+  public void testReserveId() {
+    final AtomicInteger leases = new AtomicInteger();
+    final AtomicLong sequence = new AtomicLong();
+    // like the Datastore, never skips ids written explicitly
+    final BlockIdAllocator allocator = new BlockIdAllocator(new IdAllocator() {
+      @Override
+      public long allocateIds(String kind, int size) {
+        leases.incrementAndGet();
+        return sequence.getAndAdd(size) + 1;
+      }
+    }, 100);
+    assertEquals(1L, allocator.allocateId("DUser"));
+
+    // outside of the current block, nothing leased
+    allocator.reserveId("DUser", 5629499534213120L);
+    assertEquals(2L, allocator.allocateId("DUser"));
+    assertEquals(1, leases.get());
+
+    // in the current block, discarded and the next one leased once
+    allocator.reserveId("DUser", 50L);
+    assertEquals(101L, allocator.allocateId("DUser"));
+    assertEquals(2, leases.get());
+  }
+}
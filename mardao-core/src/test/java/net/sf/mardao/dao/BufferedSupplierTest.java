@@ -0,0 +1,210 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.mardao.domain.DUser;
+
+/**
+ * Tests for BufferedSupplier.
+ */
+public class BufferedSupplierTest {
+
+  private CountingSupplier store;
+  private BufferedSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object> supplier;
+  private DUserDao userDao;
+
+  @Before
+  public void setUp() {
+    store = new CountingSupplier();
+    supplier = new BufferedSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object>(store, 10);
+    userDao = new DUserDao(supplier);
+  }
+
+  @Test
+  public void testCoalesce() throws IOException {
+    DUser user = DUserMapper.newBuilder().id(1L).displayName("first").build();
+    userDao.put(user);
+    user.setDisplayName("second");
+    userDao.put(user);
+    user.setDisplayName("third");
+    userDao.put(user);
+
+    assertEquals(1, supplier.getPendingCount());
+    assertEquals(0, store.writes);
+    assertEquals("third", userDao.get(1L).getDisplayName());
+    assertNull(store.readValue(null, InMemoryKey.of(null, "DUser", "1")));
+
+    supplier.flush();
+    assertEquals(0, supplier.getPendingCount());
+    assertEquals(1, store.batches);
+    assertEquals(1, store.writes);
+    assertEquals("third", store.getString(store.readValue(null, InMemoryKey.of(null, "DUser", "1")), "displayName"));
+  }
+
+  @Test
+  public void testUnitOfWork() throws IOException {
+    // flushed through a decorating Supplier too
+    final DUserDao cachedDao = new DUserDao(new CachingSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object>(
+      supplier, 100L, 0L));
+    cachedDao.withUnitOfWork(new TransFunc<Void>() {
+      @Override
+      public Void apply() throws IOException {
+        cachedDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+        assertEquals(1, supplier.getPendingCount());
+        return null;
+      }
+    });
+    assertEquals(0, supplier.getPendingCount());
+    assertEquals(1, store.writes);
+
+    try {
+      userDao.withUnitOfWork(new TransFunc<Void>() {
+        @Override
+        public Void apply() throws IOException {
+          userDao.put(DUserMapper.newBuilder().id(2L).displayName("second").build());
+          throw new IOException("failing");
+        }
+      });
+      fail("Expected IOException");
+    }
+    catch (IOException expected) {
+      assertEquals("failing", expected.getMessage());
+    }
+    assertEquals(0, supplier.getPendingCount());
+    assertNotNull(store.readValue(null, InMemoryKey.of(null, "DUser", "2")));
+  }
+
+  @Test
+  public void testDelete() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    supplier.flush();
+
+    userDao.delete(1L);
+    assertNull(userDao.get(1L));
+    assertNotNull(store.readValue(null, InMemoryKey.of(null, "DUser", "1")));
+    assertEquals(0, userDao.get(Arrays.asList(1L)).size());
+
+    supplier.flush();
+    assertNull(store.readValue(null, InMemoryKey.of(null, "DUser", "1")));
+  }
+
+  @Test
+  public void testCommit() throws IOException {
+    userDao.withCommitTransaction(new TransFunc<Void>() {
+      @Override
+      public Void apply() throws IOException {
+        userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+        userDao.put(DUserMapper.newBuilder().id(2L).displayName("second").build());
+        userDao.put(DUserMapper.newBuilder().id(1L).displayName("third").build());
+        assertEquals(0, store.writes);
+        return null;
+      }
+    });
+    assertEquals(0, supplier.getPendingCount());
+    assertEquals(1, store.batches);
+    assertEquals(2, store.writes);
+    assertEquals("third", userDao.get(1L).getDisplayName());
+  }
+
+  @Test
+  public void testRollback() throws IOException {
+    userDao.withRollbackTransaction(new TransFunc<Void>() {
+      @Override
+      public Void apply() throws IOException {
+        userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+        assertEquals("first", userDao.get(1L).getDisplayName());
+        return null;
+      }
+    });
+    assertEquals(0, supplier.getPendingCount());
+    assertEquals(0, store.writes);
+    assertNull(userDao.get(1L));
+  }
+
+  @Test
+  public void testMaxPending() throws IOException {
+    for (long id = 1; id <= 25; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName("user").build());
+    }
+    assertEquals(2, store.batches);
+    assertEquals(20, store.writes);
+    assertEquals(5, supplier.getPendingCount());
+  }
+
+  @Test
+  public void testGeneratedIdWritesThrough() throws IOException {
+    final Map<String, Object> incomplete = supplier.createWriteValue(null, "DUser", (Long) null);
+    final List<InMemoryKey> keys = supplier.writeValues(null, Arrays.asList(incomplete));
+
+    assertNotNull(keys.get(0).getName());
+    assertEquals(1, store.writes);
+    assertEquals(0, supplier.getPendingCount());
+  }
+
+  @Test
+  public void testAllocatedIdBuffered() throws IOException {
+    DUser allocated = DUserMapper.newBuilder().displayName("allocated").build();
+    DUser buffered = DUserMapper.newBuilder().id(2L).displayName("buffered").build();
+    List<Long> ids = userDao.put(Arrays.asList(allocated, buffered));
+
+    assertNotNull(ids.get(0));
+    assertEquals(allocated.getId(), ids.get(0));
+    assertEquals(Long.valueOf(2L), ids.get(1));
+    assertEquals(0, store.writes);
+    assertEquals(2, supplier.getPendingCount());
+  }
+
+  @Test
+  public void testQueryFlushes() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    assertEquals(1, userDao.count());
+    assertEquals(0, supplier.getPendingCount());
+  }
+
+  /** counts the batch writes that reach the store */
+  static class CountingSupplier extends InMemorySupplier {
+    int batches;
+    int writes;
+
+    @Override
+    public List<InMemoryKey> writeValues(Object tx, Collection<Map<String, Object>> values) throws IOException {
+      batches++;
+      writes += values.size();
+      return super.writeValues(tx, values);
+    }
+  }
+}
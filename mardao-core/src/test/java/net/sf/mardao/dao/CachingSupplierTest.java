@@ -0,0 +1,204 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.mardao.domain.DUser;
+
+/**
+ * Tests for CachingSupplier.
+ */
+public class CachingSupplierTest {
+
+  private CountingSupplier store;
+  private CachingSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object> supplier;
+  private DUserDao userDao;
+
+  @Before
+  public void setUp() {
+    store = new CountingSupplier();
+    supplier = new CachingSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object>(store, 1000L, 0L);
+    userDao = new DUserDao(supplier);
+  }
+
+  @Test
+  public void testReadThrough() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals(1, store.reads);
+
+    final CachingSupplier.Stats stats = supplier.getStats("DUser");
+    assertEquals(1L, stats.getHitCount());
+    assertEquals(1L, stats.getMissCount());
+  }
+
+  @Test
+  public void testReadBatch() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    userDao.put(DUserMapper.newBuilder().id(2L).displayName("second").build());
+    userDao.get(1L);
+    assertEquals(2, userDao.get(Arrays.asList(2L, 1L, 3L)).size());
+    assertEquals(2, userDao.get(Arrays.asList(2L, 1L)).size());
+    assertEquals(3L, supplier.getStats("DUser").getMissCount());
+    assertEquals(3L, supplier.getStats("DUser").getHitCount());
+  }
+
+  @Test
+  public void testInvalidateOnWrite() throws IOException {
+    DUser user = DUserMapper.newBuilder().id(1L).displayName("first").build();
+    userDao.put(user);
+    userDao.get(1L);
+    user.setDisplayName("second");
+    userDao.put(user);
+    assertEquals("second", userDao.get(1L).getDisplayName());
+
+    userDao.delete(1L);
+    assertNull(userDao.get(1L));
+  }
+
+  @Test
+  public void testInvalidateOnCommit() throws IOException {
+    final DUser user = DUserMapper.newBuilder().id(1L).displayName("first").build();
+    userDao.put(user);
+    userDao.withCommitTransaction(new TransFunc<Void>() {
+      @Override
+      public Void apply() throws IOException {
+        user.setDisplayName("second");
+        userDao.put(user);
+        return null;
+      }
+    });
+    assertEquals("second", userDao.get(1L).getDisplayName());
+  }
+
+  @Test
+  public void testKindDisabled() throws IOException {
+    supplier.setKindEnabled("DUser", false);
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    userDao.get(1L);
+    userDao.get(1L);
+    assertEquals(2, store.reads);
+    assertEquals(0, supplier.size());
+
+    supplier = new CachingSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object>(store, 1000L, 0L, "DFactory");
+    assertEquals(false, supplier.isKindEnabled("DUser"));
+    assertEquals(true, supplier.isKindEnabled("DFactory"));
+  }
+
+  @Test
+  public void testExpiry() throws IOException, InterruptedException {
+    supplier = new CachingSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object>(store, 1000L, 10L);
+    userDao = new DUserDao(supplier);
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    userDao.get(1L);
+    Thread.sleep(20L);
+    userDao.get(1L);
+    assertEquals(2, store.reads);
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    supplier = new CachingSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object>(store, 16L, 0L);
+    userDao = new DUserDao(supplier);
+    for (long id = 1; id <= 200; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName("user").build());
+      userDao.get(id);
+    }
+    assertEquals(true, supplier.size() <= 16);
+    assertEquals(200L - supplier.size(), supplier.getStats("DUser").getEvictionCount());
+  }
+
+  @Test
+  public void testEvictionBelowSegments() throws IOException {
+    supplier = new CachingSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object>(store, 4L, 0L);
+    userDao = new DUserDao(supplier);
+    for (long id = 1; id <= 200; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName("user").build());
+      userDao.get(id);
+    }
+    assertEquals(true, supplier.size() <= 4);
+  }
+
+  @Test
+  public void testAsyncWriteInvalidatedOnCompletion() throws IOException {
+    final List<FutureTask<InMemoryKey>> writes = new ArrayList<FutureTask<InMemoryKey>>();
+    store = new CountingSupplier() {
+      @Override
+      public Future<InMemoryKey> writeFuture(final Object tx, final InMemoryKey key, final Map<String, Object> value) {
+        // completes only when run, like a slow datastore write
+        final FutureTask<InMemoryKey> write = new FutureTask<InMemoryKey>(new Callable<InMemoryKey>() {
+          @Override
+          public InMemoryKey call() throws Exception {
+            return writeValue(tx, key, value);
+          }
+        });
+        writes.add(write);
+        return write;
+      }
+    };
+    supplier = new CachingSupplier<InMemoryKey, Map<String, Object>, Map<String, Object>, Object>(store, 1000L, 0L);
+    userDao = new DUserDao(supplier);
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    assertEquals("first", userDao.get(1L).getDisplayName());
+
+    userDao.putAsync(DUserMapper.newBuilder().id(1L).displayName("second").build());
+    // read while the write is in flight, not cached
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals(3, store.reads);
+
+    // completed, but its result never requested
+    writes.get(0).run();
+    assertEquals("second", userDao.get(1L).getDisplayName());
+    // the first read started before the completion was seen, the second one is cached
+    assertEquals("second", userDao.get(1L).getDisplayName());
+    assertEquals("second", userDao.get(1L).getDisplayName());
+    assertEquals(5, store.reads);
+  }
+
+  /** counts the single reads that reach the store */
+  static class CountingSupplier extends InMemorySupplier {
+    int reads;
+
+    @Override
+    public Map<String, Object> readValue(Object tx, InMemoryKey key) throws IOException {
+      reads++;
+      return super.readValue(tx, key);
+    }
+  }
+}
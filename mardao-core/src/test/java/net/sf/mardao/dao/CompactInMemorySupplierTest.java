@@ -0,0 +1,125 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.mardao.core.filter.Filter;
+import net.sf.mardao.domain.DUser;
+
+/**
+ * Runs the InMemorySupplier tests on compact values.
+ */
+public class CompactInMemorySupplierTest extends InMemorySupplierTest {
+
+  static final int ENTITIES = 50000;
+
+  @Before
+  @Override
+  public void setUp() {
+    supplier = new InMemorySupplier(true);
+    userDao = new DUserDao(supplier);
+    AbstractDao.setPrincipalName(null);
+  }
+
+  @Test
+  public void testTypes() throws IOException {
+    final InMemoryKey key = supplier.toKey(null, "Types", 1L);
+    final Map<String, Object> value = supplier.createWriteValue(null, "Types", 1L);
+    supplier.setLong(value, "long", -42L);
+    supplier.setInteger(value, "integer", 7);
+    supplier.setFloat(value, "float", 1.5f);
+    supplier.setBoolean(value, "boolean", true);
+    supplier.setDate(value, "date", new Date(1234L));
+    supplier.setString(value, "string", "åäö");
+    supplier.setCollection(value, "collection", Arrays.asList("a", "b"));
+    supplier.setByteBuffer(value, "bytes", ByteBuffer.wrap(new byte[] {1, 2}));
+    supplier.setString(value, "nothing", null);
+    supplier.writeValue(null, key, value);
+
+    // a later value of another type for the same column
+    final InMemoryKey other = supplier.toKey(null, "Types", 2L);
+    final Map<String, Object> otherValue = supplier.createWriteValue(null, "Types", 2L);
+    otherValue.put("long", "not a long");
+    supplier.writeValue(null, other, otherValue);
+
+    final Map<String, Object> actual = supplier.readValue(null, key);
+    assertEquals(key, supplier.getKey(actual, null));
+    assertNull(supplier.getParentKey(actual, null));
+    assertEquals(Long.valueOf(-42L), supplier.getLong(actual, "long"));
+    assertEquals(Integer.valueOf(7), supplier.getInteger(actual, "integer"));
+    assertEquals(Float.valueOf(1.5f), supplier.getFloat(actual, "float"));
+    assertEquals(Boolean.TRUE, supplier.getBoolean(actual, "boolean"));
+    assertEquals(new Date(1234L), supplier.getDate(actual, "date"));
+    assertEquals("åäö", supplier.getString(actual, "string"));
+    assertEquals(Arrays.asList("a", "b"), supplier.getCollection(actual, "collection"));
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2}), supplier.getByteBuffer(actual, "bytes"));
+    assertNull(supplier.getString(actual, "nothing"));
+    assertEquals(10, actual.size());
+    assertEquals("not a long", supplier.readValue(null, other).get("long"));
+
+    assertEquals(1, supplier.count(null, "Types", null, null, Filter.equalsFilter("long", -42L)));
+    assertEquals(1, supplier.count(null, "Types", null, null, Filter.equalsFilter("long", "not a long")));
+    assertEquals(0, supplier.count(null, "Types", null, null, Filter.equalsFilter("string", "unknown")));
+    assertEquals(1, supplier.count(null, "Types", null, null, Filter.greaterThan("date", new Date(1000L))));
+  }
+
+  @Test
+  public void testHeap() throws IOException {
+    final long compact = heapPerEntity(supplier);
+    final long treeMap = heapPerEntity(new InMemorySupplier());
+    LOGGER.info("{} bytes per compact entity, {} per TreeMap entity", compact, treeMap);
+    assertTrue(compact < treeMap);
+  }
+
+  private static long heapPerEntity(InMemorySupplier supplier) throws IOException {
+    final DUserDao dao = new DUserDao(supplier);
+    final long before = usedHeap();
+    for (long id = 1; id <= ENTITIES; id++) {
+      dao.put(DUserMapper.newBuilder().id(id).displayName("user_" + (id % 100))
+        .email("user_" + id + "@example.com").birthDate(new Date(id)).build());
+    }
+    final long used = usedHeap() - before;
+    assertEquals(ENTITIES, dao.count());
+    return used / ENTITIES;
+  }
+
+  private static long usedHeap() {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
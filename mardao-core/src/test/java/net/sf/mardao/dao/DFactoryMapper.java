@@ -22,6 +22,9 @@ package net.sf.mardao.dao;
  * #L%
  */
 
+import java.util.Collection;
+import java.util.Collections;
+
 import net.sf.mardao.domain.DFactory;
 
 /**
@@ -47,6 +50,16 @@ public class DFactoryMapper implements Mapper<DFactory, String> {
     return null != entity ? entity.getProviderId() : null;
   }
 
+  @Override
+  public Class<String> getIdClass() {
+    return String.class;
+  }
+
+  @Override
+  public void setId(DFactory entity, String id) {
+    entity.setProviderId(id);
+  }
+
   @Override
   public Object getParentKey(DFactory entity) {
     return null;
@@ -67,6 +80,11 @@ public class DFactoryMapper implements Mapper<DFactory, String> {
     return DFactory.class.getSimpleName();
   }
 
+  @Override
+  public Collection<String> getIndexedColumnNames() {
+    return Collections.emptyList();
+  }
+
   @Override
   public Object toKey(Object parentKey, String sId) {
     return supplier.toKey(parentKey, DFactory.class.getSimpleName(), sId);
@@ -88,6 +106,13 @@ public class DFactoryMapper implements Mapper<DFactory, String> {
     return domain;
   }
 
+  @Override
+  public DFactory fromReadValue(Object core, Collection<String> columns) {
+    final DFactory domain = new DFactory();
+    domain.setProviderId(supplier.toStringKey(supplier.getKey(core, COLUMN_PROVIDERID)));
+    return domain;
+  }
+
   @Override
   public String getCreatedByColumnName() {
     return null;
@@ -22,6 +22,8 @@ package net.sf.mardao.dao;
  * #L%
  */
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 
 import net.sf.mardao.domain.AbstractEntityBuilder;
@@ -67,6 +69,16 @@ public class DUserMapper implements Mapper<DUser, Long> {
     return null != entity ? entity.getId() : null;
   }
 
+  @Override
+  public Class<Long> getIdClass() {
+    return Long.class;
+  }
+
+  @Override
+  public void setId(DUser entity, Long id) {
+    entity.setId(id);
+  }
+
   @Override
   public Object getParentKey(DUser entity) {
     return null;
@@ -89,6 +101,11 @@ public class DUserMapper implements Mapper<DUser, Long> {
     return DUser.class.getSimpleName();
   }
 
+  @Override
+  public Collection<String> getIndexedColumnNames() {
+    return Arrays.asList(Field.DISPLAYNAME.getFieldName(), Field.EMAIL.getFieldName());
+  }
+
   @Override
   public Object toKey(Object parentKey, Long lId) {
     return supplier.toKey(parentKey, DUser.class.getSimpleName(), lId);
@@ -118,6 +135,25 @@ public class DUserMapper implements Mapper<DUser, Long> {
     return entity;
   }
 
+  @Override
+  public DUser fromReadValue(Object core, Collection<String> columns) {
+    final DUser entity = new DUser();
+    entity.setId(supplier.toLongKey(supplier.getKey(core, Field.ID.getFieldName())));
+    if (columns.contains(Field.DISPLAYNAME.getFieldName())) {
+      entity.setDisplayName(supplier.getString(core, Field.DISPLAYNAME.getFieldName()));
+    }
+    if (columns.contains(Field.EMAIL.getFieldName())) {
+      entity.setEmail(supplier.getString(core, Field.EMAIL.getFieldName()));
+    }
+    if (columns.contains(Field.CREATEDBY.getFieldName())) {
+      entity.setCreatedBy(supplier.getString(core, Field.CREATEDBY.getFieldName()));
+    }
+    if (columns.contains(Field.BIRTHDATE.getFieldName())) {
+      entity.setBirthDate(supplier.getDate(core, Field.BIRTHDATE.getFieldName()));
+    }
+    return entity;
+  }
+
   @Override
   public String getCreatedByColumnName() {
     return Field.CREATEDBY.getFieldName();
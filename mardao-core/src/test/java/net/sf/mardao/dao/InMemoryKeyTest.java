@@ -23,9 +23,15 @@ package net.sf.mardao.dao;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.TreeSet;
 
 import org.junit.Test;
 
@@ -71,4 +77,58 @@ public class InMemoryKeyTest {
     assertEquals(2, set.size());
   }
 
+  @Test
+  public void testOrder() {
+    final InMemoryKey parent = InMemoryKey.of(null, "a", "1");
+    final InMemoryKey[] keys = {
+      InMemoryKey.of(null, "a", null),
+      InMemoryKey.of(null, "a", ""),
+      parent,
+      InMemoryKey.of(parent, "b", "1"),
+      InMemoryKey.of(parent, "b", "\u00e9"),
+      InMemoryKey.of(InMemoryKey.of(parent, "b", "\u00e9"), "a", "1"),
+      InMemoryKey.of(parent, "b", "\ud83d\ude00"),
+      InMemoryKey.of(parent, "b", "\uffff"),
+      InMemoryKey.of(null, "a", "10"),
+      InMemoryKey.of(null, "a", "2"),
+      InMemoryKey.of(null, "ab", "1"),
+      InMemoryKey.of(null, "b", "1")
+    };
+    final TreeSet<InMemoryKey> sorted = new TreeSet<InMemoryKey>(Arrays.asList(keys));
+    assertEquals(Arrays.asList(keys), Arrays.asList(sorted.toArray()));
+
+    assertEquals(Arrays.asList(keys).subList(3, 8),
+      Arrays.asList(sorted.subSet(parent, false, parent.descendantsEnd(), false).toArray()));
+    assertTrue(keys[5].isDescendantOf(parent));
+    assertTrue(keys[5].isDescendantOf(keys[4]));
+    assertFalse(parent.isDescendantOf(parent));
+    assertFalse(keys[8].isDescendantOf(parent));
+  }
+
+  @Test
+  public void testEncoding() {
+    final InMemoryKey parent = InMemoryKey.of(null, "Parent", "\u0000 / & \u00e9\ud83d\ude00");
+    final InMemoryKey key = InMemoryKey.of(parent, "Child", null);
+
+    final InMemoryKey decoded = InMemoryKey.fromBytes(key.toBytes());
+    assertEquals(key, decoded);
+    assertEquals(key.hashCode(), decoded.hashCode());
+    assertNull(decoded.getName());
+    assertSame(key.getKind(), decoded.getKind());
+    assertEquals(parent, decoded.getParentKey());
+    assertEquals(parent.getName(), decoded.getParentKey().getName());
+
+    for (int length = 0; length < 8; length++) {
+      final InMemoryKey k = InMemoryKey.of(parent, "C", "12345678".substring(0, length));
+      final String webSafe = k.toWebSafeString();
+      assertTrue(webSafe, webSafe.matches("[A-Za-z0-9_-]+"));
+      assertEquals(k, InMemoryKey.fromWebSafeString(webSafe));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidWebSafeString() {
+    InMemoryKey.fromWebSafeString("Zm9v");
+  }
+
 }
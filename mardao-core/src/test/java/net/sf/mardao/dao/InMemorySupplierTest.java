@@ -0,0 +1,576 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.filter.Filter;
+import net.sf.mardao.domain.DUser;
+
+/**
+ * Multi-threaded stress, index, query and transaction tests for InMemorySupplier.
+ */
+public class InMemorySupplierTest {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(InMemorySupplierTest.class);
+
+  static final int THREADS = 8;
+  static final int ENTITIES_PER_THREAD = 2000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  protected InMemorySupplier supplier;
+  protected DUserDao userDao;
+
+  @Before
+  public void setUp() {
+    supplier = new InMemorySupplier();
+    userDao = new DUserDao(supplier);
+    AbstractDao.setPrincipalName(null);
+  }
+
+  @Test
+  public void testExplicitIdReserved() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("explicit").build());
+    // a DAO of its own leases its ids from the supplier, past the explicit one
+    final Long generated = new DUserDao(supplier).put(DUserMapper.newBuilder().displayName("generated").build());
+    assertTrue(generated.toString(), 1L < generated);
+    assertEquals("explicit", userDao.get(1L).getDisplayName());
+  }
+
+  @Test
+  public void testIndexMaintained() throws IOException {
+    for (long id = 1; id <= 100; id++) {
+      DUser user = DUserMapper.newBuilder().id(id).displayName("user_" + (id % 10))
+        .email("user_" + id + "@example.com").build();
+      user.setCreatedBy(0 == id % 2 ? "even" : null);
+      userDao.put(user);
+    }
+    assertEquals(10, count(userDao.queryByDisplayName("user_3")));
+    assertEquals(Long.valueOf(42L), userDao.findByEmail("user_42@example.com").getId());
+
+    DUser user = userDao.get(43L);
+    user.setDisplayName("renamed");
+    userDao.put(user);
+    userDao.delete(53L);
+    assertEquals(8, count(userDao.queryByDisplayName("user_3")));
+    assertEquals(1, count(userDao.queryByDisplayName("renamed")));
+
+    // created at runtime, on existing values including nulls
+    supplier.createIndex("DUser", "createdBy", false);
+    assertEquals(50, supplier.count(null, "DUser", null, null, Filter.equalsFilter("createdBy", "even")));
+    assertEquals(49, supplier.count(null, "DUser", null, null, Filter.equalsFilter("createdBy", null)));
+  }
+
+  @Test
+  public void testRangeOrderLimit() throws IOException {
+    for (long id = 1; id <= 100; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName("user_" + (id % 10))
+        .email("user_" + (1000 + id) + "@example.com").build());
+    }
+
+    // sorted index on email, ordered scan with a range
+    List<Long> ids = ids(supplier.queryIterable(null, "DUser", false, 2, 3, null, null, "email", false, null, false,
+      Filter.lessThan("email", "user_1050@example.com")));
+    assertEquals(Arrays.asList(47L, 46L, 45L), ids);
+
+    // ordered scan of the displayName index, two levels
+    ids = ids(supplier.queryIterable(null, "DUser", false, 0, 4, null, null, "displayName", true, "email", false,
+      Filter.greaterThanOrEquals("displayName", "user_8")));
+    assertEquals(Arrays.asList(98L, 88L, 78L, 68L), ids);
+
+    // equality from the index, then top-K
+    ids = ids(supplier.queryIterable(null, "DUser", false, 0, 2, null, null, "email", false, null, false,
+      Filter.equalsFilter("displayName", "user_3")));
+    assertEquals(Arrays.asList(93L, 83L), ids);
+
+    ids = ids(supplier.queryIterable(null, "DUser", true, 0, 0, null, null, null, false, null, false,
+      Filter.inFilter("displayName", Arrays.asList("user_1", "user_2")), Filter.greaterThan("email", "user_1090@example.com")));
+    assertEquals(Arrays.asList(91L, 92L), ids);
+
+    assertEquals(0, supplier.count(null, "DUser", null, null,
+      Filter.greaterThan("email", "user_1090@example.com"), Filter.lessThan("email", "user_1010@example.com")));
+    assertEquals(10, supplier.count(null, "DUser", null, null, Filter.greaterThan("email", "user_1090@example.com")));
+  }
+
+  @Test
+  public void testQueryPageOrdered() throws IOException {
+    for (long id = 1; id <= 100; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName(0 == id % 7 ? null : "user_" + (id % 10))
+        .email("user_" + id + "@example.com").birthDate(new Date(id % 5)).build());
+    }
+    // indexed, then not indexed primary order column
+    assertPages("displayName", true, "email", false);
+    assertPages("birthDate", false, "displayName", true);
+    assertPages("birthDate", true, null, false);
+  }
+
+  private void assertPages(String primaryOrderBy, boolean primaryIsAscending,
+                           String secondaryOrderBy, boolean secondaryIsAscending) {
+    final List<Long> expected = ids(supplier.queryIterable(null, "DUser", false, 0, -1, null, null,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending,
+      Filter.greaterThan("email", "user_2")));
+    final List<Long> actual = new ArrayList<Long>();
+    String cursor = null;
+    do {
+      CursorPage<Map<String, Object>> page = supplier.queryPage(null, "DUser", false, 7, null,
+        primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending, null, cursor,
+        Filter.greaterThan("email", "user_2"));
+      actual.addAll(ids(page.getItems()));
+      cursor = page.getCursorKey();
+    } while (null != cursor);
+    assertEquals(88, expected.size());
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testAncestorScope() throws IOException {
+    final InMemoryKey parent1 = supplier.toKey(null, "DFactory", "p1");
+    final InMemoryKey parent2 = supplier.toKey(null, "DFactory", "p2");
+    for (long id = 1; id <= 10; id++) {
+      for (InMemoryKey parent : Arrays.asList(parent1, parent2)) {
+        final Map<String, Object> value = supplier.createWriteValue(parent, "DChild", id);
+        supplier.setString(value, "parentName", parent.getName());
+        supplier.writeValue(null, supplier.getKey(value, null), value);
+      }
+    }
+    // same id under different parents must not overwrite each other
+    assertEquals(20, supplier.count(null, "DChild", null, null));
+    assertEquals(10, supplier.count(null, "DChild", parent1, null));
+    assertEquals("p2", supplier.getString(supplier.readValue(null, supplier.toKey(parent2, "DChild", 3L)), "parentName"));
+
+    for (Map<String, Object> value : supplier.queryIterable(null, "DChild", false, 0, -1, parent2, null,
+      null, false, null, false)) {
+      assertEquals(parent2, supplier.getParentKey(value, null));
+    }
+    // in key order, names compare as strings: 1, 10, 2, 3
+    assertEquals(Arrays.asList(2L, 3L), ids(supplier.queryIterable(null, "DChild", false, 2, 2, parent1, null,
+      null, false, null, false)));
+
+    // pages of the descendants only
+    final List<Long> actual = new ArrayList<Long>();
+    String cursor = null;
+    do {
+      CursorPage<Map<String, Object>> page = supplier.queryPage(null, "DChild", false, 3, parent1,
+        null, false, null, false, null, cursor);
+      for (Map<String, Object> value : page.getItems()) {
+        assertEquals(parent1, supplier.getParentKey(value, null));
+      }
+      actual.addAll(ids(page.getItems()));
+      cursor = page.getCursorKey();
+    } while (null != cursor);
+    assertEquals(10, actual.size());
+  }
+
+  @Test
+  public void testSnapshotRestore() throws IOException {
+    final InMemoryKey parent = supplier.toKey(null, "DFactory", "p1");
+    for (long id = 1; id <= 100; id++) {
+      DUser user = DUserMapper.newBuilder().id(id).displayName("user_" + (id % 10))
+        .email("user_" + id + "@example.com").birthDate(new Date(id)).build();
+      user.setCreatedBy(0 == id % 2 ? "even" : null);
+      userDao.put(user);
+      final Map<String, Object> child = supplier.createWriteValue(parent, "DChild", id);
+      supplier.writeValue(null, supplier.getKey(child, null), child);
+    }
+    supplier.createIndex("DUser", "createdBy", false);
+    userDao.delete(53L);
+    final File file = folder.newFile("snapshot.bin");
+    supplier.snapshotTo(file);
+
+    // not in the snapshot
+    userDao.delete(42L);
+    userDao.put(DUserMapper.newBuilder().id(500L).displayName("later").build());
+
+    final InMemorySupplier restored = new InMemorySupplier();
+    restored.restoreFrom(file);
+    final DUserDao restoredDao = new DUserDao(restored);
+    assertEquals(99, restoredDao.count());
+    assertEquals("user_2", restoredDao.get(42L).getDisplayName());
+    assertEquals(new Date(42L), restoredDao.get(42L).getBirthDate());
+    assertNull(restoredDao.get(53L));
+    assertNull(restoredDao.get(500L));
+    assertEquals(9, count(restoredDao.queryByDisplayName("user_3")));
+    assertEquals(50, restored.count(null, "DUser", null, null, Filter.equalsFilter("createdBy", "even")));
+    assertEquals(100, restored.count(null, "DChild", parent, null));
+
+    // restored values are committed, and generated ids follow them
+    final Object tx = restored.beginTransaction();
+    assertNotNull(restored.readValue(tx, restored.toKey(null, "DUser", 1L)));
+    restored.rollbackActiveTransaction(tx);
+    assertTrue(100L < restoredDao.put(DUserMapper.newBuilder().displayName("generated").build()));
+
+    // replaces the current entities
+    supplier.restoreFrom(file);
+    assertEquals(99, userDao.count());
+    assertNull(userDao.get(500L));
+    assertEquals(0, count(userDao.queryByDisplayName("later")));
+    assertEquals(10, count(userDao.queryByDisplayName("user_2")));
+  }
+
+  @Test
+  public void testRestoreTime() throws IOException {
+    final int entities = 50000;
+    for (long id = 1; id <= entities; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName("user_" + (id % 100))
+        .email("user_" + id + "@example.com").birthDate(new Date(id)).build());
+    }
+    final File file = folder.newFile("snapshot.bin");
+    long millis = System.currentTimeMillis();
+    supplier.snapshotTo(file);
+    final long snapshotMillis = System.currentTimeMillis() - millis;
+
+    final InMemorySupplier restored = new InMemorySupplier();
+    new DUserDao(restored);
+    millis = System.currentTimeMillis();
+    restored.restoreFrom(file);
+    LOGGER.info("{} entities, {} bytes, snapshot in {} ms, restored in {} ms",
+      new Object[] {entities, file.length(), snapshotMillis, System.currentTimeMillis() - millis});
+    assertEquals(entities, restored.count(null, "DUser", null, null));
+  }
+
+  @Test
+  public void testSameThreadFutures() throws Exception {
+    final InMemorySupplier sameThread = new InMemorySupplier(false, SupplierExecutors.sameThread());
+    final DUserDao dao = new DUserDao(sameThread);
+    final Future<Long> written = dao.putAsync(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    assertTrue(written.isDone());
+    assertEquals(Long.valueOf(1L), written.get());
+
+    final Future<DUser> read = dao.getAsync(null, 1L);
+    assertTrue(read.isDone());
+    assertEquals("first", read.get().getDisplayName());
+    final Future<Integer> count = sameThread.countFuture(null, "DUser", null, null, -1);
+    assertTrue(count.isDone());
+    assertEquals(Integer.valueOf(1), count.get());
+
+    final Future<Void> failed = SupplierExecutors.sameThread().submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        throw new IOException("failed");
+      }
+    });
+    try {
+      failed.get();
+      fail("Expected ExecutionException");
+    }
+    catch (ExecutionException expected) {
+      assertEquals("failed", expected.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void testFutureThreads() throws Exception {
+    for (long id = 1; id <= 100; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName("user_" + id).build());
+    }
+    final int threads = Thread.activeCount();
+    final List<Future<DUser>> futures = new ArrayList<Future<DUser>>();
+    for (int i = 0; i < 2000; i++) {
+      futures.add(userDao.getAsync(null, 1L + i % 100));
+    }
+    // a pool of threads, not one per future
+    assertTrue(Thread.activeCount() <= threads + Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    for (int i = 0; i < futures.size(); i++) {
+      assertEquals(Long.valueOf(1L + i % 100), futures.get(i).get().getId());
+    }
+  }
+
+  @Test
+  public void testSnapshotIsolation() throws IOException {
+    final InMemoryKey key = supplier.toKey(null, "DUser", 1L);
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+
+    final Object tx = supplier.beginTransaction();
+    assertEquals("first", supplier.getString(supplier.readValue(tx, key), "displayName"));
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("second").build());
+    assertEquals("first", supplier.getString(supplier.readValue(tx, key), "displayName"));
+
+    final Map<String, Object> value = supplier.createWriteValue(null, "DUser", 1L);
+    supplier.setString(value, "displayName", "third");
+    supplier.writeValue(tx, key, value);
+    assertEquals("third", supplier.getString(supplier.readValue(tx, key), "displayName"));
+    assertEquals("second", userDao.get(1L).getDisplayName());
+    try {
+      supplier.commitTransaction(tx);
+      fail("Expected conflict");
+    }
+    catch (ConcurrentModificationException expected) {
+      assertEquals("second", userDao.get(1L).getDisplayName());
+    }
+
+    userDao.withRollbackTransaction(new TransFunc<Void>() {
+      @Override
+      public Void apply() throws IOException {
+        userDao.put(DUserMapper.newBuilder().id(2L).displayName("rolled back").build());
+        userDao.delete(1L);
+        return null;
+      }
+    });
+    assertNull(userDao.get(2L));
+    assertNotNull(userDao.get(1L));
+  }
+
+  @Test
+  public void testContendedTransactions() throws Exception {
+    final InMemoryKey key = supplier.toKey(null, "Counter", 1L);
+    final Map<String, Object> initial = supplier.createWriteValue(null, "Counter", 1L);
+    supplier.setLong(initial, "count", 0L);
+    supplier.writeValue(null, key, initial);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final long start = System.nanoTime();
+      final List<Future<Integer>> workers = new ArrayList<Future<Integer>>();
+      for (int t = 0; t < THREADS; t++) {
+        workers.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws IOException {
+            int conflicts = 0;
+            for (int i = 0; i < 500; i++) {
+              while (!increment(key)) {
+                conflicts++;
+              }
+            }
+            return conflicts;
+          }
+        }));
+      }
+      int conflicts = 0;
+      for (Future<Integer> worker : workers) {
+        conflicts += worker.get();
+      }
+      final long millis = Math.max(1L, (System.nanoTime() - start) / 1000000L);
+      LOGGER.info("{} commits and {} conflicts by {} threads in {} ms",
+        new Object[] {THREADS * 500, conflicts, THREADS, millis});
+
+      assertEquals(Long.valueOf(THREADS * 500), supplier.getLong(supplier.readValue(null, key), "count"));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  private boolean increment(InMemoryKey key) throws IOException {
+    final Object tx = supplier.beginTransaction();
+    try {
+      final Map<String, Object> value = new TreeMap<String, Object>(supplier.readValue(tx, key));
+      supplier.setLong(value, "count", supplier.getLong(value, "count") + 1);
+      supplier.writeValue(tx, key, value);
+      supplier.commitTransaction(tx);
+      return true;
+    }
+    catch (ConcurrentModificationException conflict) {
+      return false;
+    }
+    finally {
+      supplier.rollbackActiveTransaction(tx);
+    }
+  }
+
+  @Test
+  public void testConcurrentReadWrite() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+    try {
+      final long start = System.nanoTime();
+      final List<Future<Integer>> writers = new ArrayList<Future<Integer>>();
+      // explicit ids in an allocated range, not to collide with the ones allocated concurrently
+      final long explicitIds = supplier.allocateIds("DUser", THREADS * ENTITIES_PER_THREAD) - 1;
+      for (int t = 0; t < THREADS; t++) {
+        final long base = explicitIds + t * ENTITIES_PER_THREAD;
+        writers.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws IOException {
+            int ops = 0;
+            for (long id = base + 1; id <= base + ENTITIES_PER_THREAD; id++) {
+              userDao.put(DUserMapper.newBuilder().id(id).displayName("user_" + id).build());
+              DUser read = userDao.get(id);
+              assertNotNull(read);
+              assertEquals("user_" + id, read.getDisplayName());
+              ops += 2;
+              // delete every fourth, and a generated one
+              if (0 == id % 4) {
+                userDao.delete(id);
+                userDao.put(DUserMapper.newBuilder().displayName("generated").build());
+                ops += 2;
+              }
+            }
+            return ops;
+          }
+        }));
+      }
+
+      // queries concurrent with the writers must never fail nor see an entity twice
+      final Future<Integer> reader = executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException {
+          int ops = 0;
+          while (ops < 50) {
+            assertTrue(count(userDao.queryByDisplayName("generated")) <= THREADS * ENTITIES_PER_THREAD / 4);
+            ops++;
+          }
+          return ops;
+        }
+      });
+
+      int ops = reader.get();
+      for (Future<Integer> writer : writers) {
+        ops += writer.get();
+      }
+      final long millis = Math.max(1L, (System.nanoTime() - start) / 1000000L);
+      LOGGER.info("{} ops by {} threads in {} ms, {} ops/s", new Object[] {ops, THREADS, millis, ops * 1000L / millis});
+
+      assertEquals(THREADS * ENTITIES_PER_THREAD, userDao.count());
+      assertEquals(THREADS * ENTITIES_PER_THREAD / 4, count(userDao.queryByDisplayName("generated")));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testStreamBoundedFetch() throws Exception {
+    final AtomicInteger fetches = new AtomicInteger();
+    supplier = new InMemorySupplier() {
+      @Override
+      public CursorPage<Map<String, Object>> queryPage(Object tx, String kind, boolean keysOnly,
+                                                       int requestedPageSize, InMemoryKey ancestorKey,
+                                                       String primaryOrderBy, boolean primaryIsAscending,
+                                                       String secondaryOrderBy, boolean secondaryIsAscending,
+                                                       Collection<String> projections, String cursorString,
+                                                       Filter... filters) {
+        fetches.incrementAndGet();
+        return super.queryPage(tx, kind, keysOnly, requestedPageSize, ancestorKey, primaryOrderBy, primaryIsAscending,
+          secondaryOrderBy, secondaryIsAscending, projections, cursorString, filters);
+      }
+    };
+    userDao = new DUserDao(supplier);
+    for (long id = 1; id <= 30; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName("user_" + id).build());
+    }
+
+    final CountDownLatch visiting = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final AtomicInteger visited = new AtomicInteger();
+    final ExecutorService workers = Executors.newFixedThreadPool(2);
+    final ExecutorService streamer = Executors.newSingleThreadExecutor();
+    try {
+      final Future<Void> streaming = streamer.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          userDao.stream(10).forEach(workers, 1, new EntityVisitor<DUser>() {
+            @Override
+            public void visit(DUser entity) throws IOException {
+              visiting.countDown();
+              try {
+                proceed.await();
+              }
+              catch (InterruptedException e) {
+                throw new IOException(e);
+              }
+              visited.incrementAndGet();
+            }
+          });
+          return null;
+        }
+      });
+      assertTrue(visiting.await(10, TimeUnit.SECONDS));
+      // the only permit is held by the blocked batch, so the next one is not fetched yet
+      Thread.sleep(100L);
+      assertEquals(1, fetches.get());
+
+      proceed.countDown();
+      streaming.get(10, TimeUnit.SECONDS);
+      assertEquals(30, visited.get());
+    }
+    finally {
+      proceed.countDown();
+      streamer.shutdown();
+      workers.shutdown();
+    }
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void testStreamRejected() throws IOException {
+    for (long id = 1; id <= 30; id++) {
+      userDao.put(DUserMapper.newBuilder().id(id).displayName("user_" + id).build());
+    }
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    userDao.stream(10).forEach(executor, 1, new EntityVisitor<DUser>() {
+      @Override
+      public void visit(DUser entity) {
+        fail("rejected batch visited");
+      }
+    });
+  }
+
+  private static int count(Iterable<DUser> users) {
+    int count = 0;
+    for (DUser user : users) {
+      count++;
+    }
+    return count;
+  }
+
+  private List<Long> ids(Iterable<Map<String, Object>> values) {
+    final List<Long> ids = new ArrayList<Long>();
+    for (Map<String, Object> value : values) {
+      ids.add(supplier.toLongKey(supplier.getKey(value, null)));
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,188 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-core
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.mardao.core.filter.Filter;
+
+/**
+ * Runs the AbstractDao tests on the OffHeapSupplier.
+ */
+public class OffHeapSupplierTest extends AbstractDaoTest {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(OffHeapSupplierTest.class);
+  static final int ENTITIES = 50000;
+
+  @Before
+  @Override
+  public void setUp() {
+    supplier = new OffHeapSupplier();
+    userDao = new DUserDao(supplier);
+    factoryDao = new DFactoryDao(supplier);
+    AbstractDao.setPrincipalName(PRINCIPAL_SET_UP);
+  }
+
+  @Test
+  public void testStore() {
+    final OffHeapStore store = new OffHeapStore();
+    final int count = 100000;
+    for (int i = 0; i < count; i++) {
+      assertTrue(store.put(bytes("key" + i), new byte[i % 100], false));
+    }
+    assertEquals(count, store.size());
+    assertFalse(store.put(bytes("key1"), new byte[1], true));
+    assertEquals(1, store.get(bytes("key1")).length);
+
+    // overwrite with another size class
+    assertTrue(store.put(bytes("key2"), new byte[5000], false));
+    assertEquals(5000, store.get(bytes("key2")).length);
+
+    final long allocated = store.getAllocatedBytes();
+    for (int i = 0; i < count; i += 2) {
+      assertTrue(store.remove(bytes("key" + i)));
+    }
+    assertEquals(count / 2, store.size());
+    assertTrue(store.getAllocatedBytes() < allocated);
+    assertNull(store.get(bytes("key0")));
+    assertArrayEquals(new byte[3], store.get(bytes("key3")));
+
+    // freed chunks are reused
+    final long reserved = store.getReservedBytes();
+    for (int i = 0; i < count; i += 2) {
+      assertTrue(store.put(bytes("key" + i), new byte[i % 100], false));
+    }
+    assertEquals(count, store.size());
+    assertEquals(reserved, store.getReservedBytes());
+  }
+
+  @Test
+  public void testTypes() throws IOException {
+    final InMemoryKey parent = (InMemoryKey) supplier.toKey(null, "Parent", "p");
+    final InMemoryKey key = (InMemoryKey) supplier.toKey(parent, "Types", 1L);
+    final Map<String, Object> value = (Map<String, Object>) supplier.createWriteValue(parent, "Types", 1L);
+    supplier.setLong(value, "long", -42L);
+    supplier.setInteger(value, "integer", 7);
+    supplier.setFloat(value, "float", 1.5f);
+    supplier.setBoolean(value, "boolean", true);
+    supplier.setDate(value, "date", new Date(1234L));
+    supplier.setString(value, "string", "åäö");
+    supplier.setCollection(value, "collection", Arrays.asList("a", "b"));
+    supplier.setByteBuffer(value, "bytes", ByteBuffer.wrap(new byte[] {1, 2}));
+    supplier.setString(value, "nothing", null);
+    value.put("ref", parent);
+    supplier.writeValue(null, key, value);
+
+    final Map<String, Object> actual = (Map<String, Object>) supplier.readValue(null, key);
+    assertEquals(key, supplier.getKey(actual, null));
+    assertEquals(parent, supplier.getParentKey(actual, null));
+    assertEquals(Long.valueOf(-42L), supplier.getLong(actual, "long"));
+    assertEquals(Integer.valueOf(7), supplier.getInteger(actual, "integer"));
+    assertEquals(Float.valueOf(1.5f), supplier.getFloat(actual, "float"));
+    assertEquals(Boolean.TRUE, supplier.getBoolean(actual, "boolean"));
+    assertEquals(new Date(1234L), supplier.getDate(actual, "date"));
+    assertEquals("åäö", supplier.getString(actual, "string"));
+    assertEquals(Arrays.asList("a", "b"), supplier.getCollection(actual, "collection"));
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2}), supplier.getByteBuffer(actual, "bytes"));
+    assertEquals(parent, actual.get("ref"));
+    assertNull(supplier.getString(actual, "nothing"));
+    assertEquals(11, actual.size());
+
+    assertEquals(1, supplier.count(null, "Types", parent, null, Filter.equalsFilter("long", -42L)));
+    assertEquals(0, supplier.count(null, "Types", null, null, Filter.equalsFilter("string", "unknown")));
+  }
+
+  @Test
+  public void testHeap() throws IOException {
+    final Measurement offHeap = measure(new OffHeapSupplier());
+    final Measurement inMemory = measure(new InMemorySupplier());
+    LOGGER.info("off-heap: {}, in-memory: {}", offHeap, inMemory);
+    assertTrue(offHeap.heapPerEntity < inMemory.heapPerEntity);
+  }
+
+  private static Measurement measure(Supplier supplier) throws IOException {
+    final DUserDao dao = new DUserDao(supplier);
+    final long gcBefore = gcMillis();
+    final long before = usedHeap();
+    for (long id = 1; id <= ENTITIES; id++) {
+      dao.put(DUserMapper.newBuilder().id(id).displayName("user_" + (id % 100))
+        .email("user_" + id + "@example.com").birthDate(new Date(id)).build());
+    }
+    final long gcPut = gcMillis() - gcBefore;
+    final long used = usedHeap() - before;
+    assertEquals(ENTITIES, dao.count());
+    return new Measurement(used / ENTITIES, gcPut);
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static long usedHeap() {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes();
+  }
+
+  static final class Measurement {
+    final long heapPerEntity;
+    final long gcMillis;
+
+    Measurement(long heapPerEntity, long gcMillis) {
+      this.heapPerEntity = heapPerEntity;
+      this.gcMillis = gcMillis;
+    }
+
+    @Override
+    public String toString() {
+      return heapPerEntity + " heap bytes per entity, " + gcMillis + "ms GC while writing";
+    }
+  }
+}
@@ -0,0 +1,822 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-file
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.filter.Filter;
+
+/**
+ * Persists entities in a directory, as an append-only log of memory-mapped segment files.
+ * An index in memory maps each key to the location of its latest record, and is rebuilt by replaying the log
+ * when opened.
+ *
+ * Each record is a batch of mutations, with a length and checksum, so that a transaction is committed atomically
+ * and a torn write is discarded on recovery. Concurrent writers share the fsync of their records.
+ * Sealed segments that are mostly superseded are compacted in the background.
+ *
+ * Transactions buffer their writes until committed, and are validated optimistically, see {@link SerializedTransaction}.
+ * Queries scan the index, as no column indexes are kept, and read the latest commits also within a transaction.
+ */
+public class FileSupplier extends AbstractMapSupplier implements Closeable {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(FileSupplier.class);
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /** a sealed segment is compacted when less than this part of it is live */
+  static final double COMPACTION_THRESHOLD = 0.5;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /** record length, checksum and count of entries */
+  static final int HEADER = 12;
+  private static final byte OP_PUT = 1;
+  private static final byte OP_DELETE = 2;
+
+  private final File directory;
+  private final int segmentSize;
+
+  /** kind -> key -> location of the latest record, including deletes */
+  private final ConcurrentMap<String, ConcurrentNavigableMap<InMemoryKey, Location>> index =
+    new ConcurrentHashMap<String, ConcurrentNavigableMap<InMemoryKey, Location>>();
+  private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+
+  /** serializes the appending and indexing of records per key */
+  private final ReentrantLock[] writeLocks = new ReentrantLock[64];
+
+  private final Object appendLock = new Object();
+  /** guarded by appendLock */
+  private Segment active;
+  /** bytes appended since opened, guarded by appendLock */
+  private long written;
+  /** guarded by appendLock */
+  private boolean closed;
+
+  private final Object syncLock = new Object();
+  /** bytes appended and forced to disk, guarded by syncLock */
+  private long synced;
+  /** a writer is forcing for the others, guarded by syncLock */
+  private boolean syncing;
+  private final AtomicLong syncCount = new AtomicLong();
+
+  private final Object compactLock = new Object();
+  private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, "mardao-file-compactor");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  public FileSupplier(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public FileSupplier(File directory, int segmentSize) throws IOException {
+    this(directory, segmentSize, SupplierExecutors.defaultExecutor());
+  }
+
+  /**
+   * @param executor runs the futures, see {@link SupplierExecutors}
+   */
+  public FileSupplier(File directory, int segmentSize, ExecutorService executor) throws IOException {
+    super(executor);
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    for (int i = 0; i < writeLocks.length; i++) {
+      writeLocks[i] = new ReentrantLock();
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create directory " + directory);
+    }
+    recover();
+    scheduleCompaction();
+  }
+
+  // --- recovery ---
+
+  private void recover() throws IOException {
+    final TreeSet<Integer> ids = new TreeSet<Integer>();
+    directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          ids.add(Integer.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        }
+        return false;
+      }
+    });
+    for (Integer id : ids) {
+      final Segment segment = Segment.open(segmentFile(id), id, 0);
+      segments.put(id, segment);
+      replay(segment);
+    }
+    if (ids.isEmpty()) {
+      active = Segment.open(segmentFile(1), 1, segmentSize);
+      segments.put(active.id, active);
+    }
+    else {
+      active = segments.lastEntry().getValue();
+      // discard anything after the last complete record, so that it cannot be mistaken for later records
+      final ByteBuffer tail = active.buffer.duplicate();
+      tail.position(active.position);
+      while (tail.hasRemaining()) {
+        tail.put((byte) 0);
+      }
+      active.buffer.force();
+    }
+    LOGGER.info("recovered {} segments in {}", segments.size(), directory);
+  }
+
+  /**
+   * Indexes the complete records of the segment, up to the first torn or corrupt one.
+   */
+  private void replay(final Segment segment) {
+    final ByteBuffer buffer = segment.buffer.duplicate();
+    int position = 0;
+    while (position + HEADER <= buffer.capacity()) {
+      final int length = buffer.getInt(position);
+      if (length < HEADER - 8 || buffer.capacity() - position - 8 < length ||
+        buffer.getInt(position + 4) != checksum(buffer, position + 8, length)) {
+        break;
+      }
+      final int count = buffer.getInt(position + 8);
+      int offset = position + HEADER;
+      for (int i = 0; i < count; i++) {
+        final Location location = segment.locate(offset);
+        final InMemoryKey key = location.key();
+        index(key, location);
+        reserveId(key);
+        offset += location.length;
+      }
+      position += 8 + length;
+    }
+    if (position + HEADER <= buffer.capacity() && 0 != buffer.getInt(position)) {
+      LOGGER.warn("discarding torn or corrupt record at {} in {}", position, segment.file);
+    }
+    segment.position = position;
+  }
+
+  private static int checksum(ByteBuffer buffer, int position, int length) {
+    final byte[] bytes = new byte[length];
+    final ByteBuffer source = buffer.duplicate();
+    source.position(position);
+    source.get(bytes);
+    final CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+
+  private File segmentFile(int id) {
+    return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+  }
+
+  // --- writing ---
+
+  /**
+   * Appends the mutations as one record, indexes them, and waits for the record to be on disk.
+   * @param values the serialized values, or null to delete
+   */
+  private void write(List<InMemoryKey> keys, List<byte[]> values) throws IOException {
+    final List<ReentrantLock> locks = lock(keys);
+    final long end;
+    try {
+      end = appendIndexed(keys, values);
+    }
+    finally {
+      unlock(locks);
+    }
+    sync(end);
+  }
+
+  /**
+   * Validates the keys seen by a transaction and appends its writes as one record, holding the locks of all keys,
+   * then waits for the record to be on disk.
+   */
+  private void commit(Map<InMemoryKey, byte[]> seen, Map<InMemoryKey, byte[]> writes) throws IOException {
+    final List<ReentrantLock> locks = lock(seen.keySet());
+    final long end;
+    try {
+      for (Map.Entry<InMemoryKey, byte[]> entry : seen.entrySet()) {
+        SerializedTransaction.validate(entry.getKey(), entry.getValue(), stored(entry.getKey()));
+      }
+      end = appendIndexed(new ArrayList<InMemoryKey>(writes.keySet()), new ArrayList<byte[]>(writes.values()));
+    }
+    finally {
+      unlock(locks);
+    }
+    sync(end);
+  }
+
+  /** appends and indexes the mutations, holding the locks of their keys */
+  private long appendIndexed(List<InMemoryKey> keys, List<byte[]> values) throws IOException {
+    final Location[] locations = new Location[keys.size()];
+    final long end = append(keys, values, locations);
+    for (int i = 0; i < locations.length; i++) {
+      index(keys.get(i), locations[i]);
+    }
+    return end;
+  }
+
+  /**
+   * @param locations receives the location of each entry
+   * @return the number of bytes written when the record is appended
+   */
+  private long append(List<InMemoryKey> keys, List<byte[]> values, Location[] locations) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    final int[] offsets = new int[keys.size() + 1];
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeInt(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      offsets[i] = out.size();
+      final byte[] key = keys.get(i).encoded();
+      final byte[] value = values.get(i);
+      out.writeByte(null != value ? OP_PUT : OP_DELETE);
+      out.writeInt(key.length);
+      out.write(key);
+      out.writeInt(null != value ? value.length : 0);
+      if (null != value) {
+        out.write(value);
+      }
+    }
+    offsets[keys.size()] = out.size();
+    out.flush();
+    final byte[] record = bytes.toByteArray();
+    final ByteBuffer header = ByteBuffer.wrap(record);
+    header.putInt(0, record.length - 8);
+    header.putInt(4, checksum(header, 8, record.length - 8));
+
+    synchronized (appendLock) {
+      if (closed) {
+        throw new IOException("FileSupplier is closed");
+      }
+      if (active.buffer.capacity() - active.position < record.length) {
+        roll(record.length);
+      }
+      final ByteBuffer target = active.buffer.duplicate();
+      target.position(active.position);
+      target.put(record);
+      for (int i = 0; i < keys.size(); i++) {
+        locations[i] = new Location(active, active.position + offsets[i], offsets[i + 1] - offsets[i],
+          null == values.get(i));
+      }
+      active.position += record.length;
+      written += record.length;
+      return written;
+    }
+  }
+
+  /**
+   * Seals the active segment, forcing it to disk, and starts a new one.
+   */
+  private void roll(int minimum) throws IOException {
+    active.buffer.force();
+    syncCount.incrementAndGet();
+    final Segment next = Segment.open(segmentFile(active.id + 1), active.id + 1, Math.max(segmentSize, minimum));
+    segments.put(next.id, next);
+    active = next;
+    scheduleCompaction();
+  }
+
+  /**
+   * Waits until the appended bytes are on disk. One writer forces the active segment for all others waiting.
+   */
+  private void sync(long end) throws IOException {
+    boolean leader = false;
+    try {
+      synchronized (syncLock) {
+        while (synced < end && syncing) {
+          syncLock.wait();
+        }
+        if (end <= synced) {
+          return;
+        }
+        syncing = true;
+        leader = true;
+      }
+      final long target;
+      final Segment segment;
+      synchronized (appendLock) {
+        // older segments were forced when sealed
+        target = written;
+        segment = active;
+      }
+      segment.buffer.force();
+      syncCount.incrementAndGet();
+      synchronized (syncLock) {
+        synced = Math.max(synced, target);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("waiting for sync");
+    }
+    finally {
+      if (leader) {
+        synchronized (syncLock) {
+          syncing = false;
+          syncLock.notifyAll();
+        }
+      }
+    }
+  }
+
+  private void index(InMemoryKey key, Location location) {
+    final Location previous = kindIndex(key.getKind()).put(key, location);
+    location.segment.live.addAndGet(location.length);
+    if (null != previous) {
+      previous.segment.live.addAndGet(-previous.length);
+    }
+  }
+
+  private ConcurrentNavigableMap<InMemoryKey, Location> kindIndex(String kind) {
+    ConcurrentNavigableMap<InMemoryKey, Location> kindIndex = index.get(kind);
+    if (null == kindIndex) {
+      final ConcurrentNavigableMap<InMemoryKey, Location> created = new ConcurrentSkipListMap<InMemoryKey, Location>();
+      kindIndex = index.putIfAbsent(kind, created);
+      if (null == kindIndex) {
+        kindIndex = created;
+      }
+    }
+    return kindIndex;
+  }
+
+  /** @return the serialized value of the key, or null if none or deleted */
+  private byte[] stored(InMemoryKey key) {
+    final Location location = locate(key);
+    return null != location && !location.deleted ? location.value() : null;
+  }
+
+  /** @return the location of the latest record of the key, or null */
+  Location locate(InMemoryKey key) {
+    final ConcurrentNavigableMap<InMemoryKey, Location> kindIndex = index.get(key.getKind());
+    return null != kindIndex ? kindIndex.get(key) : null;
+  }
+
+  private ReentrantLock stripe(InMemoryKey key) {
+    return writeLocks[(key.hashCode() & Integer.MAX_VALUE) % writeLocks.length];
+  }
+
+  /** locks the stripes of the keys in order, to not deadlock with other writers */
+  private List<ReentrantLock> lock(Collection<InMemoryKey> keys) {
+    final TreeSet<Integer> stripes = new TreeSet<Integer>();
+    for (InMemoryKey key : keys) {
+      stripes.add((key.hashCode() & Integer.MAX_VALUE) % writeLocks.length);
+    }
+    final List<ReentrantLock> locks = new ArrayList<ReentrantLock>(stripes.size());
+    for (Integer stripe : stripes) {
+      writeLocks[stripe].lock();
+      locks.add(writeLocks[stripe]);
+    }
+    return locks;
+  }
+
+  private static void unlock(List<ReentrantLock> locks) {
+    for (ReentrantLock lock : locks) {
+      lock.unlock();
+    }
+  }
+
+  // --- compaction ---
+
+  private void scheduleCompaction() {
+    if (!compactor.isShutdown()) {
+      compactor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            compact();
+          }
+          catch (IOException e) {
+            LOGGER.warn("compaction failed", e);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Rewrites the live records of sealed segments that are mostly superseded, and deletes those segments.
+   */
+  public void compact() throws IOException {
+    synchronized (compactLock) {
+      for (Segment segment : segments.values()) {
+        final Segment current;
+        synchronized (appendLock) {
+          if (closed) {
+            return;
+          }
+          current = active;
+        }
+        if (segment != current && segment.live.get() < COMPACTION_THRESHOLD * segment.position) {
+          compact(segment);
+        }
+      }
+    }
+  }
+
+  private void compact(Segment segment) throws IOException {
+    // deletes are kept while an older segment may hold a record they supersede
+    final boolean oldest = segment.id == segments.firstKey();
+    final List<Location> live = new ArrayList<Location>();
+    final ByteBuffer buffer = segment.buffer.duplicate();
+    int position = 0;
+    while (position < segment.position) {
+      final int length = buffer.getInt(position);
+      final int count = buffer.getInt(position + 8);
+      int offset = position + HEADER;
+      for (int i = 0; i < count; i++) {
+        final Location location = segment.locate(offset);
+        final InMemoryKey key = location.key();
+        if (location.equals(locate(key))) {
+          if (!location.deleted || !oldest) {
+            live.add(location);
+          }
+          else if (kindIndex(key.getKind()).remove(key, location)) {
+            segment.live.addAndGet(-location.length);
+          }
+        }
+        offset += location.length;
+      }
+      position += 8 + length;
+    }
+
+    long end = 0;
+    final int batch = 1000;
+    for (int from = 0; from < live.size(); from += batch) {
+      end = Math.max(end, rewrite(live.subList(from, Math.min(live.size(), from + batch))));
+    }
+    sync(end);
+
+    segments.remove(segment.id);
+    if (!segment.file.delete()) {
+      LOGGER.warn("could not delete compacted segment {}", segment.file);
+    }
+    LOGGER.debug("compacted {} records of {}", live.size(), segment.file);
+  }
+
+  /**
+   * Appends the records that are still the latest of their keys.
+   * @return the number of bytes written when appended
+   */
+  private long rewrite(List<Location> locations) throws IOException {
+    final List<InMemoryKey> keys = new ArrayList<InMemoryKey>(locations.size());
+    for (Location location : locations) {
+      keys.add(location.key());
+    }
+    final List<ReentrantLock> locks = lock(keys);
+    try {
+      final List<InMemoryKey> current = new ArrayList<InMemoryKey>();
+      final List<byte[]> values = new ArrayList<byte[]>();
+      for (int i = 0; i < keys.size(); i++) {
+        final Location location = locations.get(i);
+        if (location.equals(locate(keys.get(i)))) {
+          current.add(keys.get(i));
+          values.add(location.deleted ? null : location.value());
+        }
+      }
+      if (current.isEmpty()) {
+        return 0;
+      }
+      final Location[] rewritten = new Location[current.size()];
+      final long end = append(current, values, rewritten);
+      for (int i = 0; i < rewritten.length; i++) {
+        index(current.get(i), rewritten[i]);
+      }
+      return end;
+    }
+    finally {
+      unlock(locks);
+    }
+  }
+
+  /**
+   * Stops the compaction and forces the log to disk. The segments are unmapped when garbage collected.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (appendLock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    compactor.shutdown();
+    try {
+      compactor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    active.buffer.force();
+  }
+
+  /** @return the number of segment files */
+  int getSegmentCount() {
+    return segments.size();
+  }
+
+  /** @return the number of times the log was forced to disk */
+  long getSyncCount() {
+    return syncCount.get();
+  }
+
+  // --- Supplier ---
+
+  @Override
+  public Object beginTransaction() {
+    return new SerializedTransaction();
+  }
+
+  @Override
+  public void commitTransaction(Object tx) {
+    final SerializedTransaction transaction = (SerializedTransaction) tx;
+    final Map<InMemoryKey, byte[]> writes = transaction.getWrites();
+    final Map<InMemoryKey, byte[]> seen = transaction.getSeen();
+    transaction.clear();
+    if (!writes.isEmpty()) {
+      try {
+        commit(seen, writes);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Committing transaction", e);
+      }
+    }
+  }
+
+  @Override
+  public void rollbackActiveTransaction(Object tx) {
+    ((SerializedTransaction) tx).clear();
+  }
+
+  @Override
+  public void createIndex(String kind, String column, boolean sorted) {
+    // queries scan the index of keys
+  }
+
+  @Override
+  public int count(Object tx, String kind, InMemoryKey ancestorKey, InMemoryKey simpleKey, Filter... filters) {
+    return scan(kind, ancestorKey, simpleKey, filters).size();
+  }
+
+  @Override
+  public Future<Integer> countFuture(final Object tx, final String kind, final InMemoryKey ancestorKey,
+                                     final InMemoryKey simpleKey, final int limit, final Filter... filters) {
+    return submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        final int count = count(tx, kind, ancestorKey, simpleKey, filters);
+        return 0 < limit ? Math.min(limit, count) : count;
+      }
+    });
+  }
+
+  @Override
+  public void deleteValue(Object tx, InMemoryKey key) throws IOException {
+    if (null != tx) {
+      ((SerializedTransaction) tx).write(key, stored(key), null);
+      return;
+    }
+    final Location location = locate(key);
+    if (null != location && !location.deleted) {
+      write(Collections.singletonList(key), Collections.singletonList((byte[]) null));
+    }
+  }
+
+  @Override
+  public Map<String, Object> readValue(Object tx, InMemoryKey key) throws IOException {
+    final SerializedTransaction transaction = (SerializedTransaction) tx;
+    if (null != transaction && transaction.isWritten(key)) {
+      final byte[] value = transaction.getWritten(key);
+      return null != value ? new SerializedValue(key, value) : null;
+    }
+    final byte[] value = stored(key);
+    if (null != transaction) {
+      transaction.see(key, value);
+    }
+    return null != value ? new SerializedValue(key, value) : null;
+  }
+
+  @Override
+  public InMemoryKey writeValue(Object tx, InMemoryKey key, Map<String, Object> core) throws IOException {
+    // assign long key? skip ids already written explicitly
+    if (null == key.getName()) {
+      do {
+        key = InMemoryKey.of(key.getParentKey(), key.getKind(), Long.toString(allocateIds(key.getKind(), 1)));
+      } while (null != locate(key));
+      core.put(NAME_KEY, key);
+    }
+    else {
+      reserveId(key);
+    }
+    final byte[] value = SerializedValue.encode(core);
+    if (null != tx) {
+      ((SerializedTransaction) tx).write(key, stored(key), value);
+    }
+    else {
+      write(Collections.singletonList(key), Collections.singletonList(value));
+    }
+    LOGGER.debug("put {} -> {}", key, core);
+    return key;
+  }
+
+  @Override
+  public Iterable<Map<String, Object>> queryIterable(Object tx, String kind, boolean keysOnly, int offset, int limit,
+                                                     InMemoryKey ancestorKey, InMemoryKey simpleKey,
+                                                     String primaryOrderBy, boolean primaryIsAscending,
+                                                     String secondaryOrderBy, boolean secondaryIsAscending, Filter... filters) {
+    return queryScanned(scan(kind, ancestorKey, simpleKey, filters), keysOnly, offset, limit,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending);
+  }
+
+  @Override
+  public CursorPage<Map<String, Object>> queryPage(Object tx, String kind, boolean keysOnly,
+                                                   int requestedPageSize, InMemoryKey ancestorKey,
+                                                   String primaryOrderBy, boolean primaryIsAscending,
+                                                   String secondaryOrderBy, boolean secondaryIsAscending,
+                                                   Collection<String> projections, String cursorString,
+                                                   Filter... filters) {
+    return pageScanned(scan(kind, ancestorKey, null, filters), keysOnly, requestedPageSize,
+      primaryOrderBy, primaryIsAscending, secondaryOrderBy, secondaryIsAscending, projections, cursorString);
+  }
+
+  /**
+   * @return the entities of the kind matching the filters, in no particular order
+   */
+  private List<Map.Entry<InMemoryKey, Map<String, Object>>> scan(String kind, InMemoryKey ancestorKey,
+                                                                 InMemoryKey simpleKey, Filter... filters) {
+    final NavigableMap<InMemoryKey, Location> kindIndex = kindIndex(kind);
+    final Map<InMemoryKey, Location> scope;
+    if (null != simpleKey) {
+      final Location location = kindIndex.get(simpleKey);
+      scope = null == location || (null != ancestorKey && !simpleKey.isDescendantOf(ancestorKey)) ?
+        Collections.<InMemoryKey, Location>emptyMap() : Collections.singletonMap(simpleKey, location);
+    }
+    else {
+      scope = null != ancestorKey ? descendants(kindIndex, ancestorKey) : kindIndex;
+    }
+
+    final List<Map.Entry<InMemoryKey, Map<String, Object>>> entries =
+      new ArrayList<Map.Entry<InMemoryKey, Map<String, Object>>>();
+    for (Map.Entry<InMemoryKey, Location> entry : scope.entrySet()) {
+      if (!entry.getValue().deleted) {
+        final Map<String, Object> value = new SerializedValue(entry.getKey(), entry.getValue().value());
+        if (matchAll(value, filters)) {
+          entries.add(new AbstractMap.SimpleImmutableEntry<InMemoryKey, Map<String, Object>>(entry.getKey(), value));
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * A log file, mapped into memory. Records are appended at the position, and read from any location before it.
+   */
+  static final class Segment {
+    final int id;
+    final File file;
+    final MappedByteBuffer buffer;
+    /** the end of the complete records, guarded by appendLock */
+    volatile int position;
+    /** bytes of the records that are the latest of their keys */
+    final AtomicLong live = new AtomicLong();
+
+    private Segment(int id, File file, MappedByteBuffer buffer) {
+      this.id = id;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Maps the file, preallocating it to the capacity if specified.
+     */
+    static Segment open(File file, int id, int capacity) throws IOException {
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        if (0 < capacity) {
+          raf.setLength(capacity);
+        }
+        return new Segment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+      }
+      finally {
+        // the mapping stays valid after the channel is closed
+        raf.close();
+      }
+    }
+
+    /** @return the location of the entry at the offset */
+    Location locate(int offset) {
+      final int keyLength = buffer.getInt(offset + 1);
+      final int valueLength = buffer.getInt(offset + 5 + keyLength);
+      return new Location(this, offset, 9 + keyLength + valueLength, OP_DELETE == buffer.get(offset));
+    }
+  }
+
+  /**
+   * An entry of a record: op, key length, key, value length and value.
+   */
+  static final class Location {
+    final Segment segment;
+    final int offset;
+    final int length;
+    final boolean deleted;
+
+    Location(Segment segment, int offset, int length, boolean deleted) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.deleted = deleted;
+    }
+
+    InMemoryKey key() {
+      final byte[] key = new byte[segment.buffer.getInt(offset + 1)];
+      final ByteBuffer source = segment.buffer.duplicate();
+      source.position(offset + 5);
+      source.get(key);
+      return InMemoryKey.fromBytes(key);
+    }
+
+    byte[] value() {
+      final int keyLength = segment.buffer.getInt(offset + 1);
+      final byte[] value = new byte[segment.buffer.getInt(offset + 5 + keyLength)];
+      final ByteBuffer source = segment.buffer.duplicate();
+      source.position(offset + 9 + keyLength);
+      source.get(value);
+      return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Location)) {
+        return false;
+      }
+      final Location other = (Location) o;
+      return segment == other.segment && offset == other.offset;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * segment.id + offset;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-file
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.mardao.domain.DUser;
+
+/**
+ * Runs the AbstractDao tests on the FileSupplier, and tests recovery, compaction and group commit.
+ */
+public class FileSupplierTest extends AbstractDaoTest {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(FileSupplierTest.class);
+  static final String KIND = "DUser";
+  static final int SMALL_SEGMENT = 64 * 1024;
+  static final int THREADS = 8;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+
+  @Before
+  @Override
+  public void setUp() {
+    try {
+      directory = folder.newFolder("log");
+      open(SMALL_SEGMENT);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    AbstractDao.setPrincipalName(PRINCIPAL_SET_UP);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    ((FileSupplier) supplier).close();
+  }
+
+  private void open(int segmentSize) throws IOException {
+    supplier = new FileSupplier(directory, segmentSize);
+    userDao = new DUserDao(supplier);
+    factoryDao = new DFactoryDao(supplier);
+  }
+
+  private void reopen() throws IOException {
+    ((FileSupplier) supplier).close();
+    open(SMALL_SEGMENT);
+  }
+
+  @Test
+  public void testRecovery() throws IOException {
+    createQueryFixtures();
+    final int count = userDao.count();
+    userDao.delete(47L);
+    final DUser updated = userDao.get(42L);
+    updated.setDisplayName("updated");
+    userDao.put(updated);
+
+    reopen();
+    assertEquals(count - 1, userDao.count());
+    assertNull(userDao.get(47L));
+    assertEquals("updated", userDao.get(42L).getDisplayName());
+    assertEquals(1, factoryDao.count());
+
+    // generated ids continue after the recovered ones
+    final Set<Long> ids = new HashSet<Long>();
+    for (Long id : userDao.queryIds(null)) {
+      ids.add(id);
+    }
+    final DUser generated = DUserMapper.newBuilder().displayName("generated").build();
+    userDao.put(generated);
+    assertFalse(ids.contains(generated.getId()));
+    assertEquals(count, userDao.count());
+  }
+
+  @Test
+  public void testTornWrite() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    userDao.put(DUserMapper.newBuilder().id(2L).displayName("torn").build());
+    final FileSupplier.Location torn = ((FileSupplier) supplier).locate(InMemoryKey.of(null, KIND, "2"));
+    ((FileSupplier) supplier).close();
+
+    // corrupt the last byte of the second record
+    final RandomAccessFile raf = new RandomAccessFile(torn.segment.file, "rw");
+    try {
+      raf.seek(torn.offset + torn.length - 1);
+      final int b = raf.read();
+      raf.seek(torn.offset + torn.length - 1);
+      raf.write(b ^ 0xff);
+    }
+    finally {
+      raf.close();
+    }
+
+    open(SMALL_SEGMENT);
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertNull(userDao.get(2L));
+
+    userDao.put(DUserMapper.newBuilder().id(3L).displayName("third").build());
+    reopen();
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertNull(userDao.get(2L));
+    assertEquals("third", userDao.get(3L).getDisplayName());
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    final FileSupplier fileSupplier = (FileSupplier) supplier;
+    for (int round = 0; round < 50; round++) {
+      for (long id = 1; id <= 20; id++) {
+        userDao.put(DUserMapper.newBuilder().id(id).displayName("round_" + round)
+          .email("user_" + id + "@example.com").build());
+      }
+    }
+    userDao.delete(1L);
+
+    // the rounds fill several segments, but what is live fits in one
+    fileSupplier.compact();
+    assertTrue(Integer.toString(fileSupplier.getSegmentCount()), fileSupplier.getSegmentCount() <= 2);
+    assertEquals(19, userDao.count());
+    assertNull(userDao.get(1L));
+    assertEquals("round_49", userDao.get(20L).getDisplayName());
+
+    reopen();
+    assertEquals(19, userDao.count());
+    assertNull(userDao.get(1L));
+    assertEquals("round_49", userDao.get(20L).getDisplayName());
+  }
+
+  @Test
+  public void testLargeRecord() throws IOException {
+    final StringBuilder name = new StringBuilder();
+    while (name.length() < SMALL_SEGMENT) {
+      name.append("large ");
+    }
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName(name.toString()).build());
+    reopen();
+    assertEquals(name.toString(), userDao.get(1L).getDisplayName());
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    final FileSupplier fileSupplier = (FileSupplier) supplier;
+    final int writes = 200;
+    final long syncs = fileSupplier.getSyncCount();
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < THREADS; t++) {
+        final long first = t * writes + 1;
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            for (long id = first; id < first + writes; id++) {
+              userDao.put(DUserMapper.newBuilder().id(id).displayName("user_" + id).build());
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(THREADS * writes, userDao.count());
+    final long forced = fileSupplier.getSyncCount() - syncs;
+    LOGGER.info("{} writes by {} threads forced {} times", new Object[] {THREADS * writes, THREADS, forced});
+    assertTrue(Long.toString(forced), forced < THREADS * writes);
+
+    reopen();
+    assertEquals(THREADS * writes, userDao.count());
+  }
+
+  @Test
+  public void testTransaction() throws IOException {
+    final Object tx = supplier.beginTransaction();
+    final InMemoryKey key = InMemoryKey.of(null, KIND, "1");
+    final DUser user = DUserMapper.newBuilder().id(1L).displayName("buffered").build();
+    supplier.writeValue(tx, key, new DUserMapper(supplier).toWriteValue(user));
+    assertNotNull(supplier.readValue(tx, key));
+    assertNull(userDao.get(1L));
+    supplier.commitTransaction(tx);
+    assertEquals("buffered", userDao.get(1L).getDisplayName());
+
+    final Object rolledBack = supplier.beginTransaction();
+    supplier.deleteValue(rolledBack, key);
+    supplier.rollbackActiveTransaction(rolledBack);
+    supplier.commitTransaction(rolledBack);
+    assertNotNull(userDao.get(1L));
+  }
+}
@@ -0,0 +1,63 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-gae
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Thrown by batch puts and deletes when some of the chunks failed.
+ * The other chunks were applied.
+ */
+public class BatchMutationException extends IOException {
+
+  private final int total;
+  private final List<Key> failedKeys;
+  private final List<Throwable> causes;
+
+  public BatchMutationException(int total, List<Key> failedKeys, List<Throwable> causes) {
+    super(String.format("%d of %d mutations failed in %d chunks", failedKeys.size(), total, causes.size()),
+      causes.isEmpty() ? null : causes.get(0));
+    this.total = total;
+    this.failedKeys = Collections.unmodifiableList(failedKeys);
+    this.causes = Collections.unmodifiableList(causes);
+  }
+
+  /** @return the number of entities or keys in the batch */
+  public int getTotal() {
+    return total;
+  }
+
+  /** @return the keys of the entities or keys in the failed chunks, possibly incomplete for puts */
+  public List<Key> getFailedKeys() {
+    return failedKeys;
+  }
+
+  /** @return the failure of each failed chunk */
+  public List<Throwable> getCauses() {
+    return causes;
+  }
+}
@@ -26,10 +26,20 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.datastore.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,9 +56,30 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
 
   static final Logger LOGGER = LoggerFactory.getLogger(DatastoreSupplier.class);
 
+  /** max number of entities per batch put or delete RPC */
+  public static final int MAX_BATCH_SIZE = 500;
+
+  /** default max number of chunk RPCs in flight per batch put or delete */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+  private final int maxInFlight;
   private DatastoreService syncService;
   private AsyncDatastoreService asyncService;
 
+  public DatastoreSupplier() {
+    this(DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * @param maxInFlight max number of chunk RPCs in flight per batch put or delete
+   */
+  public DatastoreSupplier(int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    }
+    this.maxInFlight = maxInFlight;
+  }
+
   @Override
   public void rollbackActiveTransaction(Transaction tx) {
     if (tx.isActive()) {
@@ -61,6 +92,11 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
     tx.commit();
   }
 
+  @Override
+  public void createIndex(String kind, String column, boolean sorted) {
+    // single-property indexes are built-in, composite ones are declared in datastore-indexes.xml
+  }
+
   @Override
   public Transaction beginTransaction() {
     TransactionOptions options = TransactionOptions.Builder.withXG(true);
@@ -73,6 +109,32 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
     return pq.countEntities(FetchOptions.Builder.withDefaults());
   }
 
+  /**
+   * Counts in a thread of the current request, with a single countEntities call up to the limit, if any.
+   * Counts synchronously if request threads are not available, then the returned Future is already done.
+   */
+  @Override
+  public Future<Integer> countFuture(Transaction tx, String kind, Key ancestorKey, Key simpleKey, int limit, Filter... filters) {
+    final Query q = createQuery(kind, true, ancestorKey, simpleKey, null, false, null, false, null, filters);
+    final PreparedQuery pq = getSyncService().prepare(tx, q);
+    final FetchOptions fetchOptions = 0 < limit ?
+      FetchOptions.Builder.withLimit(limit) : FetchOptions.Builder.withDefaults();
+    final FutureTask<Integer> count = new FutureTask<Integer>(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return pq.countEntities(fetchOptions);
+      }
+    });
+    try {
+      ThreadManager.createThreadForCurrentRequest(count).start();
+    }
+    catch (RuntimeException e) {
+      LOGGER.debug("Counting synchronously, as request threads are not available: {}", e.getMessage());
+      count.run();
+    }
+    return count;
+  }
+
   @Override
   public void deleteValue(Transaction tx, Key key) throws IOException {
     getSyncService().delete(key);
@@ -80,7 +142,7 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
 
   @Override
   public void deleteValues(Transaction tx, Collection<Key> keys) throws IOException {
-    getSyncService().delete(keys);
+    deleteMutation(tx, keys).execute();
   }
 
   @Override
@@ -113,22 +175,11 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
     final QueryResultList<Entity> iterable = asQueryResultList(pq, requestedPageSize, cursorString);
 
     final CursorPage<Entity> cursorPage = new CursorPage<Entity>();
-
-    // if first page and populate totalSize, fetch this with async query:
-    if (null == cursorString) {
-      int count = count(tx, kind, ancestorKey, null, filters);
-      cursorPage.setTotalSize(count);
-    }
-
     cursorPage.setItems(iterable);
 
     // only if next is available
     if (iterable.size() == requestedPageSize) {
-
-      // only if page size != total size
-      if (null == cursorPage.getTotalSize() || iterable.size() < cursorPage.getTotalSize()) {
-        cursorPage.setCursorKey(iterable.getCursor().toWebSafeString());
-      }
+      cursorPage.setCursorKey(iterable.getCursor().toWebSafeString());
     }
 
     return cursorPage;
@@ -157,16 +208,88 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
     }
   }
 
+  @Override
+  public Map<Key, Entity> readValues(Transaction tx, Collection<Key> keys) throws IOException {
+    return getSyncService().get(tx, keys);
+  }
+
   @Override
   public Future<Key> writeFuture(Transaction transaction, Key key, Entity entity) throws IOException {
     return getAsyncService().put(transaction, entity);
   }
 
+  @Override
+  public Future<List<Key>> writeFutures(Transaction tx, Collection<Entity> values) throws IOException {
+    return putMutation(tx, values).pipeline();
+  }
+
+  @Override
+  public Future<Void> deleteFuture(Transaction tx, Key key) throws IOException {
+    return getAsyncService().delete(tx, key);
+  }
+
+  @Override
+  public Future<Void> deleteFutures(Transaction tx, Collection<Key> keys) throws IOException {
+    return deleteMutation(tx, keys).pipeline();
+  }
+
   @Override
   public Key writeValue(Transaction tx, Key key, Entity value) throws IOException {
     return getSyncService().put(tx, value);
   }
 
+  @Override
+  public List<Key> writeValues(Transaction tx, Collection<Entity> values) throws IOException {
+    return putMutation(tx, values).execute();
+  }
+
+  private BatchMutation<Entity, List<Key>, List<Key>> putMutation(Transaction tx, Collection<Entity> values) {
+    return new BatchMutation<Entity, List<Key>, List<Key>>(tx, values) {
+      @Override
+      Future<List<Key>> send(Transaction tx, List<Entity> chunk) {
+        return getAsyncService().put(tx, chunk);
+      }
+
+      @Override
+      Key keyOf(Entity value) {
+        return value.getKey();
+      }
+
+      @Override
+      List<Key> combine(List<List<Key>> results) {
+        final List<Key> keys = new ArrayList<Key>(getTotal());
+        for (List<Key> chunkKeys : results) {
+          keys.addAll(chunkKeys);
+        }
+        return keys;
+      }
+    };
+  }
+
+  private BatchMutation<Key, Void, Void> deleteMutation(Transaction tx, Collection<Key> keys) {
+    return new BatchMutation<Key, Void, Void>(tx, keys) {
+      @Override
+      Future<Void> send(Transaction tx, List<Key> chunk) {
+        return getAsyncService().delete(tx, chunk);
+      }
+
+      @Override
+      Key keyOf(Key key) {
+        return key;
+      }
+
+      @Override
+      Void combine(List<Void> results) {
+        return null;
+      }
+    };
+  }
+
+  @Override
+  public long allocateIds(String kind, int size) {
+    return getSyncService().allocateIds(kind, size).getStart().getId();
+  }
+
   @Override
   public Key toKey(Key parentKey, String kind, Long lId) {
     return null != lId ? KeyFactory.createKey(parentKey, kind, lId) : null;
@@ -192,24 +315,33 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
     return null != key ? key.getParent() : null;
   }
 
+  @Override
+  public String toKind(Key key) {
+    return null != key ? key.getKind() : null;
+  }
+
   @Override
   public Collection getCollection(Entity value, String column) {
-    return (Collection) value.getProperty(column);
+    final Object property = value.getProperty(column);
+    // a projection returns one value of a multi-valued property per result
+    return property instanceof RawValue ? Collections.singletonList(toValue((RawValue) property)) : (Collection) property;
   }
 
   @Override
   public Date getDate(Entity value, String column) {
-    return (Date) value.getProperty(column);
+    return (Date) getProperty(value, column, Date.class);
   }
 
   @Override
   public Long getLong(Entity value, String column) {
-    return (Long) value.getProperty(column);
+    return (Long) getProperty(value, column, Long.class);
   }
 
   @Override
   public Key getKey(Entity value, String column) {
-    return value.getKey();
+    // the primary key is not a property, other key columns are
+    final Object property = null != column ? getProperty(value, column, Key.class) : null;
+    return property instanceof Key ? (Key) property : value.getKey();
   }
 
   @Override
@@ -219,29 +351,45 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
 
   @Override
   public String getString(Entity value, String column) {
-    return (String) value.getProperty(column);
+    return (String) getProperty(value, column, String.class);
   }
 
   @Override
   public Integer getInteger(Entity value, String column) {
-    Long longValue = (Long)value.getProperty(column);
+    Long longValue = (Long) getProperty(value, column, Long.class);
     return null != longValue ? longValue.intValue() : null;
   }
 
   @Override
   public Boolean getBoolean(Entity value, String column) {
-    return (Boolean) value.getProperty(column);
+    return (Boolean) getProperty(value, column, Boolean.class);
   }
 
   @Override
   public Float getFloat(Entity value, String column) {
-    return (Float) value.getProperty(column);
+    final Object f = getProperty(value, column, Double.class);
+    return f instanceof Number ? ((Number) f).floatValue() : null;
   }
 
   @Override
   public ByteBuffer getByteBuffer(Entity value, String column) {
-    Blob blob = (Blob) value.getProperty(column);
-    return ByteBuffer.wrap(blob.getBytes());
+    final Object property = getProperty(value, column, ShortBlob.class);
+    if (property instanceof ShortBlob) {
+      return ByteBuffer.wrap(((ShortBlob) property).getBytes());
+    }
+    return null != property ? ByteBuffer.wrap(((Blob) property).getBytes()) : null;
+  }
+
+  /** Projection queries return RawValues, convert those to the requested type */
+  private static Object getProperty(Entity value, String column, Class type) {
+    final Object property = value.getProperty(column);
+    return property instanceof RawValue ? ((RawValue) property).asType(type) : property;
+  }
+
+  /** Converts a RawValue of unknown type, where strings are returned as bytes */
+  private static Object toValue(RawValue rawValue) {
+    final Object value = rawValue.getValue();
+    return value instanceof byte[] ? rawValue.asType(String.class) : value;
   }
 
   @Override
@@ -322,6 +470,14 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
                                   String secondaryOrderBy, boolean secondaryAscending, Collection<String> projections, Filter... filters) {
 //    LOG.debug("prepare {} with filters {}", getTableName(), filters);
 
+    final Query q = createQuery(kind, keysOnly, ancestorKey, simpleKey, orderBy, ascending,
+      secondaryOrderBy, secondaryAscending, projections, filters);
+    return getSyncService().prepare(/* TRANSACTION.get(),*/ q);
+  }
+
+  protected static Query createQuery(String kind, boolean keysOnly, Key ancestorKey, Key simpleKey,
+                                  String orderBy, boolean ascending,
+                                  String secondaryOrderBy, boolean secondaryAscending, Collection<String> projections, Filter... filters) {
     Query q = new Query(kind, ancestorKey);
 
     // keys only?
@@ -360,14 +516,14 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
       }
     }
 
-    // Add projections
-//    if (null != projections) {
-//      for (String projection : projections) {
-//        q.addProjection(new PropertyProjection(projection, getColumnClass(projection)));
-//      }
-//    }
+    // Add projections, the values are converted from RawValue by the getters
+    if (null != projections && !keysOnly) {
+      for (String projection : projections) {
+        q.addProjection(new PropertyProjection(projection, null));
+      }
+    }
 
-    return getSyncService().prepare(/* TRANSACTION.get(),*/ q);
+    return q;
   }
 
   protected static QueryResultIterable<Entity> asQueryResultIterable(PreparedQuery pq, int offset, int limit) {
@@ -405,9 +561,264 @@ public class DatastoreSupplier implements Supplier<Key, Entity, Entity, Transact
       case GREATER_THAN_OR_EQUALS:
         return new Query.FilterPredicate(mardaoFilter.getColumn(), Query.FilterOperator.GREATER_THAN_OR_EQUAL, mardaoFilter.getOperand());
       case LESS_THAN:
-        return new Query.FilterPredicate(mardaoFilter.getColumn(), Query.FilterOperator.GREATER_THAN, mardaoFilter.getOperand());
+        return new Query.FilterPredicate(mardaoFilter.getColumn(), Query.FilterOperator.LESS_THAN, mardaoFilter.getOperand());
       default:
         throw new UnsupportedOperationException("No such Filter Operator " + mardaoFilter.getOperator());
     }
   }
+
+  /**
+   * Splits a batch put or delete into chunks of MAX_BATCH_SIZE, and sends them asynchronously with at most
+   * maxInFlight chunks in flight. The following chunks are sent as earlier ones complete, by the calling thread
+   * when executed, or by a request thread when pipelined, whether or not the Future is ever awaited.
+   * Failed chunks, and chunks that could not be sent, are collected into one BatchMutationException.
+   */
+  private abstract class BatchMutation<T, R, V> implements Future<V>, Runnable {
+    private final Transaction tx;
+    private final int total;
+    private final List<List<T>> chunks;
+    private final List<Future<R>> futures;
+    private final List<R> results;
+    private final List<Key> failedKeys = new ArrayList<Key>();
+    private final List<Throwable> causes = new ArrayList<Throwable>();
+    /** counted down when every chunk was sent, or given up */
+    private final CountDownLatch sent = new CountDownLatch(1);
+    private int awaited;
+    private boolean cancelled;
+    private V value;
+
+    BatchMutation(Transaction tx, Collection<T> items) {
+      this.tx = tx;
+      this.total = items.size();
+      final List<T> list = items instanceof List ? (List<T>) items : new ArrayList<T>(items);
+      final int count = (list.size() + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE;
+      this.chunks = new ArrayList<List<T>>(count);
+      for (int from = 0; from < list.size(); from += MAX_BATCH_SIZE) {
+        chunks.add(new ArrayList<T>(list.subList(from, Math.min(list.size(), from + MAX_BATCH_SIZE))));
+      }
+      this.futures = new ArrayList<Future<R>>(count);
+      this.results = new ArrayList<R>(count);
+    }
+
+    abstract Future<R> send(Transaction tx, List<T> chunk);
+
+    abstract Key keyOf(T item);
+
+    /** @return the result of the batch, from the result of each chunk in order */
+    abstract V combine(List<R> results);
+
+    int getTotal() {
+      return total;
+    }
+
+    /**
+     * Sends the first chunks, and the following ones from a request thread, or synchronously without one.
+     * The SDK tracks transactional futures per thread, so the chunks of a transaction are sent synchronously.
+     */
+    BatchMutation<T, R, V> pipeline() {
+      if (start()) {
+        if (null != tx) {
+          run();
+          return this;
+        }
+        try {
+          ThreadManager.createThreadForCurrentRequest(this).start();
+        }
+        catch (RuntimeException e) {
+          LOGGER.debug("Sending batch synchronously, as request threads are not available: {}", e.getMessage());
+          run();
+        }
+      }
+      return this;
+    }
+
+    /** sends, and awaits all chunks */
+    V execute() throws IOException {
+      if (start()) {
+        run();
+      }
+      try {
+        return await(0L);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted awaiting batch mutation", e);
+      }
+      catch (TimeoutException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /** @return true if chunks remain to be sent */
+    private synchronized boolean start() {
+      while (futures.size() < Math.min(chunks.size(), maxInFlight)) {
+        sendNext();
+      }
+      if (futures.size() < chunks.size()) {
+        return true;
+      }
+      sent.countDown();
+      return false;
+    }
+
+    /** sends the next chunk each time an earlier one completes */
+    @Override
+    public void run() {
+      try {
+        for (int i = 0; ; i++) {
+          final Future<R> future;
+          synchronized (this) {
+            if (futures.size() == chunks.size()) {
+              return;
+            }
+            future = futures.get(i);
+          }
+          if (null != future) {
+            try {
+              future.get();
+            }
+            catch (ExecutionException failed) {
+              // collected when awaited
+            }
+            catch (RuntimeException failed) {
+              // collected when awaited, or cancelled and the following chunks are not sent
+            }
+          }
+          synchronized (this) {
+            sendNext();
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        synchronized (this) {
+          while (futures.size() < chunks.size()) {
+            fail(chunks.get(futures.size()), e);
+            futures.add(null);
+          }
+        }
+      }
+      finally {
+        sent.countDown();
+      }
+    }
+
+    /** @param deadline in nanoseconds, or 0 to wait without timeout */
+    private V await(long deadline) throws InterruptedException, TimeoutException, BatchMutationException {
+      if (0L == deadline) {
+        sent.await();
+      }
+      else if (!sent.await(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+        throw new TimeoutException();
+      }
+      synchronized (this) {
+        if (cancelled) {
+          throw new CancellationException();
+        }
+        while (awaited < chunks.size()) {
+          final Future<R> future = futures.get(awaited);
+          if (null != future) {
+            try {
+              results.add(0L == deadline ? future.get() :
+                future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+            catch (ExecutionException e) {
+              fail(chunks.get(awaited), e.getCause());
+            }
+            catch (CancellationException e) {
+              throw e;
+            }
+            catch (RuntimeException e) {
+              fail(chunks.get(awaited), e);
+            }
+          }
+          awaited++;
+        }
+        if (!causes.isEmpty()) {
+          throw new BatchMutationException(total, failedKeys, causes);
+        }
+        if (null == value) {
+          value = combine(results);
+        }
+        return value;
+      }
+    }
+
+    private void sendNext() {
+      final List<T> chunk = chunks.get(futures.size());
+      Future<R> future;
+      try {
+        future = cancelled ? null : send(tx, chunk);
+      }
+      catch (RuntimeException e) {
+        fail(chunk, e);
+        future = null;
+      }
+      futures.add(future);
+    }
+
+    private void fail(List<T> chunk, Throwable cause) {
+      LOGGER.warn("Batch mutation of {} failed: {}", chunk.size(), cause.getMessage());
+      for (T item : chunk) {
+        failedKeys.add(keyOf(item));
+      }
+      causes.add(cause);
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (isDone()) {
+        return false;
+      }
+      cancelled = true;
+      for (Future<R> future : futures) {
+        if (null != future) {
+          future.cancel(mayInterruptIfRunning);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    /** @return true if all chunks were sent and are done */
+    @Override
+    public synchronized boolean isDone() {
+      if (0L < sent.getCount()) {
+        return false;
+      }
+      for (Future<R> future : futures) {
+        if (null != future && !future.isDone()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      try {
+        return await(0L);
+      }
+      catch (BatchMutationException e) {
+        throw new ExecutionException(e);
+      }
+      catch (TimeoutException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        return await(System.nanoTime() + unit.toNanos(timeout));
+      }
+      catch (BatchMutationException e) {
+        throw new ExecutionException(e);
+      }
+    }
+  }
 }
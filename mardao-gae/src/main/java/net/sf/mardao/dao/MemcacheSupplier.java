@@ -0,0 +1,411 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-gae
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import net.sf.mardao.core.ImmediateFuture;
+
+/**
+ * Memcache-backed read-through entity cache for the DatastoreSupplier, using the same protocol as NDB.
+ *
+ * A non-transactional read that misses adds a lease to memcache, reads the Datastore and then replaces
+ * the lease with the entity only if the lease is untouched. Batch reads use one memcache call per step.
+ * Writes and deletes first set a lock with a random token, which makes concurrent readers bypass the cache
+ * and fail their compare-and-set. After the write, the lock is removed if it is still this writer's, as is any
+ * cached entity or lease. A lock set by another writer is left to that writer, which is still writing.
+ * Writers never populate the cache, as a writer cannot tell whether its write was the last one; the next read does.
+ * Transactional writes are released at commit or rollback, and asynchronous writes when their futures resolve.
+ * Locks and leases expire after {@link #LOCK_SECONDS}, in case a writer never releases them.
+ */
+public class MemcacheSupplier extends DelegatingSupplier<Key, Entity, Entity, Transaction> {
+
+  public static final String DEFAULT_NAMESPACE = "mardao";
+
+  /** expiration of locks and leases */
+  public static final int LOCK_SECONDS = 32;
+
+  /** leases are Longs, write locks are Integer tokens */
+  private static final Long LEASE = 0L;
+
+  private static final Random RANDOM = new Random();
+
+  private final MemcacheService memcache;
+  private final Expiration expiration;
+  private final Set<String> kinds;
+  /** write locks per transaction, released at commit or rollback */
+  private final Map<Transaction, Map<Key, Integer>> transactionLocks =
+    Collections.synchronizedMap(new IdentityHashMap<Transaction, Map<Key, Integer>>());
+
+  public MemcacheSupplier(Supplier<Key, Entity, Entity, Transaction> delegate) {
+    this(delegate, MemcacheServiceFactory.getMemcacheService(DEFAULT_NAMESPACE), 0);
+  }
+
+  /**
+   * @param expirationSeconds time-to-live for cached entities, or 0 to keep until evicted or written
+   * @param kinds the kinds to cache, or none to cache all kinds
+   */
+  public MemcacheSupplier(Supplier<Key, Entity, Entity, Transaction> delegate, MemcacheService memcache,
+                          int expirationSeconds, String... kinds) {
+    super(delegate);
+    this.memcache = memcache;
+    this.expiration = 0 < expirationSeconds ? Expiration.byDeltaSeconds(expirationSeconds) : null;
+    this.kinds = new HashSet<String>();
+    Collections.addAll(this.kinds, kinds);
+  }
+
+  public MemcacheService getMemcache() {
+    return memcache;
+  }
+
+  private boolean isCached(Key key) {
+    return null != key && key.isComplete() && (kinds.isEmpty() || kinds.contains(key.getKind()));
+  }
+
+  // --- read methods ---
+
+  @Override
+  public Entity readValue(Transaction tx, Key key) throws IOException {
+    if (null != tx || !isCached(key)) {
+      return delegate.readValue(tx, key);
+    }
+    return readValues(tx, Collections.singletonList(key)).get(key);
+  }
+
+  @Override
+  public Map<Key, Entity> readValues(Transaction tx, Collection<Key> keys) throws IOException {
+    if (null != tx) {
+      return delegate.readValues(tx, keys);
+    }
+    final List<Key> cacheable = new ArrayList<Key>(keys.size());
+    for (Key key : keys) {
+      if (isCached(key)) {
+        cacheable.add(key);
+      }
+    }
+    final Map<Key, MemcacheService.IdentifiableValue> cached =
+      new HashMap<Key, MemcacheService.IdentifiableValue>(memcache.getIdentifiables(cacheable));
+    final Map<Key, Entity> found = new HashMap<Key, Entity>();
+    final Map<Key, Long> leases = new HashMap<Key, Long>();
+    for (Key key : cacheable) {
+      final MemcacheService.IdentifiableValue cachedValue = cached.get(key);
+      if (null == cachedValue) {
+        leases.put(key, LEASE);
+      }
+      else if (cachedValue.getValue() instanceof Entity) {
+        found.put(key, (Entity) cachedValue.getValue());
+      }
+    }
+
+    // lease the missing keys, then read them with the leases identified
+    if (!leases.isEmpty()) {
+      memcache.putAll(leases, Expiration.byDeltaSeconds(LOCK_SECONDS),
+        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      cached.putAll(memcache.getIdentifiables(leases.keySet()));
+    }
+
+    final List<Key> missing = new ArrayList<Key>();
+    for (Key key : keys) {
+      if (!found.containsKey(key)) {
+        missing.add(key);
+      }
+    }
+    if (!missing.isEmpty()) {
+      final Map<Key, Entity> read = delegate.readValues(tx, missing);
+      final Map<Key, MemcacheService.CasValues> populate = new HashMap<Key, MemcacheService.CasValues>();
+      for (Map.Entry<Key, Entity> entry : read.entrySet()) {
+        final MemcacheService.IdentifiableValue lease = cached.get(entry.getKey());
+        if (null != lease && lease.getValue() instanceof Long) {
+          populate.put(entry.getKey(), new MemcacheService.CasValues(lease, entry.getValue(), expiration));
+        }
+        found.put(entry.getKey(), entry.getValue());
+      }
+      if (!populate.isEmpty()) {
+        memcache.putIfUntouched(populate);
+      }
+    }
+
+    // in the order of the requested keys
+    final Map<Key, Entity> values = new LinkedHashMap<Key, Entity>();
+    for (Key key : keys) {
+      final Entity value = found.get(key);
+      if (null != value) {
+        values.put(key, value);
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public Future<Entity> readFuture(Transaction tx, Key key) throws IOException {
+    if (null != tx || !isCached(key)) {
+      return delegate.readFuture(tx, key);
+    }
+    final Object cached = memcache.get(key);
+    if (cached instanceof Entity) {
+      return new ImmediateFuture<Entity>((Entity) cached);
+    }
+    return delegate.readFuture(tx, key);
+  }
+
+  // --- write methods ---
+
+  @Override
+  public Key writeValue(Transaction tx, Key key, Entity value) throws IOException {
+    final Map<Key, Integer> locks = lock(tx, Collections.singletonList(value.getKey()));
+    try {
+      return delegate.writeValue(tx, key, value);
+    }
+    finally {
+      if (null == tx) {
+        release(locks);
+      }
+    }
+  }
+
+  @Override
+  public List<Key> writeValues(Transaction tx, Collection<Entity> values) throws IOException {
+    final List<Key> keys = new ArrayList<Key>(values.size());
+    for (Entity value : values) {
+      keys.add(value.getKey());
+    }
+    final Map<Key, Integer> locks = lock(tx, keys);
+    try {
+      return delegate.writeValues(tx, values);
+    }
+    finally {
+      if (null == tx) {
+        release(locks);
+      }
+    }
+  }
+
+  @Override
+  public Future<Key> writeFuture(Transaction tx, Key key, Entity value) throws IOException {
+    final Map<Key, Integer> locks = lock(tx, Collections.singletonList(value.getKey()));
+    return new ReleasingFuture<Key>(delegate.writeFuture(tx, key, value), null == tx ? locks : null);
+  }
+
+  @Override
+  public Future<List<Key>> writeFutures(Transaction tx, Collection<Entity> values) throws IOException {
+    final List<Key> keys = new ArrayList<Key>(values.size());
+    for (Entity value : values) {
+      keys.add(value.getKey());
+    }
+    final Map<Key, Integer> locks = lock(tx, keys);
+    return new ReleasingFuture<List<Key>>(delegate.writeFutures(tx, values), null == tx ? locks : null);
+  }
+
+  @Override
+  public void deleteValue(Transaction tx, Key key) throws IOException {
+    final Map<Key, Integer> locks = lock(tx, Collections.singletonList(key));
+    try {
+      delegate.deleteValue(tx, key);
+    }
+    finally {
+      if (null == tx) {
+        release(locks);
+      }
+    }
+  }
+
+  @Override
+  public void deleteValues(Transaction tx, Collection<Key> keys) throws IOException {
+    final Map<Key, Integer> locks = lock(tx, keys);
+    try {
+      delegate.deleteValues(tx, keys);
+    }
+    finally {
+      if (null == tx) {
+        release(locks);
+      }
+    }
+  }
+
+  @Override
+  public Future<Void> deleteFuture(Transaction tx, Key key) throws IOException {
+    final Map<Key, Integer> locks = lock(tx, Collections.singletonList(key));
+    return new ReleasingFuture<Void>(delegate.deleteFuture(tx, key), null == tx ? locks : null);
+  }
+
+  @Override
+  public Future<Void> deleteFutures(Transaction tx, Collection<Key> keys) throws IOException {
+    final Map<Key, Integer> locks = lock(tx, keys);
+    return new ReleasingFuture<Void>(delegate.deleteFutures(tx, keys), null == tx ? locks : null);
+  }
+
+  // --- transaction methods ---
+
+  @Override
+  public void commitTransaction(Transaction transaction) {
+    try {
+      delegate.commitTransaction(transaction);
+    }
+    finally {
+      releaseTransaction(transaction);
+    }
+  }
+
+  @Override
+  public void rollbackActiveTransaction(Transaction transaction) {
+    try {
+      delegate.rollbackActiveTransaction(transaction);
+    }
+    finally {
+      releaseTransaction(transaction);
+    }
+  }
+
+  // --- lock protocol ---
+
+  /**
+   * Sets a write lock on the cached keys, making concurrent readers bypass the cache.
+   * @return the lock token per locked key
+   */
+  private Map<Key, Integer> lock(Transaction tx, Collection<Key> keys) {
+    final Integer token = RANDOM.nextInt();
+    final Map<Key, Integer> locks = new HashMap<Key, Integer>();
+    for (Key key : keys) {
+      if (isCached(key)) {
+        locks.put(key, token);
+      }
+    }
+    if (!locks.isEmpty()) {
+      memcache.putAll(locks, Expiration.byDeltaSeconds(LOCK_SECONDS));
+      if (null != tx) {
+        synchronized (transactionLocks) {
+          Map<Key, Integer> held = transactionLocks.get(tx);
+          if (null == held) {
+            held = new HashMap<Key, Integer>();
+            transactionLocks.put(tx, held);
+          }
+          held.putAll(locks);
+        }
+      }
+    }
+    return locks;
+  }
+
+  /**
+   * Removes this writer's locks, and any cached entities or leases of the keys.
+   * Entries locked by another writer are left to that writer.
+   */
+  private void release(Map<Key, Integer> locks) {
+    if (locks.isEmpty()) {
+      return;
+    }
+    final Map<Key, Object> cached = memcache.getAll(locks.keySet());
+    final List<Key> remove = new ArrayList<Key>();
+    for (Map.Entry<Key, Object> entry : cached.entrySet()) {
+      final Object value = entry.getValue();
+      if (locks.get(entry.getKey()).equals(value) || !(value instanceof Integer)) {
+        remove.add(entry.getKey());
+      }
+    }
+    if (!remove.isEmpty()) {
+      memcache.deleteAll(remove);
+    }
+  }
+
+  private void releaseTransaction(Transaction tx) {
+    final Map<Key, Integer> locks = transactionLocks.remove(tx);
+    if (null != locks) {
+      release(locks);
+    }
+  }
+
+  /** Releases the locks when resolved */
+  private class ReleasingFuture<V> implements Future<V> {
+    private final Future<V> future;
+    private Map<Key, Integer> locks;
+
+    ReleasingFuture(Future<V> future, Map<Key, Integer> locks) {
+      this.future = future;
+      this.locks = locks;
+    }
+
+    @Override
+    public boolean cancel(boolean b) {
+      return future.cancel(b);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return future.isDone();
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      try {
+        return future.get();
+      }
+      finally {
+        releaseOnce();
+      }
+    }
+
+    @Override
+    public V get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        return future.get(l, timeUnit);
+      }
+      finally {
+        releaseOnce();
+      }
+    }
+
+    private synchronized void releaseOnce() {
+      if (null != locks && future.isDone()) {
+        release(locks);
+        locks = null;
+      }
+    }
+  }
+}
@@ -24,17 +24,34 @@ package net.sf.mardao.dao;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 
+import net.sf.mardao.core.CursorPage;
+import net.sf.mardao.core.filter.Filter;
 import net.sf.mardao.domain.DUser;
 
 /**
@@ -45,7 +62,8 @@ import net.sf.mardao.domain.DUser;
 public class DatastoreSupplierTest extends AbstractDaoTest {
 
   final LocalServiceTestHelper helper = new LocalServiceTestHelper(
-    new LocalDatastoreServiceTestConfig().setDefaultHighRepJobPolicyUnappliedJobPercentage(1));
+    new LocalDatastoreServiceTestConfig().setDefaultHighRepJobPolicyUnappliedJobPercentage(1),
+    new LocalMemcacheServiceTestConfig());
 
   @Before
   @Override
@@ -88,6 +106,228 @@ public class DatastoreSupplierTest extends AbstractDaoTest {
     assertFalse(users.iterator().hasNext());
   }
 
+  @Override
+  @Test
+  public void testQueryIds() throws IOException {
+    createQueryFixtures();
+    int count = 0;
+    for (Long id : userDao.queryIds(null)) {
+      assertTrue(id.toString(), (0 < id && id < 60) || (1000 < id && id < 1060));
+      count++;
+    }
+    assertTrue(Integer.toString(count), 114 <= count);
+  }
+
+  @Override
+  @Test
+  public void testStream() throws IOException {
+    createQueryFixtures();
+    Filter filter = Filter.equalsFilter(DUserMapper.Field.DISPLAYNAME.getFieldName(), "mod7_3");
+    QueryStream<DUser> stream = userDao.stream(4, null, null, false, null, false, filter);
+    assertEquals(-1, stream.getEstimatedSize());
+    assertTrue(Integer.toString(stream.count()), 8 <= stream.count());
+    int count = 0;
+    for (DUser u : stream) {
+      assertEquals("mod7_3", u.getDisplayName());
+      count++;
+    }
+    assertTrue(Integer.toString(count), 8 <= count);
+  }
+
+  @Override
+  @Test
+  public void testStreamParallel() throws IOException {
+    createQueryFixtures();
+    final AtomicInteger count = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      userDao.stream(10).forEach(executor, new EntityVisitor<DUser>() {
+        @Override
+        public void visit(DUser entity) throws IOException {
+          count.incrementAndGet();
+        }
+      });
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertTrue(count.toString(), 114 <= count.get());
+  }
+
+  @Test
+  public void testQueryPageProjectionKey() throws Exception {
+    final DatastoreSupplier datastoreSupplier = new DatastoreSupplier();
+    final Key factoryKey = KeyFactory.createKey("DFactory", "factory");
+    final Key parentKey = KeyFactory.createKey("DFactory", "parent");
+    final List<Entity> values = new ArrayList<Entity>();
+    for (long i = 1; i <= 3; i++) {
+      final Entity value = datastoreSupplier.createWriteValue(parentKey, "DUser", i);
+      datastoreSupplier.setString(value, "displayName", "user_" + i);
+      value.setProperty("factoryKey", factoryKey);
+      datastoreSupplier.setCollection(value, "tags", Arrays.asList("tag_" + i));
+      values.add(value);
+    }
+    datastoreSupplier.writeValues(null, values);
+
+    final CursorPage<Entity> page = datastoreSupplier.queryPage(null, "DUser", false, 10, parentKey,
+      null, false, null, false, Arrays.asList("displayName", "factoryKey", "tags"), null);
+    assertEquals(3, page.getItems().size());
+    for (Entity value : page.getItems()) {
+      final long id = value.getKey().getId();
+      assertEquals(value.getKey(), datastoreSupplier.getKey(value, "id"));
+      assertEquals(parentKey, datastoreSupplier.getParentKey(value, null));
+      assertEquals(factoryKey, datastoreSupplier.getKey(value, "factoryKey"));
+      assertEquals("user_" + id, datastoreSupplier.getString(value, "displayName"));
+      assertEquals(Arrays.asList("tag_" + id), datastoreSupplier.getCollection(value, "tags"));
+    }
+  }
+
+  @Test
+  public void testCountFuture() throws Exception {
+    final DatastoreSupplier datastoreSupplier = new DatastoreSupplier();
+    final Key parentKey = KeyFactory.createKey("DFactory", "parent");
+    final List<Entity> values = new ArrayList<Entity>();
+    for (long i = 1; i <= 3; i++) {
+      values.add(datastoreSupplier.createWriteValue(parentKey, "DUser", i));
+    }
+    datastoreSupplier.writeValues(null, values);
+
+    // an ancestor count within a transaction
+    final Transaction tx = datastoreSupplier.beginTransaction();
+    try {
+      final Future<Integer> count = datastoreSupplier.countFuture(tx, "DUser", parentKey, null, 0);
+      final long deadline = System.currentTimeMillis() + 10000L;
+      while (!count.isDone() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1L);
+      }
+      assertTrue(count.isDone());
+      assertEquals(Integer.valueOf(3), count.get());
+      assertEquals(Integer.valueOf(2), datastoreSupplier.countFuture(tx, "DUser", parentKey, null, 2).get());
+    }
+    finally {
+      datastoreSupplier.rollbackActiveTransaction(tx);
+    }
+  }
+
+  @Test
+  public void testPutBatchChunked() throws IOException {
+    final List<DUser> users = new ArrayList<DUser>();
+    for (long i = 1; i <= 2 * DatastoreSupplier.MAX_BATCH_SIZE + 1; i++) {
+      users.add(DUserMapper.newBuilder().id(i).displayName("chunk").build());
+    }
+
+    List<Long> ids = userDao.put(users);
+    assertEquals(users.size(), ids.size());
+    assertEquals(Long.valueOf(2 * DatastoreSupplier.MAX_BATCH_SIZE + 1), ids.get(ids.size() - 1));
+    assertEquals("chunk", userDao.get(Long.valueOf(DatastoreSupplier.MAX_BATCH_SIZE + 1)).getDisplayName());
+  }
+
+  @Test
+  public void testDeleteBatchChunked() throws IOException {
+    final List<DUser> users = new ArrayList<DUser>();
+    for (long i = 1; i <= 2 * DatastoreSupplier.MAX_BATCH_SIZE + 1; i++) {
+      users.add(DUserMapper.newBuilder().id(i).displayName("chunk").build());
+    }
+    final List<Long> ids = userDao.put(users);
+
+    userDao.delete(ids);
+    assertNull(userDao.get(1L));
+    assertNull(userDao.get(Long.valueOf(DatastoreSupplier.MAX_BATCH_SIZE + 1)));
+    assertNull(userDao.get(Long.valueOf(2 * DatastoreSupplier.MAX_BATCH_SIZE + 1)));
+  }
+
+  @Test
+  public void testPutDeleteAsyncChunked() throws IOException, ExecutionException, InterruptedException {
+    final List<DUser> users = new ArrayList<DUser>();
+    for (long i = 1; i <= 2 * DatastoreSupplier.MAX_BATCH_SIZE + 1; i++) {
+      users.add(DUserMapper.newBuilder().id(i).displayName("chunk").build());
+    }
+    assertEquals(users.size(), userDao.putAsync(users).get().size());
+    assertEquals("chunk", userDao.get(Long.valueOf(2 * DatastoreSupplier.MAX_BATCH_SIZE + 1)).getDisplayName());
+
+    final List<Long> ids = new ArrayList<Long>();
+    for (DUser user : users) {
+      ids.add(user.getId());
+    }
+    userDao.deleteAsync(ids).get();
+    assertNull(userDao.get(1L));
+    assertNull(userDao.get(Long.valueOf(2 * DatastoreSupplier.MAX_BATCH_SIZE + 1)));
+  }
+
+  @Test
+  public void testPutDeleteAsyncNotAwaited() throws IOException, InterruptedException {
+    final DatastoreSupplier datastoreSupplier = new DatastoreSupplier(1);
+    final List<Entity> values = new ArrayList<Entity>();
+    final List<Key> keys = new ArrayList<Key>();
+    for (long i = 1; i <= 2 * DatastoreSupplier.MAX_BATCH_SIZE + 1; i++) {
+      final Entity value = datastoreSupplier.createWriteValue(null, "DUser", i);
+      values.add(value);
+      keys.add(value.getKey());
+    }
+
+    // fire and forget, the chunks after the first one are sent without get
+    awaitDone(datastoreSupplier.writeFutures(null, values));
+    assertEquals(values.size(), datastoreSupplier.readValues(null, keys).size());
+
+    awaitDone(datastoreSupplier.deleteFutures(null, keys));
+    assertEquals(0, datastoreSupplier.readValues(null, keys).size());
+  }
+
+  private static void awaitDone(Future<?> future) throws InterruptedException {
+    for (int i = 0; i < 500 && !future.isDone(); i++) {
+      Thread.sleep(10L);
+    }
+    assertTrue(future.isDone());
+  }
+
+  @Test
+  public void testBatchFailures() throws IOException {
+    final DatastoreSupplier datastoreSupplier = new DatastoreSupplier(2);
+    final List<Entity> values = new ArrayList<Entity>();
+    for (long i = 1; i <= 2 * DatastoreSupplier.MAX_BATCH_SIZE + 1; i++) {
+      values.add(datastoreSupplier.createWriteValue(null, "DUser", i));
+    }
+
+    // a transaction cannot span this many entity groups
+    final Transaction tx = datastoreSupplier.beginTransaction();
+    try {
+      datastoreSupplier.writeValues(tx, values);
+      fail("Expected BatchMutationException");
+    }
+    catch (BatchMutationException expected) {
+      assertEquals(values.size(), expected.getTotal());
+      assertEquals(values.size(), expected.getFailedKeys().size());
+      assertEquals(values.get(0).getKey(), expected.getFailedKeys().get(0));
+      assertEquals(3, expected.getCauses().size());
+    }
+    finally {
+      datastoreSupplier.rollbackActiveTransaction(tx);
+    }
+  }
+
+  @Test
+  public void testBatchFutureFailures() throws IOException, InterruptedException {
+    final DatastoreSupplier datastoreSupplier = new DatastoreSupplier(2);
+    final List<Entity> values = new ArrayList<Entity>();
+    for (long i = 1; i <= 2 * DatastoreSupplier.MAX_BATCH_SIZE + 1; i++) {
+      values.add(datastoreSupplier.createWriteValue(null, "DUser", i));
+    }
+
+    final Transaction tx = datastoreSupplier.beginTransaction();
+    try {
+      datastoreSupplier.writeFutures(tx, values).get();
+      fail("Expected BatchMutationException");
+    }
+    catch (ExecutionException expected) {
+      final BatchMutationException cause = (BatchMutationException) expected.getCause();
+      assertEquals(values.size(), cause.getFailedKeys().size());
+      assertEquals(3, cause.getCauses().size());
+    }
+    finally {
+      datastoreSupplier.rollbackActiveTransaction(tx);
+    }
+  }
+
   @After
   public void tearDown() {
     helper.tearDown();
@@ -0,0 +1,249 @@
+package net.sf.mardao.dao;
+
+/*
+ * #%L
+ * mardao-gae
+ * %%
+ * Copyright (C) 2010 - 2014 Wadpam
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.apphosting.api.ApiProxy;
+
+import net.sf.mardao.domain.DUser;
+
+/**
+ * Runs the DatastoreSupplier tests through a MemcacheSupplier, and tests the cache protocol.
+ */
+public class MemcacheSupplierTest extends DatastoreSupplierTest {
+
+  private MemcacheService memcache;
+  private int reads;
+  private Runnable afterRead;
+  /** run before and after the Datastore write of a user, by display name */
+  private final Map<String, Runnable> beforeWrite = new ConcurrentHashMap<String, Runnable>();
+  private final Map<String, Runnable> afterWrite = new ConcurrentHashMap<String, Runnable>();
+
+  @Before
+  @Override
+  public void setUp() {
+    helper.setUp();
+    reads = 0;
+    afterRead = null;
+    final DelegatingSupplier<Key, Entity, Entity, Transaction> counting =
+      new DelegatingSupplier<Key, Entity, Entity, Transaction>(new DatastoreSupplier()) {
+        @Override
+        public Map<Key, Entity> readValues(Transaction tx, Collection<Key> keys) throws IOException {
+          reads++;
+          final Map<Key, Entity> values = super.readValues(tx, keys);
+          if (null != afterRead) {
+            afterRead.run();
+          }
+          return values;
+        }
+
+        @Override
+        public Key writeValue(Transaction tx, Key key, Entity value) throws IOException {
+          final Runnable before = beforeWrite.get(String.valueOf(value.getProperty("displayName")));
+          if (null != before) {
+            before.run();
+          }
+          final Key written = super.writeValue(tx, key, value);
+          final Runnable after = afterWrite.get(String.valueOf(value.getProperty("displayName")));
+          if (null != after) {
+            after.run();
+          }
+          return written;
+        }
+      };
+    final MemcacheSupplier memcacheSupplier = new MemcacheSupplier(counting);
+    memcache = memcacheSupplier.getMemcache();
+    supplier = memcacheSupplier;
+    userDao = new DUserDao(supplier);
+    factoryDao = new DFactoryDao(supplier);
+  }
+
+  @Test
+  public void testReadThrough() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    assertNull(memcache.get(KeyFactory.createKey("DUser", 1L)));
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals(1, reads);
+    assertTrue(memcache.get(KeyFactory.createKey("DUser", 1L)) instanceof Entity);
+  }
+
+  @Test
+  public void testReadBatch() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    userDao.put(DUserMapper.newBuilder().id(2L).displayName("second").build());
+    userDao.get(1L);
+    assertEquals(2, userDao.get(Arrays.asList(2L, 1L, 3L)).size());
+    assertEquals(2, reads);
+    assertEquals(2, userDao.get(Arrays.asList(2L, 1L)).size());
+    assertEquals(2, reads);
+  }
+
+  @Test
+  public void testWriteLockBypassesCache() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    final Key key = KeyFactory.createKey("DUser", 1L);
+    memcache.put(key, 7);
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals(1, reads);
+    assertEquals(7, memcache.get(key));
+  }
+
+  @Test
+  public void testStaleReadNotCached() throws IOException {
+    final DUser user = DUserMapper.newBuilder().id(1L).displayName("first").build();
+    userDao.put(user);
+    memcache.clearAll();
+
+    // a write between the Datastore read and the cache population
+    afterRead = new Runnable() {
+      @Override
+      public void run() {
+        afterRead = null;
+        user.setDisplayName("second");
+        try {
+          userDao.put(user);
+        }
+        catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertNull(memcache.get(KeyFactory.createKey("DUser", 1L)));
+    assertEquals("second", userDao.get(1L).getDisplayName());
+    assertEquals("second", userDao.get(1L).getDisplayName());
+    assertEquals(2, reads);
+  }
+
+  @Test
+  public void testStaleWriteNotCached() throws Exception {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("zero").build());
+    final CountDownLatch firstLocked = new CountDownLatch(1);
+    final CountDownLatch secondWritten = new CountDownLatch(1);
+    final CountDownLatch firstReleased = new CountDownLatch(1);
+
+    // the first writer locks, the second overwrites the lock and writes, then the first writes last,
+    // and the first releases before the second
+    beforeWrite.put("first", new Runnable() {
+      @Override
+      public void run() {
+        firstLocked.countDown();
+        await(secondWritten);
+      }
+    });
+    afterWrite.put("second", new Runnable() {
+      @Override
+      public void run() {
+        secondWritten.countDown();
+        await(firstReleased);
+      }
+    });
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Future<Long> first = executor.submit(put("first"));
+      await(firstLocked);
+      final Future<Long> second = executor.submit(put("second"));
+      first.get();
+      firstReleased.countDown();
+      second.get();
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals("first", userDao.get(1L).getDisplayName());
+    assertEquals("first", ((Entity) memcache.get(KeyFactory.createKey("DUser", 1L))).getProperty("displayName"));
+  }
+
+  private Callable<Long> put(final String displayName) {
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    return new Callable<Long>() {
+      @Override
+      public Long call() throws IOException {
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+        return userDao.put(DUserMapper.newBuilder().id(1L).displayName(displayName).build());
+      }
+    };
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Timed out");
+      }
+    }
+    catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Test
+  public void testInvalidateOnCommit() throws IOException {
+    final DUser user = DUserMapper.newBuilder().id(1L).displayName("first").build();
+    userDao.put(user);
+    userDao.withCommitTransaction(new TransFunc<Void>() {
+      @Override
+      public Void apply() throws IOException {
+        user.setDisplayName("second");
+        userDao.put(user);
+        return null;
+      }
+    });
+    assertNull(memcache.get(KeyFactory.createKey("DUser", 1L)));
+    assertEquals("second", userDao.get(1L).getDisplayName());
+  }
+
+  @Test
+  public void testDeleteRemoves() throws IOException {
+    userDao.put(DUserMapper.newBuilder().id(1L).displayName("first").build());
+    userDao.get(1L);
+    userDao.delete(1L);
+    assertNull(memcache.get(KeyFactory.createKey("DUser", 1L)));
+    assertNull(userDao.get(1L));
+  }
+}